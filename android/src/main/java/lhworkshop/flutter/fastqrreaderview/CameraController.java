@@ -0,0 +1,244 @@
+package lhworkshop.flutter.fastqrreaderview;
+
+import android.graphics.RectF;
+import android.os.Handler;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+
+import lhworkshop.flutter.fastqrreaderview.common.CameraSource;
+import lhworkshop.flutter.fastqrreaderview.common.CameraSourcePreview;
+import lhworkshop.flutter.fastqrreaderview.java.barcodescanning.BarcodeScanningProcessor;
+
+/**
+ * Runs the lifecycle of a camera source on the camera thread, so that the platform thread never
+ * waits for the camera to open or close, nor for the decoders to stop.
+ *
+ * <p>Every command is posted to the camera thread, where the commands run one after the other, and
+ * returns right away. Commands that don't apply to the current {@link State} are ignored, e.g.
+ * starting a camera that is already previewing or stopping one that isn't open. Opening and
+ * closing the camera each run within a single command, so no other command ever sees the camera
+ * half open.
+ *
+ * <p>A camera failing once started, e.g. disconnected, is stopped and reported to the {@link
+ * CameraSource.ErrorListener}, after which it can be started again.
+ */
+class CameraController {
+
+    private static final String TAG = "CameraController";
+
+    enum State {
+        /**
+         * The camera is not open, and can be started.
+         */
+        IDLE,
+        /**
+         * The preview is running, frames are not decoded.
+         */
+        PREVIEWING,
+        /**
+         * The preview is running and frames are decoded.
+         */
+        SCANNING,
+        /**
+         * The camera source was released for good. Commands are ignored.
+         */
+        CLOSED
+    }
+
+    /**
+     * Told on the camera thread whether the camera started.
+     */
+    interface StartListener {
+        void onStarted(CameraSource source);
+
+        void onStartFailed(String message);
+    }
+
+    private final Handler handler;
+    private final CameraSource source;
+    private final CameraSourcePreview preview;
+    private final BarcodeScanningProcessor processor;
+
+    // Only changed on the camera thread.
+    private volatile State state = State.IDLE;
+    // Set on any thread, applied to the state on the camera thread.
+    private volatile boolean scanning;
+    @Nullable
+    private volatile CameraSource.ErrorListener errorListener;
+
+    CameraController(
+            Handler handler, CameraSource source, CameraSourcePreview preview, BarcodeScanningProcessor processor) {
+        this.handler = handler;
+        this.source = source;
+        this.preview = preview;
+        this.processor = processor;
+        source.setErrorListener(new CameraSource.ErrorListener() {
+            @Override
+            public void onCameraError(String message) {
+                cameraFailed(message);
+            }
+        });
+    }
+
+    State getState() {
+        return state;
+    }
+
+    /**
+     * Sets the listener told on the camera thread about the camera failing once started.
+     */
+    void setErrorListener(@Nullable CameraSource.ErrorListener errorListener) {
+        this.errorListener = errorListener;
+    }
+
+    /**
+     * Opens the camera and starts the preview, and decoding if scanning.
+     */
+    void start(@Nullable final StartListener listener) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (state != State.IDLE) {
+                    if (listener != null) {
+                        listener.onStartFailed("Camera is " + state);
+                    }
+                    return;
+                }
+                try {
+                    preview.start(source);
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Unable to start camera source.", e);
+                    source.stop();
+                    setState(State.IDLE);
+                    if (listener != null) {
+                        listener.onStartFailed("Unable to start the camera: " + e.getMessage());
+                    }
+                    return;
+                }
+                setState(scanning ? State.SCANNING : State.PREVIEWING);
+                if (listener != null) {
+                    listener.onStarted(source);
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes the camera and forgets the frames in flight, keeping the configuration of the camera
+     * source, its buffers and its decoders, so that starting again only opens the camera.
+     */
+    void stop() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (state == State.PREVIEWING || state == State.SCANNING) {
+                    preview.stop();
+                    processor.stop();
+                    setState(State.IDLE);
+                }
+            }
+        });
+    }
+
+    /**
+     * Follows a new display rotation, without closing the camera.
+     */
+    void updateRotation() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (state == State.PREVIEWING || state == State.SCANNING) {
+                    source.updateDisplayRotation();
+                }
+            }
+        });
+    }
+
+    /**
+     * Releases the camera source for good, then runs {@code then} on the camera thread.
+     */
+    void close(@Nullable final Runnable then) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (state != State.CLOSED) {
+                    preview.stop();
+                    source.release();
+                    setState(State.CLOSED);
+                }
+                if (then != null) {
+                    then.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts or stops decoding frames. Frames are decoded or throttled from the next one on, while
+     * the state follows on the camera thread.
+     */
+    void setScanning(final boolean scanning) {
+        this.scanning = scanning;
+        processor.shouldThrottle.set(!scanning);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (state == State.PREVIEWING || state == State.SCANNING) {
+                    setState(CameraController.this.scanning ? State.SCANNING : State.PREVIEWING);
+                }
+            }
+        });
+    }
+
+    void toggleFlash() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (state == State.PREVIEWING || state == State.SCANNING) {
+                    source.toggleFlash();
+                }
+            }
+        });
+    }
+
+    void setScanRegion(@Nullable final RectF region) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (state != State.CLOSED) {
+                    source.setScanRegion(region);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the failed camera, so it can be started again, and reports the failure.
+     */
+    private void cameraFailed(final String message) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (state != State.PREVIEWING && state != State.SCANNING) {
+                    return;
+                }
+                Log.e(TAG, "Camera failed: " + message);
+                preview.stop();
+                processor.stop();
+                setState(State.IDLE);
+                CameraSource.ErrorListener listener = errorListener;
+                if (listener != null) {
+                    listener.onCameraError(message);
+                }
+            }
+        });
+    }
+
+    private void setState(State state) {
+        Log.d(TAG, this.state + " -> " + state);
+        this.state = state;
+    }
+}
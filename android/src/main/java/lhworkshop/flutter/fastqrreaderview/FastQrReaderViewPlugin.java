@@ -8,27 +8,28 @@ import android.content.ComponentCallbacks;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
-import android.graphics.ImageFormat;
-import android.graphics.SurfaceTexture;
+import android.graphics.RectF;
 import android.hardware.camera2.CameraAccessException;
-import android.hardware.camera2.CameraCharacteristics;
-import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
-import android.hardware.camera2.params.StreamConfigurationMap;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.util.Log;
 import android.util.Size;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.google.zxing.BarcodeFormat;
 
-import java.io.IOException;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -41,9 +42,14 @@ import io.flutter.plugin.common.MethodChannel.Result;
 import io.flutter.plugin.common.PluginRegistry;
 import io.flutter.plugin.common.PluginRegistry.Registrar;
 import io.flutter.view.FlutterView;
+import lhworkshop.flutter.fastqrreaderview.common.CameraInfoCache;
 import lhworkshop.flutter.fastqrreaderview.common.CameraSource;
 import lhworkshop.flutter.fastqrreaderview.common.CameraSourcePreview;
+import lhworkshop.flutter.fastqrreaderview.common.DecodeEngine;
+import lhworkshop.flutter.fastqrreaderview.common.FrameContext;
+import lhworkshop.flutter.fastqrreaderview.common.ReplayFrameSource;
 import lhworkshop.flutter.fastqrreaderview.java.barcodescanning.BarcodeScanningProcessor;
+import lhworkshop.flutter.fastqrreaderview.java.barcodescanning.BinarizerStrategy;
 import lhworkshop.flutter.fastqrreaderview.java.barcodescanning.OnCodeScanned;
 
 /**
@@ -54,7 +60,9 @@ public class FastQrReaderViewPlugin implements MethodCallHandler {
     private static final int CAMERA_REQUEST_ID = 513469796;
     private static final String TAG = "FastQrReaderViewPlugin";
 
-    private static CameraManager cameraManager;
+    // Opens the cameras and queries them, off the platform thread, where the replies are sent from.
+    private static Handler cameraHandler;
+    private static Handler mainHandler;
     private final FlutterView view;
     private QrReader camera;
     private Activity activity;
@@ -92,8 +100,8 @@ public class FastQrReaderViewPlugin implements MethodCallHandler {
                         }
                         if (activity == FastQrReaderViewPlugin.this.activity) {
                             Log.d(TAG, "onActivityResumed");
-                            if (camera != null) {
-                                camera.startCameraSource();
+                            if (camera != null && camera.controller != null) {
+                                camera.controller.start(null);
                             }
                         }
                     }
@@ -102,10 +110,8 @@ public class FastQrReaderViewPlugin implements MethodCallHandler {
                     public void onActivityPaused(Activity activity) {
                         if (activity == FastQrReaderViewPlugin.this.activity) {
                             Log.d(TAG, "onActivityPaused");
-                            if (camera != null) {
-                                if (camera.preview != null) {
-                                    camera.preview.stop();
-                                }
+                            if (camera != null && camera.controller != null) {
+                                camera.controller.stop();
                             }
                         }
                     }
@@ -114,13 +120,8 @@ public class FastQrReaderViewPlugin implements MethodCallHandler {
                     public void onActivityStopped(Activity activity) {
                         if (activity == FastQrReaderViewPlugin.this.activity) {
                             Log.d(TAG, "onActivityStopped");
-                            if (camera != null) {
-                                if (camera.preview != null) {
-                                    camera.preview.stop();
-                                }
-                                if (camera.cameraSource != null) {
-                                    camera.cameraSource.release();
-                                }
+                            if (camera != null && camera.controller != null) {
+                                camera.controller.stop();
                             }
                         }
                     }
@@ -138,9 +139,8 @@ public class FastQrReaderViewPlugin implements MethodCallHandler {
             @Override
             public void onConfigurationChanged(Configuration configuration) {
                 Log.d(TAG, "onConfigurationChanged");
-                if (camera.preview != null) {
-                    camera.preview.stop();
-                    camera.startCameraSource();
+                if (camera != null && camera.controller != null) {
+                    camera.controller.updateRotation();
                 }
             }
 
@@ -156,7 +156,13 @@ public class FastQrReaderViewPlugin implements MethodCallHandler {
     public static void registerWith(Registrar registrar) {
         channel = new MethodChannel(registrar.messenger(), "fast_qr_reader_view");
 
-        cameraManager = (CameraManager) registrar.context().getSystemService(Context.CAMERA_SERVICE);
+        CameraInfoCache.prefetch(registrar.context());
+        if (cameraHandler == null) {
+            HandlerThread cameraThread = new HandlerThread("FastQrReaderViewCamera");
+            cameraThread.start();
+            cameraHandler = new Handler(cameraThread.getLooper());
+            mainHandler = new Handler(Looper.getMainLooper());
+        }
 
         FastQrReaderViewPlugin plugin;
         if (registrar.activity() != null) {
@@ -178,38 +184,50 @@ public class FastQrReaderViewPlugin implements MethodCallHandler {
                 result.success(null);
                 break;
             case "availableCameras":
-                try {
-                    String[] cameraNames = cameraManager.getCameraIdList();
-                    List<Map<String, Object>> cameras = new ArrayList<>();
-                    for (String cameraName : cameraNames) {
-                        HashMap<String, Object> details = new HashMap<>();
-                        CameraCharacteristics characteristics =
-                                cameraManager.getCameraCharacteristics(cameraName);
-                        details.put("name", cameraName);
-                        @SuppressWarnings("ConstantConditions")
-                        int lensFacing = characteristics.get(CameraCharacteristics.LENS_FACING);
-                        switch (lensFacing) {
-                            case CameraMetadata.LENS_FACING_FRONT:
-                                details.put("lensFacing", "front");
-                                break;
-                            case CameraMetadata.LENS_FACING_BACK:
-                                details.put("lensFacing", "back");
-                                break;
-                            case CameraMetadata.LENS_FACING_EXTERNAL:
-                                details.put("lensFacing", "external");
-                                break;
+                // Waits for the cameras if they are still loading.
+                final Context context = registrar.context();
+                cameraHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            final List<Map<String, Object>> cameras = new ArrayList<>();
+                            for (CameraInfoCache.CameraDetails camera : CameraInfoCache.getCameras(context)) {
+                                HashMap<String, Object> details = new HashMap<>();
+                                details.put("name", camera.getId());
+                                switch (camera.getLensFacing()) {
+                                    case CameraMetadata.LENS_FACING_FRONT:
+                                        details.put("lensFacing", "front");
+                                        break;
+                                    case CameraMetadata.LENS_FACING_BACK:
+                                        details.put("lensFacing", "back");
+                                        break;
+                                    case CameraMetadata.LENS_FACING_EXTERNAL:
+                                        details.put("lensFacing", "external");
+                                        break;
+                                }
+                                cameras.add(details);
+                            }
+                            replyOnMainThread(result, cameras);
+                        } catch (CameraAccessException e) {
+                            errorOnMainThread(result, "cameraAccess", e.getMessage());
                         }
-                        cameras.add(details);
                     }
-                    result.success(cameras);
-                } catch (CameraAccessException e) {
-                    result.error("cameraAccess", e.getMessage(), null);
-                }
+                });
                 break;
             case "initialize": {
                 String cameraName = call.argument("cameraName");
                 String resolutionPreset = call.argument("resolutionPreset");
                 ArrayList<String> codeFormats = call.argument("codeFormats");
+                ScanOptions options;
+                try {
+                    options = new ScanOptions(call);
+                } catch (InvalidScanRegionException e) {
+                    result.error("invalidScanRegion", e.getMessage(), null);
+                    break;
+                } catch (IllegalArgumentException e) {
+                    result.error("IllegalArgumentException", e.getMessage(), null);
+                    break;
+                }
 
                 if (camera != null) {
                     camera.close();
@@ -222,9 +240,16 @@ public class FastQrReaderViewPlugin implements MethodCallHandler {
                             .getApplication()
                             .registerComponentCallbacks(this.componentCallbacks);
                 }
-                camera = new QrReader(cameraName, resolutionPreset, codeFormats, result);
+                camera = new QrReader(cameraName, resolutionPreset, codeFormats, options, result);
                 break;
             }
+            case "setScanRegion":
+                try {
+                    setScanRegion(parseScanRegion(call.<Map<String, Object>>argument("scanRegion")), result);
+                } catch (InvalidScanRegionException e) {
+                    result.error("invalidScanRegion", e.getMessage(), null);
+                }
+                break;
             case "startScanning":
                 startScanning(result);
                 break;
@@ -234,6 +259,12 @@ public class FastQrReaderViewPlugin implements MethodCallHandler {
             case "toggleFlash":
                 toggleFlash(result);
                 break;
+            case "getStats":
+                getStats(result);
+                break;
+            case "resetStats":
+                resetStats(result);
+                break;
             case "dispose": {
                 if (camera != null) {
                     camera.dispose();
@@ -256,6 +287,24 @@ public class FastQrReaderViewPlugin implements MethodCallHandler {
         }
     }
 
+    private static void replyOnMainThread(final Result result, final Object reply) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                result.success(reply);
+            }
+        });
+    }
+
+    private static void errorOnMainThread(final Result result, final String code, final String message) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                result.error(code, message, null);
+            }
+        });
+    }
+
     private static class CompareSizesByArea implements Comparator<Size> {
         @Override
         public int compare(Size lhs, Size rhs) {
@@ -279,19 +328,288 @@ public class FastQrReaderViewPlugin implements MethodCallHandler {
 
 
     void startScanning(@NonNull Result result) {
-        camera.scanning = true;
-        camera.barcodeScanningProcessor.shouldThrottle.set(false);
+        camera.setScanning(true);
         result.success(null);
     }
 
     void stopScanning(@NonNull Result result) {
-        stopScanning();
+        camera.setScanning(false);
+        result.success(null);
+    }
+
+    void setScanRegion(@Nullable RectF scanRegion, @NonNull Result result) {
+        if (camera == null) {
+            result.error("noCamera", "setScanRegion called without an initialized camera", null);
+            return;
+        }
+        camera.scanRegion = scanRegion;
+        if (camera.controller != null) {
+            camera.controller.setScanRegion(scanRegion);
+        }
         result.success(null);
     }
 
-    private void stopScanning() {
-        camera.scanning = false;
-        camera.barcodeScanningProcessor.shouldThrottle.set(true);
+    /**
+     * Scanning options passed to {@code initialize}. Every option is optional on the Dart side.
+     */
+    private static class ScanOptions {
+        @Nullable
+        final RectF scanRegion;
+        final int decodeWorkers;
+        final BarcodeScanningProcessor.Delivery resultDelivery;
+        final int formatCostBudget;
+        final int pyramidLevels;
+        final int pyramidEscalateAfter;
+        final BinarizerStrategy binarizerStrategy;
+        final boolean multipleResults;
+        final int scanRows;
+        final int resultQueueSize;
+        final ResultDispatcher.Overflow resultOverflow;
+        final int confirmReads;
+        final int duplicateCooldownMillis;
+        final boolean continuous;
+        final int minResultIntervalMillis;
+        @Nullable
+        final ReplayFrameSource replay;
+        final CameraSource.Backend cameraBackend;
+        final boolean adaptiveFrameRate;
+        final boolean autoResolution;
+        final boolean tracking;
+        final float minSharpness;
+        final float minFrameChange;
+        final DecodeEngine.FrameQueue frameQueue;
+        final int frameQueueSize;
+        final int previewBuffers;
+
+        ScanOptions(MethodCall call) {
+            scanRegion = parseScanRegion(call.<Map<String, Object>>argument("scanRegion"));
+
+            Integer workers = call.argument("decodeWorkers");
+            decodeWorkers = workers != null ? workers : DecodeEngine.defaultWorkerCount();
+            if (decodeWorkers < 1 || decodeWorkers > BarcodeScanningProcessor.MAX_FRAMES_IN_FLIGHT) {
+                throw new IllegalArgumentException("Invalid decode worker count: " + decodeWorkers);
+            }
+
+            String delivery = call.argument("resultDelivery");
+            if (delivery == null || delivery.equals("firstHit")) {
+                resultDelivery = BarcodeScanningProcessor.Delivery.FIRST_HIT;
+            } else if (delivery.equals("inOrder")) {
+                resultDelivery = BarcodeScanningProcessor.Delivery.IN_ORDER;
+            } else {
+                throw new IllegalArgumentException("Unknown result delivery: " + delivery);
+            }
+
+            Integer budget = call.argument("formatCostBudget");
+            formatCostBudget = budget != null ? budget : 0;
+            if (formatCostBudget < 0) {
+                throw new IllegalArgumentException("Invalid format cost budget: " + formatCostBudget);
+            }
+
+            Integer levels = call.argument("pyramidLevels");
+            pyramidLevels = levels != null ? levels : 0;
+            if (pyramidLevels < 0 || pyramidLevels > FrameContext.MAX_LEVEL) {
+                throw new IllegalArgumentException("Invalid pyramid levels: " + pyramidLevels);
+            }
+            Integer escalateAfter = call.argument("pyramidEscalateAfter");
+            pyramidEscalateAfter = escalateAfter != null ? escalateAfter : 3;
+            if (pyramidEscalateAfter < 1) {
+                throw new IllegalArgumentException("Invalid pyramid escalation: " + pyramidEscalateAfter);
+            }
+
+            String binarizer = call.argument("binarizer");
+            if (binarizer == null || binarizer.equals("hybrid")) {
+                binarizerStrategy = BinarizerStrategy.HYBRID;
+            } else if (binarizer.equals("globalFirst")) {
+                binarizerStrategy = BinarizerStrategy.GLOBAL_FIRST;
+            } else if (binarizer.equals("hybridFirst")) {
+                binarizerStrategy = BinarizerStrategy.HYBRID_FIRST;
+            } else if (binarizer.equals("alternate")) {
+                binarizerStrategy = BinarizerStrategy.ALTERNATE;
+            } else if (binarizer.equals("adaptive")) {
+                binarizerStrategy = BinarizerStrategy.ADAPTIVE;
+            } else {
+                throw new IllegalArgumentException("Unknown binarizer: " + binarizer);
+            }
+
+            Boolean multiple = call.argument("multipleResults");
+            multipleResults = multiple != null && multiple;
+
+            Integer queueSize = call.argument("resultQueueSize");
+            resultQueueSize = queueSize != null ? queueSize : 8;
+            if (resultQueueSize < 1) {
+                throw new IllegalArgumentException("Invalid result queue size: " + resultQueueSize);
+            }
+            String overflow = call.argument("resultOverflow");
+            if (overflow == null || overflow.equals("coalesce")) {
+                resultOverflow = ResultDispatcher.Overflow.COALESCE;
+            } else if (overflow.equals("dropOldest")) {
+                resultOverflow = ResultDispatcher.Overflow.DROP_OLDEST;
+            } else if (overflow.equals("block")) {
+                resultOverflow = ResultDispatcher.Overflow.BLOCK;
+            } else {
+                throw new IllegalArgumentException("Unknown result overflow: " + overflow);
+            }
+
+            Integer rows = call.argument("scanRows");
+            scanRows = rows != null ? rows : 0;
+            if (scanRows < 0) {
+                throw new IllegalArgumentException("Invalid scan rows: " + scanRows);
+            }
+
+            Integer confirm = call.argument("confirmReads");
+            confirmReads = confirm != null ? confirm : 1;
+            if (confirmReads < 1) {
+                throw new IllegalArgumentException("Invalid confirmation reads: " + confirmReads);
+            }
+            Integer cooldown = call.argument("duplicateCooldown");
+            duplicateCooldownMillis = cooldown != null ? cooldown : 0;
+            if (duplicateCooldownMillis < 0) {
+                throw new IllegalArgumentException("Invalid duplicate cooldown: " + duplicateCooldownMillis);
+            }
+
+            Boolean continuousArgument = call.argument("continuous");
+            continuous = continuousArgument != null && continuousArgument;
+            Integer interval = call.argument("minResultInterval");
+            minResultIntervalMillis = interval != null ? interval : 0;
+            if (minResultIntervalMillis < 0) {
+                throw new IllegalArgumentException("Invalid result interval: " + minResultIntervalMillis);
+            }
+
+            replay = parseReplay(call.<Map<String, Object>>argument("replay"));
+
+            String backend = call.argument("cameraBackend");
+            if (backend == null || backend.equals("legacy")) {
+                cameraBackend = CameraSource.Backend.LEGACY;
+            } else if (backend.equals("camera2")) {
+                cameraBackend = CameraSource.Backend.CAMERA2;
+            } else {
+                throw new IllegalArgumentException("Unknown camera backend: " + backend);
+            }
+
+            Boolean adaptive = call.argument("adaptiveFrameRate");
+            adaptiveFrameRate = adaptive == null || adaptive;
+
+            Boolean auto = call.argument("autoResolution");
+            autoResolution = auto != null && auto;
+
+            Boolean trackingArgument = call.argument("tracking");
+            tracking = trackingArgument != null && trackingArgument;
+
+            Number sharpness = call.argument("minSharpness");
+            minSharpness = sharpness != null ? sharpness.floatValue() : 0;
+            if (!(minSharpness >= 0)) {
+                throw new IllegalArgumentException("Invalid minimum sharpness: " + minSharpness);
+            }
+            Number change = call.argument("minFrameChange");
+            minFrameChange = change != null ? change.floatValue() : 0;
+            if (!(minFrameChange >= 0)) {
+                throw new IllegalArgumentException("Invalid minimum frame change: " + minFrameChange);
+            }
+
+            String queue = call.argument("frameQueue");
+            if (queue == null || queue.equals("latest")) {
+                frameQueue = DecodeEngine.FrameQueue.LATEST;
+            } else if (queue.equals("fifo")) {
+                frameQueue = DecodeEngine.FrameQueue.FIFO;
+            } else {
+                throw new IllegalArgumentException("Unknown frame queue: " + queue);
+            }
+            Integer frameQueueArgument = call.argument("frameQueueSize");
+            frameQueueSize = frameQueueArgument != null ? frameQueueArgument : 2;
+            if (frameQueueSize < 1 || frameQueueSize > DecodeEngine.MAX_QUEUED_FRAMES) {
+                throw new IllegalArgumentException("Invalid frame queue size: " + frameQueueSize);
+            }
+            Integer buffers = call.argument("previewBuffers");
+            previewBuffers = buffers != null ? buffers : 0;
+            if (previewBuffers < 0 || previewBuffers == 1) {
+                throw new IllegalArgumentException("Invalid preview buffer count: " + previewBuffers);
+            }
+        }
+    }
+
+    /**
+     * Parses a {path, width, height, fps, loop} map sent from Dart, describing an NV21 recording to
+     * decode instead of the camera preview. Returns null (the camera preview) when none was given.
+     */
+    @Nullable
+    private static ReplayFrameSource parseReplay(@Nullable Map<String, Object> replay) {
+        if (replay == null) {
+            return null;
+        }
+        String path = (String) replay.get("path");
+        Integer width = (Integer) replay.get("width");
+        Integer height = (Integer) replay.get("height");
+        if (path == null || width == null || height == null) {
+            throw new IllegalArgumentException("A replay needs a path, a width and a height");
+        }
+        Number fps = (Number) replay.get("fps");
+        Boolean loop = (Boolean) replay.get("loop");
+        return new ReplayFrameSource(
+                new File(path), width, height, fps != null ? fps.floatValue() : 0, loop == null || loop);
+    }
+
+    private static final double SCAN_REGION_TOLERANCE = 1e-6;
+
+    /**
+     * Thrown for a scan region sent from Dart that is incomplete, empty or not within the preview.
+     */
+    private static class InvalidScanRegionException extends IllegalArgumentException {
+        InvalidScanRegionException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Parses a normalized {left, top, width, height} map sent from Dart. Returns null (the whole
+     * frame) when no region was given.
+     *
+     * @throws InvalidScanRegionException if a value is missing, or the region is empty or not
+     *                                    within 0..1
+     */
+    @Nullable
+    private static RectF parseScanRegion(@Nullable Map<String, Object> region) {
+        if (region == null) {
+            return null;
+        }
+        double left = regionValue(region, "left");
+        double top = regionValue(region, "top");
+        double width = regionValue(region, "width");
+        double height = regionValue(region, "height");
+        if (!(width > 0) || !(height > 0)) {
+            throw new InvalidScanRegionException("Empty scan region: " + width + "x" + height);
+        }
+        double right = left + width;
+        double bottom = top + height;
+        // Edges computed by Dart may be off by a rounding error.
+        if (!(left >= 0) || !(top >= 0) || !(right <= 1 + SCAN_REGION_TOLERANCE)
+                || !(bottom <= 1 + SCAN_REGION_TOLERANCE)) {
+            throw new InvalidScanRegionException(
+                    "Scan region out of the preview: " + left + ", " + top + ", " + right + ", " + bottom);
+        }
+        return new RectF((float) left, (float) top, (float) Math.min(1, right), (float) Math.min(1, bottom));
+    }
+
+    private static double regionValue(Map<String, Object> region, String key) {
+        Object value = region.get(key);
+        if (!(value instanceof Number)) {
+            throw new InvalidScanRegionException("Missing scan region " + key);
+        }
+        return ((Number) value).doubleValue();
+    }
+
+    void getStats(@NonNull Result result) {
+        if (camera == null || camera.barcodeScanningProcessor == null) {
+            result.success(null);
+            return;
+        }
+        result.success(camera.barcodeScanningProcessor.stats.toMap());
+    }
+
+    void resetStats(@NonNull Result result) {
+        if (camera != null && camera.barcodeScanningProcessor != null) {
+            camera.barcodeScanningProcessor.stats.reset();
+        }
+        result.success(null);
     }
 
     void toggleFlash(@NonNull Result result) {
@@ -300,7 +618,9 @@ public class FastQrReaderViewPlugin implements MethodCallHandler {
     }
 
     private void toggleFlash() {
-        camera.cameraSource.toggleFlash();
+        if (camera.controller != null) {
+            camera.controller.toggleFlash();
+        }
     }
 
 
@@ -308,6 +628,8 @@ public class FastQrReaderViewPlugin implements MethodCallHandler {
 
         private CameraSource cameraSource = null;
         private CameraSourcePreview preview;
+        // Runs the camera on the camera thread, once open was called.
+        private volatile CameraController controller;
 
         private final FlutterView.SurfaceTextureEntry textureEntry;
 
@@ -316,31 +638,27 @@ public class FastQrReaderViewPlugin implements MethodCallHandler {
         BarcodeScanningProcessor barcodeScanningProcessor;
 
         ArrayList<BarcodeFormat> reqFormats;
+        // Names of the formats on the Dart side.
+        private final Map<BarcodeFormat, String> formatNames = new EnumMap<>(BarcodeFormat.class);
+        private ResultDispatcher resultDispatcher;
         private int sensorOrientation;
         private boolean isFrontFacing;
         private String cameraName;
         private Size captureSize;
         private Size previewSize;
         private Size videoSize;
-        private boolean scanning;
+        private final Size minPreviewSize;
+        private volatile boolean scanning;
+        // Set when closed or disposed, possibly before the camera thread got to open the camera.
+        private volatile boolean closed;
+        private RectF scanRegion;
+        private final ScanOptions options;
 
-        private void startCameraSource() {
-            if (cameraSource != null) {
-                try {
-                    if (preview == null) {
-                        Log.d(TAG, "resume: Preview is null");
-                    } else {
-                        preview.start(cameraSource);
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "Unable to start camera source.", e);
-                    cameraSource.release();
-                    cameraSource = null;
-                }
-            }
-        }
+        QrReader(final String cameraName, final String resolutionPreset, final ArrayList<String> formats, @NonNull ScanOptions options, @NonNull final Result result) {
 
-        QrReader(final String cameraName, final String resolutionPreset, final ArrayList<String> formats, @NonNull final Result result) {
+            this.options = options;
+            this.scanRegion = options.scanRegion;
+            this.cameraName = cameraName;
 
             // AVAILABLE FORMATS:
             // enum CodeFormat { codabar, code39, code93, code128, ean8, ean13, itf, upca, upce, aztec, datamatrix, pdf417, qr }
@@ -362,6 +680,9 @@ public class FastQrReaderViewPlugin implements MethodCallHandler {
 
 
             reqFormats = new ArrayList<>();
+            for (Map.Entry<String, BarcodeFormat> entry : map.entrySet()) {
+                formatNames.put(entry.getValue(), entry.getKey());
+            }
 
             for (String f :
                     formats) {
@@ -371,34 +692,22 @@ public class FastQrReaderViewPlugin implements MethodCallHandler {
             }
 
             textureEntry = view.createSurfaceTexture();
+            switch (resolutionPreset) {
+                case "high":
+                    minPreviewSize = new Size(1024, 768);
+                    break;
+                case "medium":
+                    minPreviewSize = new Size(640, 480);
+                    break;
+                case "low":
+                    minPreviewSize = new Size(320, 240);
+                    break;
+                default:
+                    minPreviewSize = null;
+                    result.error("IllegalArgumentException", "Unknown preset: " + resolutionPreset, null);
+                    return;
+            }
             try {
-                Size minPreviewSize;
-                switch (resolutionPreset) {
-                    case "high":
-                        minPreviewSize = new Size(1024, 768);
-                        break;
-                    case "medium":
-                        minPreviewSize = new Size(640, 480);
-                        break;
-                    case "low":
-                        minPreviewSize = new Size(320, 240);
-                        break;
-                    default:
-                        throw new IllegalArgumentException("Unknown preset: " + resolutionPreset);
-                }
-
-                CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(cameraName);
-                StreamConfigurationMap streamConfigurationMap =
-                        characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-                //noinspection ConstantConditions
-                sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-                //noinspection ConstantConditions
-                isFrontFacing =
-                        characteristics.get(CameraCharacteristics.LENS_FACING)
-                                == CameraMetadata.LENS_FACING_FRONT;
-                computeBestCaptureSize(streamConfigurationMap);
-                computeBestPreviewAndRecordingSize(streamConfigurationMap, minPreviewSize, captureSize);
-
                 if (cameraPermissionContinuation != null) {
                     result.error("cameraPermission", "Camera permission request ongoing", null);
                 }
@@ -428,8 +737,6 @@ public class FastQrReaderViewPlugin implements MethodCallHandler {
                                         CAMERA_REQUEST_ID);
                     }
                 }
-            } catch (CameraAccessException e) {
-                result.error("CameraAccess", e.getMessage(), null);
             } catch (IllegalArgumentException e) {
                 result.error("IllegalArgumentException", e.getMessage(), null);
             }
@@ -443,11 +750,13 @@ public class FastQrReaderViewPlugin implements MethodCallHandler {
                                 @Override
                                 public void onListen(Object arguments, EventChannel.EventSink eventSink) {
                                     QrReader.this.eventSink = eventSink;
+                                    resultDispatcher.setEventSink(eventSink);
                                 }
 
                                 @Override
                                 public void onCancel(Object arguments) {
                                     QrReader.this.eventSink = null;
+                                    resultDispatcher.setEventSink(null);
                                 }
                             });
         }
@@ -458,9 +767,7 @@ public class FastQrReaderViewPlugin implements MethodCallHandler {
                     == PackageManager.PERMISSION_GRANTED;
         }
 
-        private void computeBestPreviewAndRecordingSize(
-                StreamConfigurationMap streamConfigurationMap, Size minPreviewSize, Size captureSize) {
-            Size[] sizes = streamConfigurationMap.getOutputSizes(SurfaceTexture.class);
+        private void computeBestPreviewAndRecordingSize(Size[] sizes, Size minPreviewSize, Size captureSize) {
             float captureSizeRatio = (float) captureSize.getWidth() / captureSize.getHeight();
             List<Size> goodEnough = new ArrayList<>();
             for (Size s : sizes) {
@@ -490,12 +797,9 @@ public class FastQrReaderViewPlugin implements MethodCallHandler {
             }
         }
 
-        private void computeBestCaptureSize(StreamConfigurationMap streamConfigurationMap) {
+        private void computeBestCaptureSize(Size[] yuvSizes) {
             // For still image captures, we use the largest available size.
-            captureSize =
-                    Collections.max(
-                            Arrays.asList(streamConfigurationMap.getOutputSizes(ImageFormat.YUV_420_888)),
-                            new CompareSizesByArea());
+            captureSize = Collections.max(Arrays.asList(yuvSizes), new CompareSizesByArea());
         }
 
         @SuppressLint("MissingPermission")
@@ -503,37 +807,137 @@ public class FastQrReaderViewPlugin implements MethodCallHandler {
             if (!hasCameraPermission()) {
                 result.error("cameraPermission", "Camera permission not granted", null);
             } else {
-                cameraSource = new CameraSource(activity);
-                cameraSource.setFacing(isFrontFacing ? 1 : 0);
-                barcodeScanningProcessor = new BarcodeScanningProcessor(reqFormats);
+                cameraSource = new CameraSource(activity, options.decodeWorkers);
+                cameraSource.setScanRegion(scanRegion);
+                cameraSource.setFrameSource(options.replay);
+                cameraSource.setBackend(options.cameraBackend);
+                cameraSource.setAdaptiveFrameRate(options.adaptiveFrameRate);
+                cameraSource.setFrameGate(options.minSharpness, options.minFrameChange);
+                cameraSource.setFrameQueue(options.frameQueue, options.frameQueueSize);
+                cameraSource.setPreviewBuffers(options.previewBuffers);
+                barcodeScanningProcessor = new BarcodeScanningProcessor(reqFormats, options.resultDelivery);
+                barcodeScanningProcessor.setFormatCostBudget(options.formatCostBudget);
+                barcodeScanningProcessor.setPyramid(options.pyramidLevels, options.pyramidEscalateAfter);
+                barcodeScanningProcessor.setAutoResolution(options.autoResolution);
+                barcodeScanningProcessor.setTracking(options.tracking);
+                barcodeScanningProcessor.setBinarizerStrategy(options.binarizerStrategy);
+                barcodeScanningProcessor.setMultipleResults(options.multipleResults);
+                barcodeScanningProcessor.setScanRows(options.scanRows);
+                barcodeScanningProcessor.setResultCache(options.confirmReads, options.duplicateCooldownMillis);
+                barcodeScanningProcessor.setMinResultInterval(options.minResultIntervalMillis);
+                resultDispatcher = new ResultDispatcher(
+                        options.resultQueueSize, options.resultOverflow, formatNames, barcodeScanningProcessor.stats);
                 barcodeScanningProcessor.callback = new OnCodeScanned() {
                     @Override
                     public void onCodeScanned(com.google.zxing.Result barcode) {
-                        if (camera.scanning) {
-                            final String value = barcode.getText();
-                            Log.w(TAG, "onSuccess: " + value);
-                            activity.runOnUiThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    channel.invokeMethod("updateCode", value);
-                                }
-                            });
-                            stopScanning();
+                        // On a decode worker, so this reader rather than the plugin's current one.
+                        if (QrReader.this.scanning) {
+                            Log.w(TAG, "onSuccess: " + barcode.getText());
+                            resultDispatcher.send(new com.google.zxing.Result[]{barcode});
+                            if (!options.continuous) {
+                                QrReader.this.setScanning(false);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onCodesScanned(com.google.zxing.Result[] barcodes) {
+                        if (QrReader.this.scanning) {
+                            // The whole frame goes to Dart in a single batch.
+                            Log.w(TAG, "onSuccess: " + barcodes.length + " codes");
+                            resultDispatcher.send(barcodes);
+                            if (!options.continuous) {
+                                QrReader.this.setScanning(false);
+                            }
                         }
                     }
                 };
                 cameraSource.setFrameProcessor(barcodeScanningProcessor);
                 preview = new CameraSourcePreview(activity, null, textureEntry.surfaceTexture());
-
-                startCameraSource();
+                controller = new CameraController(cameraHandler, cameraSource, preview, barcodeScanningProcessor);
+                controller.setErrorListener(new CameraSource.ErrorListener() {
+                    @Override
+                    public void onCameraError(String message) {
+                        sendErrorEvent(message);
+                    }
+                });
+                if (options.continuous) {
+                    // Decoding goes on from the first frame until stopScanning is called.
+                    scanning = true;
+                    controller.setScanning(true);
+                }
+                // Results wait in the dispatcher until Dart listens.
                 registerEventChannel();
 
-                Map<String, Object> reply = new HashMap<>();
-                reply.put("textureId", textureEntry.id());
-                reply.put("previewWidth", cameraSource.getPreviewSize().getWidth());
-                reply.put("previewHeight", cameraSource.getPreviewSize().getHeight());
-                reply.put("previewRotation", cameraSource.getRotation());
-                result.success(reply);
+                cameraHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        openCamera(result);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Selects the sizes from the cached characteristics of the camera and opens it. Runs on the
+         * camera thread, so that the platform thread goes on drawing frames meanwhile, and replies
+         * once the preview started.
+         */
+        private void openCamera(@NonNull final Result result) {
+            if (closed) {
+                errorOnMainThread(result, "CameraAccess", "Camera closed while opening");
+                return;
+            }
+            CameraInfoCache.CameraDetails details;
+            try {
+                details = CameraInfoCache.getCamera(activity, cameraName);
+            } catch (CameraAccessException e) {
+                errorOnMainThread(result, "CameraAccess", e.getMessage());
+                return;
+            }
+            if (details == null) {
+                errorOnMainThread(result, "CameraAccess", "Unknown camera: " + cameraName);
+                return;
+            }
+            if (details.getYuvSizes().length == 0 || details.getTextureSizes().length == 0) {
+                errorOnMainThread(result, "CameraAccess", "No output sizes for camera: " + cameraName);
+                return;
+            }
+            sensorOrientation = details.getSensorOrientation();
+            isFrontFacing = details.getLensFacing() == CameraMetadata.LENS_FACING_FRONT;
+            computeBestCaptureSize(details.getYuvSizes());
+            computeBestPreviewAndRecordingSize(details.getTextureSizes(), minPreviewSize, captureSize);
+
+            cameraSource.setFacing(isFrontFacing ? 1 : 0);
+            // The size computed from the resolution preset.
+            cameraSource.setRequestedPreviewSize(previewSize.getWidth(), previewSize.getHeight());
+            controller.start(new CameraController.StartListener() {
+                @Override
+                public void onStarted(CameraSource source) {
+                    Map<String, Object> reply = new HashMap<>();
+                    reply.put("textureId", textureEntry.id());
+                    reply.put("previewWidth", source.getPreviewSize().getWidth());
+                    reply.put("previewHeight", source.getPreviewSize().getHeight());
+                    reply.put("previewRotation", source.getRotation());
+                    replyOnMainThread(result, reply);
+                }
+
+                @Override
+                public void onStartFailed(String message) {
+                    errorOnMainThread(result, "CameraAccess", message);
+                }
+            });
+        }
+
+        /**
+         * Starts or stops decoding frames. Called on the platform thread, or on a decode worker
+         * once a code is read, so it only touches this reader and its controller.
+         */
+        void setScanning(boolean scanning) {
+            this.scanning = scanning;
+            CameraController controller = this.controller;
+            if (controller != null) {
+                controller.setScanning(scanning);
             }
         }
 
@@ -552,23 +956,38 @@ public class FastQrReaderViewPlugin implements MethodCallHandler {
         }
 
         private void close() {
-            if (preview != null) {
-                preview.stop();
+            closed = true;
+            if (resultDispatcher != null) {
+                resultDispatcher.close();
             }
-            if (cameraSource != null) {
-                cameraSource.release();
+            // After the camera thread is done opening the camera, if it is.
+            if (controller != null) {
+                controller.close(null);
             }
             camera = null;
         }
 
         private void dispose() {
-            textureEntry.release();
-            if (preview != null) {
-                preview.stop();
+            closed = true;
+            if (resultDispatcher != null) {
+                resultDispatcher.close();
             }
-            if (cameraSource != null) {
-                cameraSource.release();
+            if (controller == null) {
+                textureEntry.release();
+                return;
             }
+            controller.close(new Runnable() {
+                @Override
+                public void run() {
+                    // Once the camera no longer streams to it.
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            textureEntry.release();
+                        }
+                    });
+                }
+            });
         }
     }
 }
@@ -0,0 +1,266 @@
+package lhworkshop.flutter.fastqrreaderview;
+
+import android.view.Choreographer;
+
+import androidx.annotation.Nullable;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import io.flutter.plugin.common.EventChannel;
+import lhworkshop.flutter.fastqrreaderview.java.barcodescanning.ScanStats;
+
+/**
+ * Streams the codes found to Dart over the event channel of the camera, with their format, text,
+ * raw bytes, points and the time they were found.
+ *
+ * <p>Codes are queued by the decode workers, a batch per frame, and sent from the UI thread once
+ * per UI frame: the batches queued since the last frame go in a single {@code results} event. The
+ * queue is bounded, so that a Dart side slower than the decoders can't pile messages up on the main
+ * looper. When it is full, the {@link Overflow} policy decides what happens to a new batch.
+ *
+ * <p>The event is a map of {@code eventType}, {@code sentAt}, the time the event was sent in
+ * milliseconds since the epoch, and {@code batches}, the lists of codes found in a frame, in the
+ * order they were delivered. A code is a list rather than a map, so that keys are not repeated for
+ * every code: {@code [format, text, rawBytes, points, timestamp]}, where {@code points} are the x
+ * and y coordinates of the result points in the camera frame, and {@code timestamp} is the time the
+ * code was decoded, in milliseconds since the epoch.
+ */
+class ResultDispatcher {
+
+    /**
+     * What happens to a batch queued while the queue is full.
+     */
+    enum Overflow {
+        /**
+         * The oldest queued batch is dropped.
+         */
+        DROP_OLDEST,
+        /**
+         * The codes are added to the newest queued batch, unless it already has them.
+         */
+        COALESCE,
+        /**
+         * The decoder waits for the queue to have room. To never deadlock with a UI thread waiting
+         * for the decoders, e.g. while tearing down, it waits for a bounded time only, after which
+         * the oldest batch is dropped.
+         */
+        BLOCK
+    }
+
+    private static final long MAX_BLOCK_NANOS = 200000000L;
+
+    // Names of the formats on the Dart side.
+    private final Map<BarcodeFormat, String> formatNames;
+    private final ScanStats stats;
+    private final int capacity;
+    private final Overflow overflow;
+    private final Choreographer choreographer;
+
+    private static final class Batch {
+        final List<Object> codes;
+        final long queuedNanos;
+
+        Batch(List<Object> codes, long queuedNanos) {
+            this.codes = codes;
+            this.queuedNanos = queuedNanos;
+        }
+    }
+
+    private final Object lock = new Object();
+    // @GuardedBy("lock")
+    private final ArrayDeque<Batch> queue = new ArrayDeque<>();
+    // @GuardedBy("lock")
+    private boolean flushScheduled;
+    // @GuardedBy("lock")
+    private boolean closed;
+    // Only used on the UI thread.
+    private EventChannel.EventSink eventSink;
+
+    private final Choreographer.FrameCallback flush = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            flush();
+        }
+    };
+
+    /**
+     * Must be created on the UI thread, where events are sent from.
+     *
+     * @param capacity maximum number of batches waiting to be sent
+     */
+    ResultDispatcher(int capacity, Overflow overflow, Map<BarcodeFormat, String> formatNames, ScanStats stats) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid result queue size: " + capacity);
+        }
+        this.capacity = capacity;
+        this.overflow = overflow;
+        this.formatNames = formatNames;
+        this.stats = stats;
+        choreographer = Choreographer.getInstance();
+    }
+
+    /**
+     * Sets the sink events are sent to, when Dart starts or stops listening. Batches are kept
+     * queued while there is none. Must be called on the UI thread.
+     */
+    void setEventSink(@Nullable EventChannel.EventSink eventSink) {
+        this.eventSink = eventSink;
+        if (eventSink != null) {
+            synchronized (lock) {
+                scheduleFlushLocked();
+            }
+        }
+    }
+
+    /**
+     * Queues the codes found in a frame, to be sent with the next UI frame. Called by the decoders.
+     */
+    void send(Result[] results) {
+        // Converted on the calling thread, to keep the UI thread's share small.
+        List<Object> codes = new ArrayList<>(results.length);
+        for (Result result : results) {
+            codes.add(toMessage(result));
+        }
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            if (queue.size() >= capacity) {
+                switch (overflow) {
+                    case COALESCE:
+                        coalesce(queue.peekLast().codes, codes);
+                        stats.recordResultCoalesced();
+                        return;
+                    case BLOCK:
+                        stats.recordResultBlocked();
+                        long deadline = System.nanoTime() + MAX_BLOCK_NANOS;
+                        long remaining = MAX_BLOCK_NANOS;
+                        while (queue.size() >= capacity && !closed && remaining > 0) {
+                            try {
+                                lock.wait(remaining / 1000000, (int) (remaining % 1000000));
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                break;
+                            }
+                            remaining = deadline - System.nanoTime();
+                        }
+                        if (closed) {
+                            return;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+                while (queue.size() >= capacity) {
+                    queue.pollFirst();
+                    stats.recordResultDropped();
+                }
+            }
+            queue.addLast(new Batch(codes, System.nanoTime()));
+            scheduleFlushLocked();
+        }
+    }
+
+    /**
+     * Drops the queued batches and releases the decoders waiting for room. Nothing is sent after.
+     */
+    void close() {
+        synchronized (lock) {
+            closed = true;
+            queue.clear();
+            lock.notifyAll();
+        }
+    }
+
+    private void scheduleFlushLocked() {
+        if (!flushScheduled && !queue.isEmpty()) {
+            flushScheduled = true;
+            // The choreographer hands the callback over to its own thread when called from
+            // another one.
+            choreographer.postFrameCallback(flush);
+        }
+    }
+
+    // Adds the codes not in a batch yet to it.
+    private static void coalesce(List<Object> batch, List<Object> codes) {
+        for (Object code : codes) {
+            List<?> fields = (List<?>) code;
+            boolean found = false;
+            for (Object queued : batch) {
+                List<?> queuedFields = (List<?>) queued;
+                if (Objects.equals(queuedFields.get(0), fields.get(0))
+                        && Objects.equals(queuedFields.get(1), fields.get(1))) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                batch.add(code);
+            }
+        }
+    }
+
+    private List<Object> toMessage(Result result) {
+        double[] points = null;
+        ResultPoint[] resultPoints = result.getResultPoints();
+        if (resultPoints != null) {
+            int count = 0;
+            points = new double[resultPoints.length * 2];
+            for (ResultPoint point : resultPoints) {
+                if (point != null) {
+                    points[count++] = point.getX();
+                    points[count++] = point.getY();
+                }
+            }
+            if (count < points.length) {
+                points = Arrays.copyOf(points, count);
+            }
+        }
+        List<Object> message = new ArrayList<>(5);
+        message.add(formatNames.get(result.getBarcodeFormat()));
+        message.add(result.getText());
+        message.add(result.getRawBytes());
+        message.add(points);
+        message.add(result.getTimestamp());
+        return message;
+    }
+
+    private void flush() {
+        EventChannel.EventSink sink = eventSink;
+        List<Object> batches;
+        long[] queuedNanos;
+        synchronized (lock) {
+            flushScheduled = false;
+            if (sink == null || queue.isEmpty()) {
+                return;
+            }
+            batches = new ArrayList<>(queue.size());
+            queuedNanos = new long[queue.size()];
+            for (Batch batch : queue) {
+                queuedNanos[batches.size()] = batch.queuedNanos;
+                batches.add(batch.codes);
+            }
+            queue.clear();
+            lock.notifyAll();
+        }
+        Map<String, Object> event = new HashMap<>();
+        event.put("eventType", "results");
+        event.put("sentAt", System.currentTimeMillis());
+        event.put("batches", batches);
+        sink.success(event);
+        long now = System.nanoTime();
+        for (long queued : queuedNanos) {
+            stats.delivery.recordNanos(now - queued);
+        }
+    }
+}
@@ -0,0 +1,457 @@
+package lhworkshop.flutter.fastqrreaderview.common;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.Nullable;
+
+/**
+ * The camera2 backend of {@link CameraSource}: a camera device streaming to the preview texture and
+ * to an {@link ImageReader} of {@code YUV_420_888} images, whose Y planes are decoded in place
+ * through an {@link ImageReaderFrameSource}.
+ *
+ * <p>The sizes are selected when opening, so they are known right away. The device is opened and
+ * the capture session configured on a camera thread of its own, which {@link #open} waits for, so
+ * that a camera failing to open or to configure is reported like a legacy camera failing to open.
+ * Failures after that, e.g. the camera being disconnected, are reported to the {@link
+ * CameraSource.ErrorListener}.
+ */
+@SuppressLint("MissingPermission")
+class Camera2Device {
+
+    private static final String TAG = "Camera2Device";
+
+    // How long opening the camera and configuring the session may take, and how long closing waits
+    // for a camera still opening, so as to close it.
+    private static final long OPEN_TIMEOUT_MILLIS = 5000;
+    private static final long CLOSE_TIMEOUT_MILLIS = 2000;
+
+    private final CameraManager manager;
+    private final CameraInfoCache.CameraDetails details;
+    private final String cameraId;
+    private final int sensorOrientation;
+    private final boolean frontFacing;
+
+    private HandlerThread thread;
+    private Handler handler;
+    @Nullable
+    private Range<Integer>[] fpsRanges;
+    private ImageReader imageReader;
+    private ImageReaderFrameSource frameSource;
+    private Surface previewSurface;
+    @Nullable
+    private CameraSource.ErrorListener errorListener;
+
+    // Counted down once the session is configured or opening failed, with the failure if any.
+    private final CountDownLatch started = new CountDownLatch(1);
+    private volatile String startError;
+    // Counted down on the first callback of the device, once openCamera was called.
+    private final CountDownLatch deviceCallback = new CountDownLatch(1);
+    private boolean openRequested;
+
+    // These are only used on the camera thread.
+    private CameraDevice device;
+    private CameraCaptureSession session;
+    private boolean torch;
+    @Nullable
+    private Range<Integer> fpsRange;
+    private boolean closed;
+
+    /**
+     * @param facing {@link CameraSource#CAMERA_FACING_BACK} or {@link
+     *               CameraSource#CAMERA_FACING_FRONT}
+     * @throws IOException if there is no such camera
+     */
+    Camera2Device(Context context, int facing) throws IOException {
+        manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        int lensFacing = facing == CameraSource.CAMERA_FACING_FRONT
+                ? CameraCharacteristics.LENS_FACING_FRONT
+                : CameraCharacteristics.LENS_FACING_BACK;
+        try {
+            details = CameraInfoCache.findCamera(context, lensFacing);
+        } catch (CameraAccessException e) {
+            throw new IOException("Could not access the camera.", e);
+        }
+        if (details == null) {
+            throw new IOException("Could not find requested camera.");
+        }
+        cameraId = details.getId();
+        sensorOrientation = details.getSensorOrientation();
+        frontFacing = lensFacing == CameraCharacteristics.LENS_FACING_FRONT;
+    }
+
+    int getSensorOrientation() {
+        return sensorOrientation;
+    }
+
+    boolean isFrontFacing() {
+        return frontFacing;
+    }
+
+    /**
+     * The size of the YUV output closest to the desired one, using the same criterion as the legacy
+     * backend.
+     */
+    Size selectSize(int desiredWidth, int desiredHeight) throws IOException {
+        Size[] sizes = details.getYuvSizes();
+        if (sizes.length == 0) {
+            throw new IOException("Could not find suitable preview size.");
+        }
+        Size selected = null;
+        int minDiff = Integer.MAX_VALUE;
+        for (Size size : sizes) {
+            int diff = Math.abs(size.getWidth() - desiredWidth) + Math.abs(size.getHeight() - desiredHeight);
+            if (diff < minDiff) {
+                selected = size;
+                minDiff = diff;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * The supported frame rate range closest to {@code fps}, using the same criterion as the legacy
+     * backend, or null to leave it to the camera.
+     */
+    @Nullable
+    private Range<Integer> selectFpsRange(float fps) {
+        if (fpsRanges == null) {
+            return null;
+        }
+        Range<Integer> selected = null;
+        float minDiff = Float.MAX_VALUE;
+        for (Range<Integer> range : fpsRanges) {
+            float diff = Math.abs(fps - range.getLower()) + Math.abs(fps - range.getUpper());
+            if (diff < minDiff) {
+                selected = range;
+                minDiff = diff;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Opens the camera, streaming to {@code texture} and to an image reader holding at most {@code
+     * maxImages} images, at about {@code fps} frames per second. Returns once the preview started.
+     *
+     * @param errorListener told about failures once opened, on the camera thread of the device
+     * @throws IOException if the camera could not be opened or the session configured, in which case
+     *                     the device is closed
+     */
+    void open(SurfaceTexture texture, Size size, int maxImages, float fps,
+              @Nullable CameraSource.ErrorListener errorListener) throws IOException {
+        this.errorListener = errorListener;
+        fpsRanges = details.getFpsRanges();
+        fpsRange = selectFpsRange(fps);
+        thread = new HandlerThread(TAG);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+
+        texture.setDefaultBufferSize(size.getWidth(), size.getHeight());
+        previewSurface = new Surface(texture);
+        imageReader = ImageReader.newInstance(
+                size.getWidth(), size.getHeight(), ImageFormat.YUV_420_888, maxImages);
+        frameSource = new ImageReaderFrameSource(
+                new ReaderImageSource(imageReader, handler), size.getWidth(), size.getHeight());
+
+        try {
+            manager.openCamera(cameraId, new DeviceCallback(), handler);
+        } catch (CameraAccessException | SecurityException e) {
+            close();
+            throw new IOException("Could not open the camera.", e);
+        }
+        openRequested = true;
+
+        boolean done;
+        try {
+            done = started.await(OPEN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new IOException("Interrupted while opening the camera.", e);
+        }
+        if (!done) {
+            close();
+            throw new IOException("Timed out opening the camera.");
+        }
+        if (startError != null) {
+            close();
+            throw new IOException(startError);
+        }
+    }
+
+    /**
+     * The frames of the image reader, valid once opened.
+     */
+    ImageReaderFrameSource getFrameSource() {
+        return frameSource;
+    }
+
+    void toggleTorch() {
+        if (handler == null) {
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                torch = !torch;
+                startRepeatingRequest();
+            }
+        });
+    }
+
+    /**
+     * Asks for the supported frame rate range closest to {@code fps}, if it isn't the current one.
+     */
+    void setFrameRate(final float fps) {
+        // Called from the frame listener, which may race with close().
+        Handler handler = this.handler;
+        if (handler == null) {
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Range<Integer> range = selectFpsRange(fps);
+                if (range != null && !range.equals(fpsRange)) {
+                    fpsRange = range;
+                    startRepeatingRequest();
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes the camera. Frame delivery must be stopped first. If the camera is still opening, waits
+     * for it to be opened so as to close it, as it would be left open once the camera thread quits.
+     */
+    void close() {
+        if (thread == null) {
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                closed = true;
+                if (session != null) {
+                    session.close();
+                    session = null;
+                }
+                if (device != null) {
+                    device.close();
+                    device = null;
+                }
+            }
+        });
+        try {
+            if (openRequested && !deviceCallback.await(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Camera still opening, it may be left open.");
+            }
+            thread.quitSafely();
+            thread.join();
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Interrupted while closing the camera.");
+            thread.quitSafely();
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        handler = null;
+        imageReader.close();
+        previewSurface.release();
+    }
+
+    /**
+     * Sets the repeating preview request of the session, returning whether it could.
+     */
+    private boolean startRepeatingRequest() {
+        if (session == null) {
+            return false;
+        }
+        try {
+            CaptureRequest.Builder request = device.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            request.addTarget(previewSurface);
+            request.addTarget(imageReader.getSurface());
+            request.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO);
+            if (fpsRange != null) {
+                request.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+            }
+            request.set(CaptureRequest.FLASH_MODE,
+                    torch ? CaptureRequest.FLASH_MODE_TORCH : CaptureRequest.FLASH_MODE_OFF);
+            session.setRepeatingRequest(request.build(), null, handler);
+            return true;
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.e(TAG, "Failed to start the camera preview.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Closes the device after a failure, and reports it to {@link #open} if it is still waiting,
+     * or else to the error listener, unless the device is being closed anyway. Runs on the camera
+     * thread.
+     */
+    private void fail(String message) {
+        Log.e(TAG, message);
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+        if (device != null) {
+            device.close();
+            device = null;
+        }
+        if (started.getCount() > 0) {
+            startError = message;
+            started.countDown();
+        } else if (!closed && errorListener != null) {
+            errorListener.onCameraError(message);
+        }
+    }
+
+    private class DeviceCallback extends CameraDevice.StateCallback {
+        @Override
+        public void onOpened(CameraDevice camera) {
+            deviceCallback.countDown();
+            if (closed) {
+                camera.close();
+                return;
+            }
+            device = camera;
+            try {
+                camera.createCaptureSession(
+                        Arrays.asList(previewSurface, imageReader.getSurface()),
+                        new SessionCallback(),
+                        handler);
+            } catch (CameraAccessException | IllegalStateException e) {
+                fail("Failed to create the capture session: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onDisconnected(CameraDevice camera) {
+            deviceCallback.countDown();
+            camera.close();
+            if (camera == device || device == null) {
+                fail("Camera disconnected.");
+            }
+        }
+
+        @Override
+        public void onError(CameraDevice camera, int error) {
+            deviceCallback.countDown();
+            camera.close();
+            if (camera == device || device == null) {
+                fail("Camera error: " + error);
+            }
+        }
+    }
+
+    private class SessionCallback extends CameraCaptureSession.StateCallback {
+        @Override
+        public void onConfigured(CameraCaptureSession configured) {
+            if (closed || device == null) {
+                configured.close();
+                return;
+            }
+            session = configured;
+            if (!startRepeatingRequest()) {
+                fail("Failed to start the camera preview.");
+                return;
+            }
+            started.countDown();
+        }
+
+        @Override
+        public void onConfigureFailed(CameraCaptureSession failed) {
+            if (!closed) {
+                fail("Failed to configure the capture session.");
+            }
+        }
+    }
+
+    /**
+     * The images of an {@link ImageReader}, for {@link ImageReaderFrameSource}.
+     */
+    private static class ReaderImageSource implements ImageReaderFrameSource.ImageSource {
+        private final ImageReader reader;
+        private final Handler handler;
+
+        ReaderImageSource(ImageReader reader, Handler handler) {
+            this.reader = reader;
+            this.handler = handler;
+        }
+
+        @Override
+        public void setListener(@Nullable final Listener listener) {
+            if (listener == null) {
+                reader.setOnImageAvailableListener(null, null);
+                return;
+            }
+            reader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    listener.onImageAvailable();
+                }
+            }, handler);
+        }
+
+        @Nullable
+        @Override
+        public ImageReaderFrameSource.LumaImage acquireLatestImage() {
+            Image image = reader.acquireLatestImage();
+            return image == null ? null : new YPlane(image);
+        }
+    }
+
+    private static class YPlane implements ImageReaderFrameSource.LumaImage {
+        private final Image image;
+        private final Image.Plane plane;
+
+        YPlane(Image image) {
+            this.image = image;
+            plane = image.getPlanes()[0];
+        }
+
+        @Override
+        public ByteBuffer getLuminance() {
+            return plane.getBuffer();
+        }
+
+        @Override
+        public int getRowStride() {
+            return plane.getRowStride();
+        }
+
+        @Override
+        public int getPixelStride() {
+            return plane.getPixelStride();
+        }
+
+        @Override
+        public void close() {
+            image.close();
+        }
+    }
+}
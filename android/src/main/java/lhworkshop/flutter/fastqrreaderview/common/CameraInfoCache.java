@@ -0,0 +1,253 @@
+package lhworkshop.flutter.fastqrreaderview.common;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import androidx.annotation.Nullable;
+
+/**
+ * The characteristics and output sizes of the cameras, queried once per process rather than each
+ * time the cameras are listed or one is opened, as querying them takes tens of milliseconds on
+ * some devices.
+ *
+ * <p>{@link #prefetch(Context)} loads them on a background thread, ahead of the first request.
+ * Requests made while they are loading wait for them. They are loaded again when a camera that
+ * wasn't there becomes available, e.g. an external one being plugged in.
+ */
+public final class CameraInfoCache {
+
+    private static final String TAG = "CameraInfoCache";
+
+    /**
+     * What is used of the characteristics of a camera2 camera.
+     */
+    public static final class CameraDetails {
+        private final String id;
+        private final int lensFacing;
+        private final int sensorOrientation;
+        private final Size[] yuvSizes;
+        private final Size[] textureSizes;
+        @Nullable
+        private final Range<Integer>[] fpsRanges;
+
+        CameraDetails(String id, CameraCharacteristics characteristics) {
+            this.id = id;
+            Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+            lensFacing = facing == null ? CameraCharacteristics.LENS_FACING_EXTERNAL : facing;
+            Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            sensorOrientation = orientation == null ? 0 : orientation;
+            StreamConfigurationMap map =
+                    characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            Size[] yuv = map == null ? null : map.getOutputSizes(ImageFormat.YUV_420_888);
+            yuvSizes = yuv == null ? new Size[0] : yuv;
+            Size[] texture = map == null ? null : map.getOutputSizes(SurfaceTexture.class);
+            textureSizes = texture == null ? new Size[0] : texture;
+            fpsRanges = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * One of the {@code CameraCharacteristics.LENS_FACING_*} constants.
+         */
+        public int getLensFacing() {
+            return lensFacing;
+        }
+
+        public int getSensorOrientation() {
+            return sensorOrientation;
+        }
+
+        /**
+         * The sizes of the {@code YUV_420_888} outputs. Not to be modified.
+         */
+        public Size[] getYuvSizes() {
+            return yuvSizes;
+        }
+
+        /**
+         * The sizes of the preview texture outputs. Not to be modified.
+         */
+        public Size[] getTextureSizes() {
+            return textureSizes;
+        }
+
+        @Nullable
+        Range<Integer>[] getFpsRanges() {
+            return fpsRanges;
+        }
+    }
+
+    /**
+     * The cameras of a load: the camera2 ones, and the facing and orientation of the legacy ones by
+     * index.
+     */
+    private static final class Snapshot {
+        final List<CameraDetails> cameras;
+        final int[] legacyFacing;
+        final int[] legacyOrientation;
+
+        Snapshot(List<CameraDetails> cameras, int[] legacyFacing, int[] legacyOrientation) {
+            this.cameras = cameras;
+            this.legacyFacing = legacyFacing;
+            this.legacyOrientation = legacyOrientation;
+        }
+    }
+
+    private static volatile Snapshot snapshot;
+    private static boolean prefetching;
+
+    private CameraInfoCache() {
+    }
+
+    /**
+     * Starts loading the cameras in the background, if they aren't loaded or loading yet, and
+     * watches for new ones. Must be called on a thread with a looper.
+     */
+    public static void prefetch(Context context) {
+        final Context applicationContext = context.getApplicationContext();
+        synchronized (CameraInfoCache.class) {
+            if (prefetching) {
+                return;
+            }
+            prefetching = true;
+        }
+        CameraManager manager = (CameraManager) applicationContext.getSystemService(Context.CAMERA_SERVICE);
+        manager.registerAvailabilityCallback(new CameraManager.AvailabilityCallback() {
+            @Override
+            public void onCameraAvailable(String cameraId) {
+                Snapshot loaded = snapshot;
+                if (loaded != null && find(loaded, cameraId) == null) {
+                    Log.d(TAG, "New camera " + cameraId + ", reloading the cameras.");
+                    invalidate(loaded);
+                }
+            }
+        }, new Handler(Looper.myLooper()));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    load(applicationContext);
+                } catch (CameraAccessException | RuntimeException e) {
+                    // Tried again on the first request.
+                    Log.w(TAG, "Failed to load the cameras: " + e);
+                }
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * The camera2 cameras, in the order of {@link CameraManager#getCameraIdList()}.
+     */
+    public static List<CameraDetails> getCameras(Context context) throws CameraAccessException {
+        return get(context).cameras;
+    }
+
+    /**
+     * The camera2 camera with the given id, or null if there is none.
+     */
+    @Nullable
+    public static CameraDetails getCamera(Context context, String id) throws CameraAccessException {
+        return find(get(context), id);
+    }
+
+    /**
+     * The first camera2 camera facing {@code lensFacing}, one of the {@code
+     * CameraCharacteristics.LENS_FACING_*} constants, or null if there is none.
+     */
+    @Nullable
+    static CameraDetails findCamera(Context context, int lensFacing) throws CameraAccessException {
+        for (CameraDetails camera : get(context).cameras) {
+            if (camera.lensFacing == lensFacing) {
+                return camera;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The index of the first legacy camera facing {@code facing}, one of the {@code
+     * CameraInfo.CAMERA_FACING_*} constants, or -1 if there is none.
+     */
+    static int getLegacyCameraId(Context context, int facing) throws CameraAccessException {
+        int[] legacyFacing = get(context).legacyFacing;
+        for (int i = 0; i < legacyFacing.length; i++) {
+            if (legacyFacing[i] == facing) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The sensor orientation of a legacy camera, by index.
+     */
+    static int getLegacyOrientation(Context context, int cameraId) throws CameraAccessException {
+        return get(context).legacyOrientation[cameraId];
+    }
+
+    private static Snapshot get(Context context) throws CameraAccessException {
+        Snapshot loaded = snapshot;
+        return loaded != null ? loaded : load(context.getApplicationContext());
+    }
+
+    @Nullable
+    private static CameraDetails find(Snapshot loaded, String id) {
+        for (CameraDetails camera : loaded.cameras) {
+            if (camera.id.equals(id)) {
+                return camera;
+            }
+        }
+        return null;
+    }
+
+    private static synchronized void invalidate(Snapshot loaded) {
+        if (snapshot == loaded) {
+            snapshot = null;
+        }
+    }
+
+    /**
+     * Loads the cameras, unless another thread just did while this one was waiting for it.
+     */
+    private static synchronized Snapshot load(Context context) throws CameraAccessException {
+        if (snapshot != null) {
+            return snapshot;
+        }
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        List<CameraDetails> cameras = new ArrayList<>();
+        for (String id : manager.getCameraIdList()) {
+            cameras.add(new CameraDetails(id, manager.getCameraCharacteristics(id)));
+        }
+
+        int count = Camera.getNumberOfCameras();
+        int[] legacyFacing = new int[count];
+        int[] legacyOrientation = new int[count];
+        Camera.CameraInfo info = new Camera.CameraInfo();
+        for (int i = 0; i < count; i++) {
+            Camera.getCameraInfo(i, info);
+            legacyFacing[i] = info.facing;
+            legacyOrientation[i] = info.orientation;
+        }
+
+        snapshot = new Snapshot(Collections.unmodifiableList(cameras), legacyFacing, legacyOrientation);
+        return snapshot;
+    }
+}
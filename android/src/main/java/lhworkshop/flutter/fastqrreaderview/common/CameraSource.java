@@ -19,26 +19,23 @@ import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.ImageFormat;
+import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.hardware.Camera.CameraInfo;
 import android.hardware.Camera.Parameters;
+import android.hardware.camera2.CameraAccessException;
 import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
 import android.view.WindowManager;
 
-import com.google.zxing.BinaryBitmap;
-import com.google.zxing.PlanarYUVLuminanceSource;
-import com.google.zxing.common.HybridBinarizer;
-
 import java.io.IOException;
-import java.lang.Thread.State;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.IdentityHashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresPermission;
@@ -57,6 +54,29 @@ public class CameraSource {
     @SuppressLint("InlinedApi")
     public static final int CAMERA_FACING_FRONT = CameraInfo.CAMERA_FACING_FRONT;
 
+    /**
+     * The camera API used to stream the preview and the frames to decode.
+     */
+    public enum Backend {
+        /**
+         * {@code android.hardware.Camera}, whose NV21 preview frames are copied into buffers.
+         */
+        LEGACY,
+        /**
+         * {@code android.hardware.camera2}, whose {@code YUV_420_888} images are decoded in place.
+         */
+        CAMERA2
+    }
+
+    /**
+     * Told about the camera failing once started, e.g. being disconnected or taken by another
+     * application. Failures to start are thrown by {@link #start()} instead. Called on the thread of
+     * the camera, after which the camera source must be stopped.
+     */
+    public interface ErrorListener {
+        void onCameraError(String message);
+    }
+
     private static final String TAG = "MIDemoApp:CameraSource";
 
     /**
@@ -74,23 +94,56 @@ public class CameraSource {
 
     protected Activity activity;
 
-    private Camera camera;
+    private volatile Camera camera;
+
+    // The open camera2 device, when using that backend.
+    @Nullable
+    private volatile Camera2Device camera2;
 
     protected int facing = CAMERA_FACING_BACK;
 
+    private Backend backend = Backend.LEGACY;
+
     /**
      * Rotation of the device, and thus the associated preview images captured from the device. See
      * Frame.Metadata#getRotation().
      */
     private int rotation;
 
+    /**
+     * Clockwise angle applied to the sensor image to display it, and whether the sensor image is
+     * mirrored before that rotation (front-facing cameras). Used to map the scan region from display
+     * coordinates back into the preview frame.
+     */
+    private int displayAngle;
+    private boolean displayMirrored;
+
     private Size previewSize;
 
+    /**
+     * The configuration the legacy camera was opened with, kept to open it again after {@link
+     * #stop()} without querying and selecting its sizes and frame rates again. Cleared when the
+     * facing or the requested preview size change.
+     */
+    @Nullable
+    private LegacyConfig legacyConfig;
+
+    /**
+     * Normalized region of the displayed preview that should be decoded, or null to decode the whole
+     * frame.
+     */
+    @Nullable
+    private RectF scanRegion;
+
+
     // These values may be requested by the caller.  Due to hardware limitations, we may need to
-    // select close, but not exactly the same values for these.
+    // select close, but not exactly the same values for these. With an adaptive frame rate, the
+    // camera starts at the requested one.
     private final float requestedFps = 20.0f;
-    private final int requestedPreviewWidth = 1280;
-    private final int requestedPreviewHeight = 960;
+    private final float minAdaptiveFps = 5.0f;
+    private final float maxAdaptiveFps = 30.0f;
+    private int requestedPreviewWidth = 1280;
+    private int requestedPreviewHeight = 960;
     private final boolean requestedAutoFocus = true;
 
     // These instances need to be held onto to avoid GC of their underlying resources.  Even though
@@ -106,31 +159,43 @@ public class CameraSource {
     private boolean usingSurfaceTexture;
 
     /**
-     * Dedicated thread and associated runnable for calling into the detector with frames, as the
-     * frames become available from the camera.
+     * Dedicated worker threads calling into the detector with frames, as the frames become available
+     * from the camera.
      */
-    private Thread processingThread;
+    private final DecodeEngine decodeEngine;
 
-    private final FrameProcessingRunnable processingRunnable;
-
-    private final Object processorLock = new Object();
-    // @GuardedBy("processorLock")
     private BarcodeScanningProcessor frameProcessor;
 
     /**
-     * Map to convert between a byte array, received from the camera, and its associated byte buffer.
-     * We use byte buffers internally because this is a more efficient way to call into native code
-     * later (avoids a potential copy).
-     *
-     * <p><b>Note:</b> uses IdentityHashMap here instead of HashMap because the behavior of an array's
-     * equals, hashCode and toString methods is both useless and unexpected. IdentityHashMap enforces
-     * identity ('==') check on the keys.
+     * Source of the decoded frames: the camera preview, unless another source was set with {@link
+     * #setFrameSource(FrameSource)}.
      */
-    private final Map<byte[], ByteBuffer> bytesToByteBuffer = new IdentityHashMap<>();
+    private final CameraFrameSource cameraFrameSource = new CameraFrameSource();
+    @Nullable
+    private FrameSource requestedFrameSource;
+    // The source frames are currently decoded from, to which the decode engine hands them back.
+    private volatile FrameSource frameSource;
+
+    // Number of preview buffers, or 0 for as many as the decode workers and the frame queue need.
+    private int previewBuffers;
+
+    // Whether the frame rate follows the decode time, see FrameRateGovernor.
+    private boolean adaptiveFrameRate = true;
+
+    @Nullable
+    private volatile ErrorListener errorListener;
+    private final CameraErrorForwarder cameraErrorForwarder = new CameraErrorForwarder();
 
     public CameraSource(Activity activity) {
+        this(activity, DecodeEngine.defaultWorkerCount());
+    }
+
+    /**
+     * @param decodeWorkers number of threads decoding frames concurrently
+     */
+    public CameraSource(Activity activity, int decodeWorkers) {
         this.activity = activity;
-        processingRunnable = new FrameProcessingRunnable();
+        decodeEngine = new DecodeEngine(decodeWorkers, new FrameSourceRecycler());
     }
 
     // ==============================================================================================
@@ -138,17 +203,17 @@ public class CameraSource {
     // ==============================================================================================
 
     /**
-     * Stops the camera and releases the resources of the camera and underlying detector.
+     * Stops the camera and releases the resources of the camera and underlying detector, including
+     * the preview buffers and decoders kept by {@link #stop()}.
      */
-    public void release() {
-        synchronized (processorLock) {
-            stop();
-            processingRunnable.release();
-            cleanScreen();
-
-            if (frameProcessor != null) {
-                frameProcessor.stop();
-            }
+    public synchronized void release() {
+        stop();
+        cleanScreen();
+        cameraFrameSource.releaseBuffers();
+        decodeEngine.release();
+
+        if (frameProcessor != null) {
+            frameProcessor.stop();
         }
     }
 
@@ -160,20 +225,23 @@ public class CameraSource {
      */
     @RequiresPermission(Manifest.permission.CAMERA)
     public synchronized CameraSource start() throws IOException {
-        if (camera != null) {
+        if (camera != null || camera2 != null) {
             return this;
         }
 
-        camera = createCamera();
         dummySurfaceTexture = new SurfaceTexture(DUMMY_TEXTURE_NAME);
+        if (backend == Backend.CAMERA2) {
+            openCamera2(dummySurfaceTexture);
+            usingSurfaceTexture = true;
+            startDecoding();
+            return this;
+        }
+        camera = createCamera();
         camera.setPreviewTexture(dummySurfaceTexture);
         usingSurfaceTexture = true;
         camera.startPreview();
 
-
-        processingThread = new Thread(processingRunnable);
-        processingRunnable.setActive(true);
-        processingThread.start();
+        startDecoding();
         return this;
     }
 
@@ -186,48 +254,62 @@ public class CameraSource {
      */
     @RequiresPermission(Manifest.permission.CAMERA)
     public synchronized CameraSource start(SurfaceTexture surfaceHolder) throws IOException {
-        if (camera != null) {
+        if (camera != null || camera2 != null) {
             return this;
         }
 
+        if (backend == Backend.CAMERA2) {
+            openCamera2(surfaceHolder);
+            startDecoding();
+            usingSurfaceTexture = false;
+            return this;
+        }
         camera = createCamera();
         camera.setPreviewTexture(surfaceHolder);
         camera.startPreview();
 
-        processingThread = new Thread(processingRunnable);
-        processingRunnable.setActive(true);
-        processingThread.start();
+        startDecoding();
 
         usingSurfaceTexture = false;
         return this;
     }
 
+    private void startDecoding() throws IOException {
+        FrameSource source = selectFrameSource();
+        frameSource = source;
+        updateScanCrop();
+        // Only the camera's own frames can come at another rate.
+        if (adaptiveFrameRate && requestedFrameSource == null) {
+            decodeEngine.setFrameRateGovernor(new FrameRateGovernor(
+                    decodeEngine.getWorkerCount(), requestedFps, minAdaptiveFps, maxAdaptiveFps,
+                    new CameraFrameRateListener()));
+        } else {
+            decodeEngine.setFrameRateGovernor(null);
+        }
+        decodeEngine.start();
+        source.start(decodeEngine);
+    }
+
     /**
      * Closes the camera and stops sending frames to the underlying frame detector.
      *
      * <p>This camera source may be restarted again by calling {@link #start()} or {@link
-     * #start(SurfaceTexture)}.
+     * #start(SurfaceTexture)}. The selected configuration, the preview buffers and the decoders are
+     * kept for then, so that only the camera itself is opened again.
      *
      * <p>Call {@link #release()} instead to completely shut down this camera source and release the
      * resources of the underlying detector.
      */
     public synchronized void stop() {
-        processingRunnable.setActive(false);
-        if (processingThread != null) {
-            try {
-                // Wait for the thread to complete to ensure that we can't have multiple threads
-                // executing at the same time (i.e., which would happen if we called start too
-                // quickly after stop).
-                processingThread.join();
-            } catch (InterruptedException e) {
-                Log.d(TAG, "Frame processing thread interrupted on release.");
-            }
-            processingThread = null;
+        // Waits for the frames being decoded, so no buffer is handed back to a released camera.
+        decodeEngine.stop();
+        if (frameSource != null) {
+            frameSource.stop();
+            frameSource = null;
         }
 
         if (camera != null) {
             camera.stopPreview();
-            camera.setPreviewCallbackWithBuffer(null);
             try {
                 if (usingSurfaceTexture) {
                     camera.setPreviewTexture(null);
@@ -240,9 +322,20 @@ public class CameraSource {
             camera.release();
             camera = null;
         }
+        if (camera2 != null) {
+            camera2.close();
+            camera2 = null;
+        }
+    }
 
-        // Release the reference to any image buffers, since these will no longer be in use.
-        bytesToByteBuffer.clear();
+    /**
+     * The source of the decoded frames: the requested one, or else the camera's.
+     */
+    private FrameSource selectFrameSource() {
+        if (requestedFrameSource != null) {
+            return requestedFrameSource;
+        }
+        return camera2 != null ? camera2.getFrameSource() : cameraFrameSource;
     }
 
     /**
@@ -252,9 +345,94 @@ public class CameraSource {
         if ((facing != CAMERA_FACING_BACK) && (facing != CAMERA_FACING_FRONT)) {
             throw new IllegalArgumentException("Invalid camera: " + facing);
         }
+        if (facing != this.facing) {
+            legacyConfig = null;
+        }
         this.facing = facing;
     }
 
+    /**
+     * Selects the camera API. Takes effect the next time the camera source is started.
+     */
+    public synchronized void setBackend(Backend backend) {
+        this.backend = backend;
+    }
+
+    public Backend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Sets the desired size of the preview frames, in the orientation of the camera sensor. The
+     * closest size the camera supports is used. Takes effect the next time the camera source is
+     * started.
+     */
+    public synchronized void setRequestedPreviewSize(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid preview size: " + width + "x" + height);
+        }
+        if (width != requestedPreviewWidth || height != requestedPreviewHeight) {
+            legacyConfig = null;
+        }
+        requestedPreviewWidth = width;
+        requestedPreviewHeight = height;
+    }
+
+    /**
+     * Skips frames that are blurred, or that barely changed since a frame decoded without a hit,
+     * before they are binarized. See {@link FrameGate}.
+     *
+     * @param minSharpness frames less sharp than this are skipped, 0 to decode blurred frames
+     * @param minChange    frames that changed less than this since a frame decoded without a hit
+     *                     are skipped, 0 to decode unchanged frames
+     */
+    public void setFrameGate(float minSharpness, float minChange) {
+        decodeEngine.setFrameGate(minSharpness == 0 && minChange == 0
+                ? null
+                : new FrameGate(minSharpness, minChange));
+    }
+
+    /**
+     * Whether to adapt the frame rate of the camera to the time it takes to decode frames, instead
+     * of keeping the requested rate. Takes effect the next time the camera source is started.
+     */
+    public synchronized void setAdaptiveFrameRate(boolean adaptive) {
+        adaptiveFrameRate = adaptive;
+    }
+
+    /**
+     * Sets how frames wait for a decode worker, see {@link DecodeEngine#setFrameQueue}. Must be
+     * called while the camera source is stopped.
+     */
+    public synchronized void setFrameQueue(DecodeEngine.FrameQueue queue, int size) {
+        decodeEngine.setFrameQueue(queue, size);
+    }
+
+    /**
+     * Sets the number of buffers the camera fills with preview frames, or the number of images of
+     * the camera2 reader, or 0 for the decode workers, the frame queue and the camera to each have
+     * theirs. With fewer, the camera misses frames while all buffers are in use, which is reported
+     * as {@code poolExhausted} by the scan stats. Takes effect the next time the camera source is
+     * started.
+     */
+    public synchronized void setPreviewBuffers(int count) {
+        if (count < 0 || count == 1) {
+            throw new IllegalArgumentException("Invalid preview buffer count: " + count);
+        }
+        previewBuffers = count;
+    }
+
+    /**
+     * Decodes the frames of {@code source} instead of the camera preview, which is still displayed,
+     * e.g. to replay a recording with {@link ReplayFrameSource}. Takes effect the next time the
+     * camera source is started.
+     *
+     * @param source the frames to decode, or null to decode the camera preview
+     */
+    public synchronized void setFrameSource(@Nullable FrameSource source) {
+        requestedFrameSource = source;
+    }
+
     /**
      * Returns the preview size that is currently in use by the underlying camera.
      */
@@ -266,9 +444,97 @@ public class CameraSource {
         return rotation;
     }
 
+    /**
+     * Restricts decoding to a region of the preview. The region is expressed in normalized
+     * coordinates (0..1) of the preview as it is displayed, i.e. after the display rotation and
+     * front-facing mirroring have been applied.
+     *
+     * @param region the region to decode, or null to decode the whole frame
+     */
+    public synchronized void setScanRegion(@Nullable RectF region) {
+        scanRegion = region == null ? null : new RectF(region);
+        updateScanCrop();
+    }
+
+    /**
+     * Maps the normalized display scan region into preview frame pixels and hands the result to the
+     * decode engine. Must be called whenever the scan region, preview size or rotation changes.
+     */
+    private void updateScanCrop() {
+        FrameSource source = selectFrameSource();
+        int width = source.getFrameWidth();
+        int height = source.getFrameHeight();
+        if (width == 0 || height == 0) {
+            return;
+        }
+        if (scanRegion == null) {
+            decodeEngine.setFrameMetadata(frameMetadataBuilder(width, height).build());
+            return;
+        }
+
+        // Undo the display rotation. A point (x, y) of the displayed image comes from the point
+        // below of the (possibly mirrored) sensor image.
+        float left, top, right, bottom;
+        switch (displayAngle) {
+            case 90:
+                left = scanRegion.top;
+                top = 1 - scanRegion.right;
+                right = scanRegion.bottom;
+                bottom = 1 - scanRegion.left;
+                break;
+            case 180:
+                left = 1 - scanRegion.right;
+                top = 1 - scanRegion.bottom;
+                right = 1 - scanRegion.left;
+                bottom = 1 - scanRegion.top;
+                break;
+            case 270:
+                left = 1 - scanRegion.bottom;
+                top = scanRegion.left;
+                right = 1 - scanRegion.top;
+                bottom = scanRegion.right;
+                break;
+            default:
+                left = scanRegion.left;
+                top = scanRegion.top;
+                right = scanRegion.right;
+                bottom = scanRegion.bottom;
+                break;
+        }
+        if (displayMirrored) {
+            float mirroredLeft = 1 - right;
+            right = 1 - left;
+            left = mirroredLeft;
+        }
+
+        int cropLeft = clamp(Math.round(left * width), 0, width - 1);
+        int cropTop = clamp(Math.round(top * height), 0, height - 1);
+        int cropRight = clamp(Math.round(right * width), cropLeft + 1, width);
+        int cropBottom = clamp(Math.round(bottom * height), cropTop + 1, height);
+        decodeEngine.setFrameMetadata(frameMetadataBuilder(width, height)
+                .setCrop(cropLeft, cropTop, cropRight - cropLeft, cropBottom - cropTop)
+                .build());
+    }
+
+    private FrameMetadata.Builder frameMetadataBuilder(int width, int height) {
+        return new FrameMetadata.Builder()
+                .setWidth(width)
+                .setHeight(height)
+                .setRotation(rotation)
+                .setCameraFacing(facing);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return value < min ? min : value > max ? max : value;
+    }
+
     @SuppressLint("MissingPermission")
     @RequiresPermission(Manifest.permission.CAMERA)
     public void toggleFlash() {
+        if (camera2 != null) {
+            camera2.toggleTorch();
+            return;
+        }
         Camera.Parameters p = camera.getParameters();
 
         if (p.getFlashMode() == Parameters.FLASH_MODE_ON) {
@@ -300,90 +566,139 @@ public class CameraSource {
     }
 
     /**
-     * Opens the camera and applies the user settings.
+     * Opens the camera and applies the user settings, selected when first opened.
      *
      * @throws IOException if camera cannot be found or preview cannot be processed
      */
     @SuppressLint("InlinedApi")
     private Camera createCamera() throws IOException {
-        int requestedCameraId = getIdForRequestedCamera(facing);
-        if (requestedCameraId == -1) {
-            throw new IOException("Could not find requested camera.");
+        LegacyConfig config = legacyConfig;
+        Camera camera;
+        if (config != null) {
+            camera = Camera.open(config.cameraId);
+        } else {
+            int requestedCameraId;
+            try {
+                requestedCameraId = CameraInfoCache.getLegacyCameraId(activity, facing);
+            } catch (CameraAccessException e) {
+                throw new IOException("Could not access the camera.", e);
+            }
+            if (requestedCameraId == -1) {
+                throw new IOException("Could not find requested camera.");
+            }
+            camera = Camera.open(requestedCameraId);
+            try {
+                config = selectLegacyConfig(camera, requestedCameraId);
+            } catch (IOException | RuntimeException e) {
+                camera.release();
+                throw e;
+            }
+            legacyConfig = config;
+        }
+        previewSize = config.previewSize;
+        camera.setErrorCallback(cameraErrorForwarder);
+
+        Camera.Parameters parameters = camera.getParameters();
+
+        if (config.pictureSize != null) {
+            parameters.setPictureSize(config.pictureSize.getWidth(), config.pictureSize.getHeight());
+        }
+        parameters.setPreviewSize(previewSize.getWidth(), previewSize.getHeight());
+        parameters.setPreviewFpsRange(
+                config.fpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                config.fpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+        parameters.setPreviewFormat(ImageFormat.NV21);
+
+        int angle = updateRotation(config.sensorOrientation, facing == CAMERA_FACING_FRONT);
+        camera.setDisplayOrientation(displayAngle);
+        parameters.setRotation(angle);
+        updateScanCrop();
+
+        if (config.continuousFocus) {
+            parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO);
         }
-        Camera camera = Camera.open(requestedCameraId);
 
+        camera.setParameters(parameters);
+
+        return camera;
+    }
+
+    /**
+     * The settings of the legacy camera selected from those it supports.
+     */
+    private static class LegacyConfig {
+        final int cameraId;
+        final int sensorOrientation;
+        final Size previewSize;
+        @Nullable
+        final Size pictureSize;
+        final int[] fpsRange;
+        final boolean continuousFocus;
+
+        LegacyConfig(int cameraId, int sensorOrientation, Size previewSize, @Nullable Size pictureSize,
+                     int[] fpsRange, boolean continuousFocus) {
+            this.cameraId = cameraId;
+            this.sensorOrientation = sensorOrientation;
+            this.previewSize = previewSize;
+            this.pictureSize = pictureSize;
+            this.fpsRange = fpsRange;
+            this.continuousFocus = continuousFocus;
+        }
+    }
+
+    /**
+     * Selects the sizes, frame rate range and focus mode of an open legacy camera.
+     */
+    private LegacyConfig selectLegacyConfig(Camera camera, int cameraId) throws IOException {
         SizePair sizePair = selectSizePair(camera, requestedPreviewWidth, requestedPreviewHeight);
         if (sizePair == null) {
             throw new IOException("Could not find suitable preview size.");
         }
-        Size pictureSize = sizePair.pictureSize();
-        previewSize = sizePair.previewSize();
 
         int[] previewFpsRange = selectPreviewFpsRange(camera, requestedFps);
         if (previewFpsRange == null) {
             throw new IOException("Could not find suitable preview frames per second range.");
         }
 
-        Camera.Parameters parameters = camera.getParameters();
-
-        if (pictureSize != null) {
-            parameters.setPictureSize(pictureSize.getWidth(), pictureSize.getHeight());
+        int sensorOrientation;
+        try {
+            sensorOrientation = CameraInfoCache.getLegacyOrientation(activity, cameraId);
+        } catch (CameraAccessException e) {
+            throw new IOException("Could not access the camera.", e);
         }
-        parameters.setPreviewSize(previewSize.getWidth(), previewSize.getHeight());
-        parameters.setPreviewFpsRange(
-                previewFpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
-                previewFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
-        parameters.setPreviewFormat(ImageFormat.NV21);
-
-        setRotation(camera, parameters, requestedCameraId);
 
+        boolean continuousFocus = false;
         if (requestedAutoFocus) {
-            if (parameters
+            if (camera.getParameters()
                     .getSupportedFocusModes()
                     .contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO)) {
-                parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO);
+                continuousFocus = true;
             } else {
                 Log.i(TAG, "Camera auto focus is not supported on this device.");
             }
         }
 
-        camera.setParameters(parameters);
-
-        // Four frame buffers are needed for working with the camera:
-        //
-        //   one for the frame that is currently being executed upon in doing detection
-        //   one for the next pending frame to process immediately upon completing detection
-        //   two for the frames that the camera uses to populate future preview images
-        //
-        // Through trial and error it appears that two free buffers, in addition to the two buffers
-        // used in this code, are needed for the camera to work properly.  Perhaps the camera has
-        // one thread for acquiring images, and another thread for calling into user code.  If only
-        // three buffers are used, then the camera will spew thousands of warning messages when
-        // detection takes a non-trivial amount of time.
-        camera.setPreviewCallbackWithBuffer(new CameraPreviewCallback());
-        camera.addCallbackBuffer(createPreviewBuffer(previewSize));
-        camera.addCallbackBuffer(createPreviewBuffer(previewSize));
-        camera.addCallbackBuffer(createPreviewBuffer(previewSize));
-        camera.addCallbackBuffer(createPreviewBuffer(previewSize));
-
-        return camera;
+        return new LegacyConfig(cameraId, sensorOrientation, sizePair.previewSize(), sizePair.pictureSize(),
+                previewFpsRange, continuousFocus);
     }
 
     /**
-     * Gets the id for the camera specified by the direction it is facing. Returns -1 if no such
-     * camera was found.
-     *
-     * @param facing the desired camera (front-facing or rear-facing)
-     */
-    private static int getIdForRequestedCamera(int facing) {
-        CameraInfo cameraInfo = new CameraInfo();
-        for (int i = 0; i < Camera.getNumberOfCameras(); ++i) {
-            Camera.getCameraInfo(i, cameraInfo);
-            if (cameraInfo.facing == facing) {
-                return i;
-            }
+     * Follows a change of the display rotation without reopening the camera: the preview of the
+     * legacy camera is turned, and the decoders are given the new rotation of the frames.
+     */
+    public synchronized void updateDisplayRotation() {
+        if (camera != null && legacyConfig != null) {
+            int angle = updateRotation(legacyConfig.sensorOrientation, facing == CAMERA_FACING_FRONT);
+            camera.setDisplayOrientation(displayAngle);
+            Camera.Parameters parameters = camera.getParameters();
+            parameters.setRotation(angle);
+            camera.setParameters(parameters);
+        } else if (camera2 != null) {
+            updateRotation(camera2.getSensorOrientation(), camera2.isFrontFacing());
+        } else {
+            return;
         }
-        return -1;
+        updateScanCrop();
     }
 
     /**
@@ -529,13 +844,12 @@ public class CameraSource {
     }
 
     /**
-     * Calculates the correct rotation for the given camera id and sets the rotation in the
-     * parameters. It also sets the camera's display orientation and rotation.
+     * Computes the rotation of the frames and the display angle of the preview, from the
+     * orientation of the camera sensor and that of the display.
      *
-     * @param parameters the camera parameters for which to set the rotation
-     * @param cameraId   the camera id to set rotation based on
+     * @return the clockwise angle to rotate the frames by to have them upright
      */
-    private void setRotation(Camera camera, Camera.Parameters parameters, int cameraId) {
+    private int updateRotation(int sensorOrientation, boolean frontFacing) {
         WindowManager windowManager = (WindowManager) activity.getSystemService(Context.WINDOW_SERVICE);
         int degrees = 0;
         int rotation = windowManager.getDefaultDisplay().getRotation();
@@ -556,34 +870,52 @@ public class CameraSource {
                 Log.e(TAG, "Bad rotation value: " + rotation);
         }
 
-        CameraInfo cameraInfo = new CameraInfo();
-        Camera.getCameraInfo(cameraId, cameraInfo);
-
         int angle;
         int displayAngle;
-        if (cameraInfo.facing == CameraInfo.CAMERA_FACING_FRONT) {
-            angle = (cameraInfo.orientation + degrees) % 360;
+        if (frontFacing) {
+            angle = (sensorOrientation + degrees) % 360;
             displayAngle = (360 - angle) % 360; // compensate for it being mirrored
         } else { // back-facing
-            angle = (cameraInfo.orientation - degrees + 360) % 360;
+            angle = (sensorOrientation - degrees + 360) % 360;
             displayAngle = angle;
         }
 
         // This corresponds to the rotation constants.
         this.rotation = angle / 90;
+        this.displayAngle = displayAngle;
+        this.displayMirrored = frontFacing;
+        return angle;
+    }
 
-        camera.setDisplayOrientation(displayAngle);
-        parameters.setRotation(angle);
+    /**
+     * Opens the camera with the camera2 backend, streaming the preview to {@code texture}.
+     */
+    private void openCamera2(SurfaceTexture texture) throws IOException {
+        Camera2Device device = new Camera2Device(activity, facing);
+        Size size = device.selectSize(requestedPreviewWidth, requestedPreviewHeight);
+        device.open(
+                texture,
+                size,
+                previewBuffers > 0
+                        ? previewBuffers
+                        : ImageReaderFrameSource.maxImagesFor(
+                                decodeEngine.getWorkerCount(), decodeEngine.getFrameQueueCapacity()),
+                requestedFps,
+                cameraErrorForwarder);
+        camera2 = device;
+        previewSize = size;
+        updateRotation(device.getSensorOrientation(), device.isFrontFacing());
     }
 
     /**
      * Creates one buffer for the camera preview callback. The size of the buffer is based off of the
-     * camera preview size and the format of the camera image.
+     * camera preview size and the format of the camera image. We use byte buffers internally
+     * because this is a more efficient way to call into native code later (avoids a potential copy).
      *
      * @return a new preview buffer of the appropriate size for the current camera settings
      */
     @SuppressLint("InlinedApi")
-    private byte[] createPreviewBuffer(Size previewSize) {
+    private ByteBuffer createPreviewBuffer(Size previewSize) {
         int bitsPerPixel = ImageFormat.getBitsPerPixel(ImageFormat.NV21);
         long sizeInBits = (long) previewSize.getHeight() * previewSize.getWidth() * bitsPerPixel;
         int bufferSize = (int) Math.ceil(sizeInBits / 8.0d) + 1;
@@ -597,9 +929,7 @@ public class CameraSource {
             // passing the preview content to the underlying detector later.
             throw new IllegalStateException("Failed to create valid buffer for camera source.");
         }
-
-        bytesToByteBuffer.put(byteArray, buffer);
-        return byteArray;
+        return buffer;
     }
 
     // ==============================================================================================
@@ -612,159 +942,215 @@ public class CameraSource {
     private class CameraPreviewCallback implements Camera.PreviewCallback {
         @Override
         public void onPreviewFrame(byte[] data, Camera camera) {
-            processingRunnable.setNextFrame(data, camera);
-        }
-    }
-
-    public void setFrameProcessor(BarcodeScanningProcessor processor) {
-        synchronized (processorLock) {
-            cleanScreen();
-            if (frameProcessor != null) {
-                frameProcessor.stop();
+            ByteBuffer buffer = cameraFrameSource.take(data);
+            if (buffer == null) {
+                Log.d(
+                        TAG,
+                        "Skipping frame. Could not find ByteBuffer associated with the image "
+                                + "data from the camera.");
+                return;
             }
-            frameProcessor = processor;
+            decodeEngine.setNextFrame(buffer);
         }
     }
 
     /**
-     * This runnable controls access to the underlying receiver, calling it to process frames when
-     * available from the camera. This is designed to run detection on frames as fast as possible
-     * (i.e., without unnecessary context switching or waiting on the next frame).
-     *
-     * <p>While detection is running on a frame, new frames may be received from the camera. As these
-     * frames come in, the most recent frame is held onto as pending. As soon as detection and its
-     * associated processing is done for the previous frame, detection on the mostly recently received
-     * frame will immediately start on the same thread.
+     * The preview frames of the camera.
      */
-    private class FrameProcessingRunnable implements Runnable {
+    private class CameraFrameSource implements FrameSource {
+        // The preview buffers, kept across stop() and start(), and the preview size they fit. The
+        // camera hands back the arrays, which are looked up by index: with a handful of buffers,
+        // comparing references beats hashing them.
+        private byte[][] buffers;
+        private ByteBuffer[] frames;
+        @Nullable
+        private Size bufferSize;
+        // Buffers the camera holds to fill with the next frames.
+        private final AtomicInteger cameraBuffers = new AtomicInteger();
 
-        // This lock guards all of the member variables below.
-        private final Object lock = new Object();
-        private boolean active = true;
+        @Override
+        public int getFrameWidth() {
+            return previewSize == null ? 0 : previewSize.getWidth();
+        }
 
-        // These pending variables hold the state associated with the new frame awaiting processing.
-        private ByteBuffer pendingFrameData;
+        @Override
+        public int getFrameHeight() {
+            return previewSize == null ? 0 : previewSize.getHeight();
+        }
 
-        FrameProcessingRunnable() {
+        @Override
+        public void start(FrameSink engine) {
+            // Frame buffers needed for working with the camera:
+            //
+            //   one per decode worker for the frames that are currently being executed upon
+            //   one for the next pending frame to process immediately upon completing detection
+            //   two for the frames that the camera uses to populate future preview images
+            //
+            // Through trial and error it appears that two free buffers, in addition to the buffers
+            // used in this code, are needed for the camera to work properly.  Perhaps the camera
+            // has one thread for acquiring images, and another thread for calling into user code.
+            // If fewer buffers are used, then the camera will spew thousands of warning messages
+            // when detection takes a non-trivial amount of time.
+            //
+            // A deeper frame queue keeps that many pending frames instead of one, unless the number
+            // of buffers is set with setPreviewBuffers().
+            camera.setPreviewCallbackWithBuffer(new CameraPreviewCallback());
+            int bufferCount = previewBuffers > 0
+                    ? previewBuffers
+                    : engine.getWorkerCount() + engine.getFrameQueueCapacity() + 2;
+            // The buffers of the last start are reused if the preview size is the same. They are
+            // all free again, as the decode engine handed them all back when stopped.
+            if (bufferSize != null && (!bufferSize.equals(previewSize) || buffers.length != bufferCount)) {
+                releaseBuffers();
+            }
+            if (bufferSize == null) {
+                buffers = new byte[bufferCount][];
+                frames = new ByteBuffer[bufferCount];
+                for (int i = 0; i < bufferCount; i++) {
+                    frames[i] = createPreviewBuffer(previewSize);
+                    buffers[i] = frames[i].array();
+                }
+                bufferSize = previewSize;
+            }
+            cameraBuffers.set(bufferCount);
+            for (byte[] buffer : buffers) {
+                camera.addCallbackBuffer(buffer);
+            }
         }
 
         /**
-         * Releases the underlying receiver. This is only safe to do after the associated thread has
-         * completed, which is managed in camera source's release method above.
+         * Returns the frame of a buffer filled by the camera, or null if it isn't one of the
+         * preview buffers, and counts the pool as exhausted if the camera has no buffer left.
          */
-        @SuppressLint("Assert")
-        void release() {
-            assert (processingThread.getState() == State.TERMINATED);
+        @Nullable
+        ByteBuffer take(byte[] data) {
+            byte[][] current = buffers;
+            if (current == null) {
+                return null;
+            }
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == data) {
+                    if (cameraBuffers.decrementAndGet() == 0) {
+                        decodeEngine.recordPoolExhausted();
+                    }
+                    return frames[i];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void stop() {
+            Camera camera = CameraSource.this.camera;
+            if (camera != null) {
+                camera.setPreviewCallbackWithBuffer(null);
+            }
         }
 
         /**
-         * Marks the runnable as active/not active. Signals any blocked threads to continue.
+         * Drops the buffers kept for the next start.
          */
-        void setActive(boolean active) {
-            synchronized (lock) {
-                this.active = active;
-                lock.notifyAll();
-            }
+        void releaseBuffers() {
+            buffers = null;
+            frames = null;
+            bufferSize = null;
         }
 
         /**
-         * Sets the frame data received from the camera. This adds the previous unused frame buffer (if
-         * present) back to the camera, and keeps a pending reference to the frame data for future use.
+         * Adds the frame buffers the decode engine is done with back to the camera.
          */
-        void setNextFrame(byte[] data, Camera camera) {
-            synchronized (lock) {
-                if (pendingFrameData != null) {
-                    camera.addCallbackBuffer(pendingFrameData.array());
-                    pendingFrameData = null;
-                }
+        @Override
+        public void recycle(ByteBuffer frame) {
+            Camera camera = CameraSource.this.camera;
+            if (camera != null) {
+                cameraBuffers.incrementAndGet();
+                camera.addCallbackBuffer(frame.array());
+            }
+        }
+    }
 
-                if (!bytesToByteBuffer.containsKey(data)) {
-                    Log.d(
-                            TAG,
-                            "Skipping frame. Could not find ByteBuffer associated with the image "
-                                    + "data from the camera.");
+    /**
+     * Asks the camera for the frame rate chosen by the governor. Called on the thread receiving
+     * the frames, so the camera is open.
+     */
+    private class CameraFrameRateListener implements FrameRateGovernor.Listener {
+        @Override
+        public void onFrameRateChanged(float fps) {
+            Camera2Device camera2 = CameraSource.this.camera2;
+            if (camera2 != null) {
+                camera2.setFrameRate(fps);
+                return;
+            }
+            Camera camera = CameraSource.this.camera;
+            if (camera == null) {
+                return;
+            }
+            try {
+                int[] range = selectPreviewFpsRange(camera, fps);
+                Camera.Parameters parameters = camera.getParameters();
+                int[] current = new int[2];
+                parameters.getPreviewFpsRange(current);
+                if (range == null || Arrays.equals(range, current)) {
                     return;
                 }
+                parameters.setPreviewFpsRange(
+                        range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                        range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+                camera.setParameters(parameters);
+            } catch (RuntimeException e) {
+                // Some devices refuse to change the range while previewing; frames are then
+                // decoded at the interval set by the governor.
+                Log.w(TAG, "Failed to change the preview frame rate: " + e);
+            }
+        }
+    }
 
-                pendingFrameData = bytesToByteBuffer.get(data);
-
-                // Notify the processor thread if it is waiting on the next frame (see below).
-                lock.notifyAll();
+    /**
+     * Hands the frame buffers the decode engine is done with back to the source they come from.
+     */
+    private class FrameSourceRecycler implements DecodeEngine.FrameRecycler {
+        @Override
+        public void recycle(ByteBuffer frame) {
+            FrameSource source = frameSource;
+            if (source != null) {
+                source.recycle(frame);
             }
         }
+    }
 
-        /**
-         * As long as the processing thread is active, this executes detection on frames continuously.
-         * The next pending frame is either immediately available or hasn't been received yet. Once it
-         * is available, we transfer the frame info to local variables and run detection on that frame.
-         * It immediately loops back for the next frame without pausing.
-         *
-         * <p>If detection takes longer than the time in between new frames from the camera, this will
-         * mean that this loop will run without ever waiting on a frame, avoiding any context switching
-         * or frame acquisition time latency.
-         *
-         * <p>If you find that this is using more CPU than you'd like, you should probably decrease the
-         * FPS setting above to allow for some idle time in between frames.
-         */
-        @SuppressLint("InlinedApi")
-        @SuppressWarnings("GuardedBy")
+    /**
+     * Reports the camera failures of either backend to the error listener, when there's one.
+     */
+    private class CameraErrorForwarder implements ErrorListener, Camera.ErrorCallback {
         @Override
-        public void run() {
-            ByteBuffer data;
-
-            while (true) {
-                synchronized (lock) {
-                    while (active && (pendingFrameData == null)) {
-                        try {
-                            // Wait for the next frame to be received from the camera, since we
-                            // don't have it yet.
-                            lock.wait();
-                        } catch (InterruptedException e) {
-                            Log.d(TAG, "Frame processing loop terminated.", e);
-                            return;
-                        }
-                    }
+        public void onCameraError(String message) {
+            ErrorListener listener = errorListener;
+            if (listener != null) {
+                listener.onCameraError(message);
+            }
+        }
 
-                    if (!active) {
-                        // Exit the loop once this camera source is stopped or released.  We check
-                        // this here, immediately after the wait() above, to handle the case where
-                        // setActive(false) had been called, triggering the termination of this
-                        // loop.
-                        return;
-                    }
+        @Override
+        public void onError(int error, Camera camera) {
+            onCameraError(error == Camera.CAMERA_ERROR_SERVER_DIED
+                    ? "Camera service died."
+                    : "Camera error: " + error);
+        }
+    }
 
-                    // Hold onto the frame data locally, so that we can use this for detection
-                    // below.  We need to clear pendingFrameData to ensure that this buffer isn't
-                    // recycled back to the camera before we are done using that data.
-                    data = pendingFrameData;
-                    pendingFrameData = null;
-                }
+    /**
+     * Sets the listener told about the camera failing once started, or null for none.
+     */
+    public void setErrorListener(@Nullable ErrorListener listener) {
+        errorListener = listener;
+    }
 
-                // The code below needs to run outside of synchronization, because this will allow
-                // the camera to add pending frame(s) while we are running detection on the current
-                // frame.
-
-                try {
-                    synchronized (processorLock) {
-                        frameProcessor.detectInImage(new BinaryBitmap(new HybridBinarizer(
-                                new PlanarYUVLuminanceSource(
-                                        data.array(),
-                                        previewSize.getWidth(),
-                                        previewSize.getHeight(),
-                                        0,
-                                        0,
-                                        previewSize.getWidth(),
-                                        previewSize.getHeight(),
-                                        facing == CAMERA_FACING_FRONT)
-                        )));
-                    }
-                } catch (Throwable t) {
-                    Log.e(TAG, "Exception thrown from receiver.", t);
-                } finally {
-                    camera.addCallbackBuffer(data.array());
-                }
-            }
+    public void setFrameProcessor(BarcodeScanningProcessor processor) {
+        synchronized (this) {
+            cleanScreen();
+            frameProcessor = processor;
         }
+        decodeEngine.setFrameProcessor(processor);
     }
 
     /**
@@ -0,0 +1,537 @@
+package lhworkshop.flutter.fastqrreaderview.common;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+import androidx.annotation.Nullable;
+
+import lhworkshop.flutter.fastqrreaderview.java.barcodescanning.BarcodeScanningProcessor;
+import lhworkshop.flutter.fastqrreaderview.java.barcodescanning.FrameDecoder;
+import lhworkshop.flutter.fastqrreaderview.java.barcodescanning.ScanStats;
+
+/**
+ * Decodes frames on a pool of worker threads. Frames are handed over with {@link
+ * #setNextFrame(ByteBuffer)} and kept pending until an idle worker picks them up, as set by {@link
+ * #setFrameQueue(FrameQueue, int)}: by default only the most recent frame is kept pending. Each
+ * worker owns its own {@link FrameDecoder}, so a slow decode on one worker doesn't stall the others.
+ *
+ * <p>With a {@link FrameRateGovernor}, frames arriving faster than the workers can decode them are
+ * handed back right away rather than made pending, and the governor is told how long decodes take.
+ *
+ * <p>With a {@link FrameGate}, frames are checked before being binarized, and blurred or unchanged
+ * frames are handed back without being decoded.
+ *
+ * <p>Frame buffers are handed back through the {@link FrameRecycler} once they are no longer used,
+ * either after being decoded or after being replaced by a newer pending frame.
+ *
+ * <p>Stopping cancels the decodes in progress, see {@link FrameDecoder#cancel()}, so that it only
+ * waits for the reader each worker is running rather than for whole decodes. The decoders and
+ * frame contexts of the workers are kept, so that starting again only starts the threads, until
+ * {@link #release()}.
+ */
+public class DecodeEngine implements FrameSink {
+
+    private static final String TAG = "DecodeEngine";
+
+    /**
+     * Receives the frame buffers the engine is done with.
+     */
+    public interface FrameRecycler {
+        void recycle(ByteBuffer frame);
+    }
+
+    /**
+     * How frames wait for a worker.
+     */
+    public enum FrameQueue {
+        /**
+         * A single frame is kept pending, and replaced by each newer frame, so workers always decode
+         * the most recent frame.
+         */
+        LATEST,
+        /**
+         * A few frames are kept pending, and decoded in the order they arrived. When the queue is
+         * full, the oldest pending frame is replaced.
+         */
+        FIFO
+    }
+
+    /**
+     * Maximum number of pending frames.
+     */
+    public static final int MAX_QUEUED_FRAMES = 8;
+
+    private final int workerCount;
+    private final FrameRecycler recycler;
+
+    private Thread[] workerThreads;
+    // Kept across stop() and start(), with their decoders and frame buffers.
+    private FrameProcessingRunnable[] workers;
+
+    @Nullable
+    private volatile FrameRateGovernor frameRateGovernor;
+    @Nullable
+    private volatile FrameGate frameGate;
+
+    // This lock guards all of the member variables below.
+    private final Object lock = new Object();
+    private boolean active;
+
+    // The frames awaiting processing, oldest first, in a ring of the capacity of the frame queue,
+    // and the times they were received.
+    private ByteBuffer[] pendingFrames = new ByteBuffer[1];
+    private long[] pendingNanos = new long[1];
+    private int pendingHead;
+    private int pendingCount;
+    // Number of threads in awaitPendingFrameTaken().
+    private int pendingFrameWaiters;
+
+    private BarcodeScanningProcessor frameProcessor;
+    // The metadata set by the camera source, and the same with the row stride of the frame source
+    // applied, which is the one handed to the workers.
+    private FrameMetadata requestedMetadata;
+    private FrameMetadata frameMetadata;
+    private int frameRowStride;
+    private int framePixelStride;
+
+    /**
+     * @param workerCount number of decode threads, see {@link #defaultWorkerCount()}
+     * @param recycler    receives frame buffers once the engine is done with them
+     */
+    public DecodeEngine(int workerCount, FrameRecycler recycler) {
+        if (workerCount < 1 || workerCount > BarcodeScanningProcessor.MAX_FRAMES_IN_FLIGHT) {
+            throw new IllegalArgumentException("Invalid decode worker count: " + workerCount);
+        }
+        this.workerCount = workerCount;
+        this.recycler = recycler;
+    }
+
+    /**
+     * One worker per core, leaving one core for the camera and the UI.
+     */
+    public static int defaultWorkerCount() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(cores - 1, BarcodeScanningProcessor.MAX_FRAMES_IN_FLIGHT));
+    }
+
+    @Override
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * Sets how frames wait for a worker. {@code size} is the number of frames kept pending by a
+     * {@link FrameQueue#FIFO} queue, a {@link FrameQueue#LATEST} one keeping a single frame. The
+     * engine must be stopped.
+     */
+    public void setFrameQueue(FrameQueue queue, int size) {
+        if (size < 1 || size > MAX_QUEUED_FRAMES) {
+            throw new IllegalArgumentException("Invalid frame queue size: " + size);
+        }
+        int capacity = queue == FrameQueue.LATEST ? 1 : size;
+        synchronized (lock) {
+            if (workerThreads != null) {
+                throw new IllegalStateException("The frame queue can't change while decoding.");
+            }
+            if (capacity != pendingFrames.length) {
+                pendingFrames = new ByteBuffer[capacity];
+                pendingNanos = new long[capacity];
+                pendingHead = 0;
+                pendingCount = 0;
+            }
+        }
+    }
+
+    /**
+     * The number of frames that can be pending, which a frame source needs buffers for on top of
+     * those being decoded.
+     */
+    @Override
+    public int getFrameQueueCapacity() {
+        synchronized (lock) {
+            return pendingFrames.length;
+        }
+    }
+
+    public void setFrameProcessor(BarcodeScanningProcessor processor) {
+        synchronized (lock) {
+            if (frameProcessor != null) {
+                frameProcessor.stop();
+            }
+            frameProcessor = processor;
+        }
+    }
+
+    /**
+     * Sets the size and decode region of the frames handed to {@link #setNextFrame(ByteBuffer)}.
+     */
+    public void setFrameMetadata(FrameMetadata metadata) {
+        synchronized (lock) {
+            requestedMetadata = metadata;
+            updateFrameMetadata();
+        }
+    }
+
+    /**
+     * Sets the layout of the luminance of the frames, for frame sources that only learn it from
+     * their first frame, e.g. whether rows are padded. Zero, the default, keeps the layout of the
+     * frame metadata.
+     */
+    @Override
+    public void setFrameStrides(int rowStride, int pixelStride) {
+        synchronized (lock) {
+            frameRowStride = rowStride;
+            framePixelStride = pixelStride;
+            updateFrameMetadata();
+        }
+    }
+
+    private void updateFrameMetadata() {
+        if (requestedMetadata == null || (frameRowStride == 0 && framePixelStride == 0)) {
+            frameMetadata = requestedMetadata;
+        } else {
+            frameMetadata = new FrameMetadata.Builder(requestedMetadata)
+                    .setRowStride(frameRowStride)
+                    .setPixelStride(Math.max(framePixelStride, 1))
+                    .build();
+        }
+    }
+
+    /**
+     * Sets the governor adapting the frame rate to the decode time, or null to decode every frame
+     * an idle worker finds.
+     */
+    public void setFrameRateGovernor(@Nullable FrameRateGovernor governor) {
+        frameRateGovernor = governor;
+    }
+
+    /**
+     * Sets the check skipping frames not worth decoding, or null to decode every frame.
+     */
+    public void setFrameGate(@Nullable FrameGate gate) {
+        frameGate = gate;
+    }
+
+    /**
+     * Starts the worker threads.
+     */
+    public void start() {
+        synchronized (lock) {
+            if (workerThreads != null) {
+                return;
+            }
+            active = true;
+            workerThreads = new Thread[workerCount];
+            if (workers == null) {
+                workers = new FrameProcessingRunnable[workerCount];
+                for (int i = 0; i < workerCount; i++) {
+                    workers[i] = new FrameProcessingRunnable();
+                }
+            }
+            for (int i = 0; i < workerCount; i++) {
+                workers[i].resume();
+                workerThreads[i] = new Thread(workers[i], TAG + "-" + i);
+                workerThreads[i].start();
+            }
+        }
+    }
+
+    /**
+     * Stops the worker threads, cancelling the decodes in progress and waiting for the workers to
+     * give them up, and recycles the pending frame.
+     */
+    public void stop() {
+        Thread[] threads;
+        synchronized (lock) {
+            active = false;
+            lock.notifyAll();
+            threads = workerThreads;
+            workerThreads = null;
+            if (threads != null) {
+                for (FrameProcessingRunnable worker : workers) {
+                    worker.cancel();
+                }
+            }
+        }
+        if (threads != null) {
+            for (Thread thread : threads) {
+                try {
+                    // Wait for the threads to complete to ensure that we can't have multiple
+                    // threads executing at the same time (i.e., which would happen if we called
+                    // start too quickly after stop).
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "Frame processing thread interrupted on release.");
+                }
+            }
+        }
+        synchronized (lock) {
+            while (pendingCount > 0) {
+                recycler.recycle(takePendingFrame());
+            }
+        }
+    }
+
+    /**
+     * Drops the decoders and frame contexts kept for the next start. The engine must be stopped.
+     */
+    public void release() {
+        synchronized (lock) {
+            if (workerThreads == null) {
+                workers = null;
+            }
+        }
+    }
+
+    /**
+     * Counts a frame the source couldn't deliver, as all of its buffers were in use, e.g. held by
+     * the workers and the frame queue.
+     */
+    @Override
+    public void recordPoolExhausted() {
+        synchronized (lock) {
+            if (frameProcessor != null) {
+                frameProcessor.stats.recordPoolExhausted();
+            }
+        }
+    }
+
+    /**
+     * Sets the frame data received from the camera. The frame is queued for the workers, replacing
+     * the oldest pending frame if the queue is full.
+     */
+    @Override
+    public void setNextFrame(ByteBuffer data) {
+        long start = System.nanoTime();
+        FrameRateGovernor governor = frameRateGovernor;
+        // Outside of the lock, as the governor may reconfigure the camera.
+        boolean decode = governor == null || governor.onFrame(start);
+        ScanStats stats;
+        synchronized (lock) {
+            stats = frameProcessor != null ? frameProcessor.stats : null;
+            if (stats != null) {
+                stats.recordFrameReceived();
+                if (governor != null) {
+                    stats.setFrameRate(
+                            governor.getTargetFps(), governor.getMeasuredFps(), governor.getDecodeInterval());
+                }
+            }
+            if (!decode) {
+                // The pending frame, if any, is still the one to decode next.
+                recycler.recycle(data);
+                if (stats != null) {
+                    stats.recordFrameSkipped();
+                }
+                return;
+            }
+            if (pendingCount == pendingFrames.length) {
+                recycler.recycle(takePendingFrame());
+                if (stats != null) {
+                    stats.recordFrameOverwritten();
+                }
+            }
+            if (!active) {
+                recycler.recycle(data);
+                return;
+            }
+
+            int tail = (pendingHead + pendingCount) % pendingFrames.length;
+            pendingFrames[tail] = data;
+            pendingNanos[tail] = start;
+            pendingCount++;
+
+            // Notify an idle worker if it is waiting on the next frame (see below).
+            lock.notify();
+        }
+        if (stats != null) {
+            stats.handoff.recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Waits until the frame queue has room, so that the next frame doesn't replace a pending one.
+     * For frame sources that can wait, unlike a camera, to have every frame decoded. Returns right
+     * away once the engine is stopped.
+     */
+    @Override
+    public void awaitPendingFrameTaken() throws InterruptedException {
+        synchronized (lock) {
+            pendingFrameWaiters++;
+            try {
+                while (active && pendingCount == pendingFrames.length) {
+                    lock.wait();
+                }
+            } finally {
+                pendingFrameWaiters--;
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest pending frame from the queue, which must not be empty.
+     */
+    private ByteBuffer takePendingFrame() {
+        ByteBuffer frame = pendingFrames[pendingHead];
+        pendingFrames[pendingHead] = null;
+        pendingHead = (pendingHead + 1) % pendingFrames.length;
+        pendingCount--;
+        return frame;
+    }
+
+    /**
+     * Runs detection on frames as fast as possible, without unnecessary context switching or
+     * waiting on the next frame. Each worker takes the oldest pending frame, the most recent one
+     * with the default queue, as soon as it is done with its previous one.
+     */
+    private class FrameProcessingRunnable implements Runnable {
+
+        // Written by the worker, and read by stop() to cancel the decode in progress.
+        private volatile FrameDecoder decoder;
+        private volatile boolean cancelled;
+        private final FrameContext frameContext = new FrameContext();
+        private final FrameGate.Sample gateSample = new FrameGate.Sample();
+
+        @Override
+        public void run() {
+            try {
+                loop();
+            } finally {
+                if (decoder != null) {
+                    decoder.stop();
+                }
+            }
+        }
+
+        private void loop() {
+            ByteBuffer data;
+            long sequence;
+            FrameMetadata metadata;
+            BarcodeScanningProcessor processor;
+
+            while (true) {
+                synchronized (lock) {
+                    while (active && (pendingCount == 0 || frameProcessor == null)) {
+                        try {
+                            // Wait for the next frame to be received from the camera, since we
+                            // don't have it yet.
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            Log.d(TAG, "Frame processing loop terminated.", e);
+                            return;
+                        }
+                    }
+
+                    if (!active) {
+                        // Exit the loop once the engine is stopped. We check this here,
+                        // immediately after the wait() above, to handle the case where stop()
+                        // had been called, triggering the termination of this loop.
+                        return;
+                    }
+
+                    // Take the oldest frame out of the queue, so that this buffer isn't recycled
+                    // before we are done using that data.
+                    long receivedNanos = pendingNanos[pendingHead];
+                    data = takePendingFrame();
+                    if (pendingFrameWaiters > 0) {
+                        lock.notifyAll();
+                    }
+                    metadata = frameMetadata;
+                    processor = frameProcessor;
+                    processor.stats.queueWait.recordNanos(System.nanoTime() - receivedNanos);
+                    // Numbered while holding the lock, so sequences follow capture order.
+                    sequence = processor.nextSequence();
+                }
+
+                // The code below needs to run outside of synchronization, because this will allow
+                // the camera and the other workers to go on while we are running detection on the
+                // current frame.
+
+                boolean handedOver = false;
+                try {
+                    if (decoder == null || decoder.getProcessor() != processor) {
+                        if (decoder != null) {
+                            decoder.stop();
+                        }
+                        decoder = processor.createDecoder();
+                        // Checked after publishing the decoder, so that either this or cancel()
+                        // sees the other.
+                        if (cancelled) {
+                            decoder.cancel();
+                        }
+                    }
+                    FrameRateGovernor governor = frameRateGovernor;
+                    FrameGate gate = frameGate;
+                    // Throttled frames are only taken to be handed back, they don't tell how
+                    // long decoding takes.
+                    boolean throttled = processor.shouldThrottle.get();
+                    long decodeStart = System.nanoTime();
+                    // Only the scan region is binarized and decoded.
+                    frameContext.setFrame(data, metadata, processor.getPyramidLevels());
+                    if (gate != null && !throttled && !passGate(gate, processor.stats, decodeStart)) {
+                        // Skipped, like a frame never handed over.
+                        continue;
+                    }
+                    handedOver = true;
+                    boolean hit = decoder.detectInImage(sequence, frameContext);
+                    if (gate != null && !throttled) {
+                        gate.onDecoded(gateSample, hit);
+                    }
+                    if (governor != null && !throttled) {
+                        governor.onFrameDecoded(System.nanoTime() - decodeStart);
+                    }
+                } catch (Throwable t) {
+                    Log.e(TAG, "Exception thrown from receiver.", t);
+                } finally {
+                    if (!handedOver) {
+                        processor.skip(sequence);
+                    }
+                    recycler.recycle(data);
+                }
+            }
+        }
+
+        /**
+         * Lets the worker decode again after {@link #cancel()}, before its thread is started.
+         */
+        void resume() {
+            cancelled = false;
+            FrameDecoder current = decoder;
+            if (current != null) {
+                current.resume();
+            }
+        }
+
+        /**
+         * Gives up the decode in progress, if any. The worker then exits, as the engine is no
+         * longer active.
+         */
+        void cancel() {
+            cancelled = true;
+            FrameDecoder current = decoder;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        /**
+         * Checks the current frame with the frame gate, and returns whether to decode it.
+         */
+        private boolean passGate(FrameGate gate, ScanStats stats, long start) {
+            FrameGate.measure(frameContext.getSource(), gateSample);
+            FrameGate.Verdict verdict = gate.check(gateSample);
+            stats.gate.recordNanos(System.nanoTime() - start);
+            stats.setFrameGateMeasures(gateSample.getSharpness(), gateSample.getChange());
+            switch (verdict) {
+                case BLURRED:
+                    stats.recordBlurredFrame();
+                    return false;
+                case UNCHANGED:
+                    stats.recordUnchangedFrame();
+                    return false;
+                default:
+                    return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package lhworkshop.flutter.fastqrreaderview.common;
+
+import com.google.zxing.BinaryBitmap;
+
+import java.nio.ByteBuffer;
+
+import lhworkshop.flutter.fastqrreaderview.java.barcodescanning.BinarizerStrategy;
+import lhworkshop.flutter.fastqrreaderview.java.barcodescanning.ImagePyramid;
+
+/**
+ * Per worker decoding state reused from one frame to the next: the luminance sources and both
+ * binarizers with their output matrices, for the full resolution frame and its downsampled levels. They are
+ * only reallocated when the frame geometry changes, so in steady state wrapping a frame only
+ * allocates the small {@link BinaryBitmap} holders (which ZXing doesn't allow to reuse, as they
+ * cache their matrix).
+ *
+ * <p>Lower resolution levels are box filtered from the full resolution luminance the first time
+ * they are requested for a frame.
+ *
+ * <p>The levels can be restricted to a region of the frame with {@link #setRegion(int, int, int,
+ * int)}. The region has its own levels, kept as long as its size doesn't change, so alternating
+ * between regions and whole frames doesn't reallocate them either.
+ *
+ * <p>Each level also keeps a view of itself rotated by a quarter turn, with its own binarizers, for
+ * reading 1D codes across the columns of portrait frames without rotating a bitmap every frame.
+ *
+ * <p>Not thread-safe, and the bitmaps of a frame are only valid until the next call to {@link
+ * #setFrame(ByteBuffer, FrameMetadata, int)}.
+ */
+public class FrameContext implements ImagePyramid {
+
+    /**
+     * Levels whose width or height would fall below this are not computed.
+     */
+    private static final int MINIMUM_LEVEL_DIMENSION = 40;
+
+    /**
+     * Deepest supported level, i.e. 4x downsampling.
+     */
+    public static final int MAX_LEVEL = 2;
+
+    /**
+     * The luminance of a level and its binarizers.
+     */
+    private static final class Level {
+        final FrameLuminanceSource source;
+        final ReusableHybridBinarizer hybridBinarizer;
+        final ReusableGlobalHistogramBinarizer globalBinarizer;
+        // The level rotated counterclockwise, created when first requested.
+        Level rotated;
+
+        Level(FrameLuminanceSource source) {
+            this.source = source;
+            hybridBinarizer = new ReusableHybridBinarizer(source);
+            globalBinarizer = new ReusableGlobalHistogramBinarizer(source);
+        }
+    }
+
+    // The levels of whole frames and of the region, and those of the current frame, i.e. either.
+    private final Level[] frameLevels = new Level[MAX_LEVEL + 1];
+    private final Level[] regionLevels = new Level[MAX_LEVEL + 1];
+    private Level[] levels = frameLevels;
+    private final boolean[] levelReady = new boolean[MAX_LEVEL + 1];
+    private int levelCount;
+    private int requestedLevels;
+    private int rotation;
+
+    /**
+     * Points this context at a new frame, laid out as {@code metadata} describes. The buffer may be
+     * direct, e.g. the Y plane of a camera image, as luminance is only read by index.
+     *
+     * @param levels number of downsampled levels to make available, on top of the full resolution
+     */
+    public void setFrame(ByteBuffer data, FrameMetadata metadata, int levels) {
+        if (frameLevels[0] == null || !frameLevels[0].source.matches(metadata)) {
+            clear(frameLevels);
+            clear(regionLevels);
+            frameLevels[0] = new Level(new FrameLuminanceSource(metadata));
+        }
+        frameLevels[0].source.setFrame(data);
+        requestedLevels = levels;
+        rotation = metadata.getRotation();
+        useLevels(frameLevels);
+    }
+
+    @Override
+    public boolean setRegion(int left, int top, int width, int height) {
+        FrameLuminanceSource frame = frameLevels[0].source;
+        Level region = regionLevels[0];
+        if (region == null || region.source.getWidth() != width || region.source.getHeight() != height) {
+            clear(regionLevels);
+            region = new Level(frame.region(width, height));
+            regionLevels[0] = region;
+        }
+        region.source.moveRegion(left, top);
+        region.source.setFrame(frame.getData());
+        useLevels(regionLevels);
+        return true;
+    }
+
+    private void useLevels(Level[] levels) {
+        this.levels = levels;
+        FrameLuminanceSource source = levels[0].source;
+        levelReady[0] = true;
+        levelCount = 1;
+        int maxLevel = Math.min(requestedLevels, MAX_LEVEL);
+        while (levelCount <= maxLevel
+                && source.getWidth() >> levelCount >= MINIMUM_LEVEL_DIMENSION
+                && source.getHeight() >> levelCount >= MINIMUM_LEVEL_DIMENSION) {
+            levelReady[levelCount] = false;
+            levelCount++;
+        }
+    }
+
+    private static void clear(Level[] levels) {
+        for (int level = 0; level <= MAX_LEVEL; level++) {
+            levels[level] = null;
+        }
+    }
+
+    /**
+     * The full resolution luminance of the current frame, regardless of the region.
+     */
+    public FrameLuminanceSource getSource() {
+        return frameLevels[0].source;
+    }
+
+    @Override
+    public int getWidth() {
+        return frameLevels[0].source.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return frameLevels[0].source.getHeight();
+    }
+
+    @Override
+    public int getRotation() {
+        return rotation;
+    }
+
+    @Override
+    public int getLevelCount() {
+        return levelCount;
+    }
+
+    @Override
+    public BinaryBitmap getLevel(int level, BinarizerStrategy.Type binarizer) {
+        return bitmap(prepareLevel(level), binarizer);
+    }
+
+    @Override
+    public BinaryBitmap getRotatedLevel(int level, BinarizerStrategy.Type binarizer) {
+        Level unrotated = prepareLevel(level);
+        if (unrotated.rotated == null) {
+            unrotated.rotated = new Level(unrotated.source.rotatedView());
+        }
+        unrotated.rotated.source.followRotation();
+        return bitmap(unrotated.rotated, binarizer);
+    }
+
+    private static BinaryBitmap bitmap(Level level, BinarizerStrategy.Type binarizer) {
+        return new BinaryBitmap(binarizer == BinarizerStrategy.Type.GLOBAL_HISTOGRAM
+                ? level.globalBinarizer
+                : level.hybridBinarizer);
+    }
+
+    /**
+     * Returns a level of the current frame, downsampling it first if it wasn't yet.
+     */
+    private Level prepareLevel(int level) {
+        if (level < 0 || level >= levelCount) {
+            throw new IllegalArgumentException("Invalid pyramid level: " + level);
+        }
+        if (!levelReady[level]) {
+            FrameLuminanceSource full = levels[0].source;
+            int width = full.getWidth() >> level;
+            int height = full.getHeight() >> level;
+            if (levels[level] == null) {
+                levels[level] = new Level(new FrameLuminanceSource(
+                        width, height, width, 1, 0, 0, width, height, false));
+                levels[level].source.setFrame(ByteBuffer.wrap(new byte[width * height]));
+            }
+            downsample(full.getData(), full.getOffset(), full.getRowStride(), full.getPixelStride(), level,
+                    levels[level].source.getData().array(), width, height);
+            levelReady[level] = true;
+        }
+        return levels[level];
+    }
+
+    /**
+     * Box filters the luminance by 2^power in each direction.
+     */
+    private static void downsample(
+            ByteBuffer src, int offset, int stride, int step, int power, byte[] dst, int width, int height) {
+        int factor = 1 << power;
+        int shift = power * 2;
+        for (int y = 0; y < height; y++) {
+            int rowStart = offset + y * factor * stride;
+            for (int x = 0; x < width; x++) {
+                int sum = 0;
+                for (int yy = 0, index = rowStart + x * factor * step; yy < factor; yy++, index += stride) {
+                    for (int xx = 0; xx < factor; xx++) {
+                        sum += src.get(index + xx * step) & 0xFF;
+                    }
+                }
+                dst[y * width + x] = (byte) (sum >> shift);
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package lhworkshop.flutter.fastqrreaderview.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A cheap check run on frames before they are binarized and decoded, skipping the ones that aren't
+ * worth it: frames blurred by the device moving, and frames that barely changed since a frame
+ * that was decoded without finding anything.
+ *
+ * <p>Both measures come from a sparse grid of the luminance. From each grid pixel, a short run of
+ * pixels is read to the right and another one downwards, and the strongest edge of a run is the
+ * largest difference between two of its neighboring pixels. The sharpness is the mean squared
+ * strongest edge of the runs in the direction where it is lowest, as blur smears edges over several
+ * pixels and motion blur does so along the motion. The change is the mean absolute difference
+ * between the grid pixels of a frame and those of the last decoded frame.
+ *
+ * <p>Frames are measured concurrently by the workers, each into its own {@link Sample}, while the
+ * reference frame is shared.
+ */
+public class FrameGate {
+
+    public enum Verdict {
+        DECODE,
+        BLURRED,
+        UNCHANGED
+    }
+
+    private static final int GRID_COLUMNS = 24;
+    private static final int GRID_ROWS = 16;
+    // Pixels per run, a little more than the modules of codes far enough to be blurred.
+    private static final int RUN_LENGTH = 16;
+
+    /**
+     * The measures of a frame. Each worker reuses its own.
+     */
+    public static class Sample {
+        private final byte[] pixels = new byte[GRID_COLUMNS * GRID_ROWS];
+        // Whether the pixels are those of the frame measured last.
+        private boolean sampled;
+        private long id;
+        private float sharpness;
+        private float change;
+
+        public float getSharpness() {
+            return sharpness;
+        }
+
+        /**
+         * The change since the reference frame, or 255 if there is none or the frame was too small
+         * to sample.
+         */
+        public float getChange() {
+            return change;
+        }
+    }
+
+    private final float minSharpness;
+    private final float minChange;
+
+    // The grid pixels of the last frame decoded, and whether it was decoded without a hit.
+    private final byte[] reference = new byte[GRID_COLUMNS * GRID_ROWS];
+    private long referenceId;
+    private boolean referenceMissed;
+    private long nextId = 1;
+
+    /**
+     * @param minSharpness frames less sharp than this are skipped, 0 to decode blurred frames
+     * @param minChange    frames that changed less than this since a frame decoded without a hit
+     *                     are skipped, 0 to decode unchanged frames
+     */
+    public FrameGate(float minSharpness, float minChange) {
+        if (minSharpness < 0 || minChange < 0) {
+            throw new IllegalArgumentException("Invalid frame gate thresholds");
+        }
+        this.minSharpness = minSharpness;
+        this.minChange = minChange;
+    }
+
+    /**
+     * Measures the sharpness of a frame and samples its grid.
+     */
+    public static void measure(FrameLuminanceSource source, Sample sample) {
+        ByteBuffer data = source.getData();
+        int offset = source.getOffset();
+        int rowStride = source.getRowStride();
+        int pixelStride = source.getPixelStride();
+        // Runs must fit in the frame.
+        int width = source.getWidth() - RUN_LENGTH;
+        int height = source.getHeight() - RUN_LENGTH;
+        if (width < 1 || height < 1) {
+            // Too small to tell, so decoded without becoming the reference.
+            sample.sharpness = Float.POSITIVE_INFINITY;
+            sample.sampled = false;
+            return;
+        }
+        long horizontal = 0;
+        long vertical = 0;
+        int i = 0;
+        for (int row = 0; row < GRID_ROWS; row++) {
+            int y = (2 * row + 1) * height / (2 * GRID_ROWS);
+            int rowStart = offset + y * rowStride;
+            for (int column = 0; column < GRID_COLUMNS; column++) {
+                int x = (2 * column + 1) * width / (2 * GRID_COLUMNS);
+                int index = rowStart + x * pixelStride;
+                sample.pixels[i++] = data.get(index);
+                int edge = strongestEdge(data, index, pixelStride);
+                horizontal += edge * edge;
+                edge = strongestEdge(data, index, rowStride);
+                vertical += edge * edge;
+            }
+        }
+        sample.sharpness = (float) Math.min(horizontal, vertical) / i;
+        sample.sampled = true;
+    }
+
+    private static int strongestEdge(ByteBuffer data, int index, int step) {
+        int previous = data.get(index) & 0xFF;
+        int strongest = 0;
+        for (int n = 0; n < RUN_LENGTH; n++) {
+            index += step;
+            int pixel = data.get(index) & 0xFF;
+            int edge = Math.abs(pixel - previous);
+            if (edge > strongest) {
+                strongest = edge;
+            }
+            previous = pixel;
+        }
+        return strongest;
+    }
+
+    /**
+     * Decides whether to decode a measured frame. A frame to decode becomes the reference the
+     * next frames are compared to, unless it was too small to sample.
+     */
+    public synchronized Verdict check(Sample sample) {
+        if (referenceId == 0 || !sample.sampled) {
+            sample.change = 255;
+        } else {
+            int sum = 0;
+            for (int i = 0; i < reference.length; i++) {
+                sum += Math.abs((sample.pixels[i] & 0xFF) - (reference[i] & 0xFF));
+            }
+            sample.change = (float) sum / reference.length;
+        }
+        if (sample.sharpness < minSharpness) {
+            return Verdict.BLURRED;
+        }
+        if (referenceMissed && sample.change < minChange) {
+            return Verdict.UNCHANGED;
+        }
+        sample.id = nextId++;
+        if (!sample.sampled) {
+            return Verdict.DECODE;
+        }
+        System.arraycopy(sample.pixels, 0, reference, 0, reference.length);
+        referenceId = sample.id;
+        // Until known, the reference may have been a hit.
+        referenceMissed = false;
+        return Verdict.DECODE;
+    }
+
+    /**
+     * Records whether a frame to decode had a hit.
+     */
+    public synchronized void onDecoded(Sample sample, boolean hit) {
+        if (sample.id == referenceId) {
+            referenceMissed = !hit;
+        }
+    }
+}
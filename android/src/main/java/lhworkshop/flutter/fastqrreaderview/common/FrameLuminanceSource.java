@@ -0,0 +1,313 @@
+package lhworkshop.flutter.fastqrreaderview.common;
+
+import com.google.zxing.LuminanceSource;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link LuminanceSource} over the luminance plane of a region of frames, which can be pointed at
+ * a new frame buffer instead of being allocated for every frame. The region is fixed for the
+ * lifetime of the source, as ZXing fixes the dimensions of a luminance source.
+ *
+ * <p>The luminance is read straight from the frame buffer, which is either the Y plane of an NV21
+ * preview buffer or the Y plane of a camera {@code Image}, possibly direct, with padded rows or
+ * interleaved pixels. Mirroring, cropping and rotating are done by walking the buffer differently,
+ * never by copying or modifying it: luminance of (x, y) is at {@code getOffset() + y *
+ * getRowStride() + x * getPixelStride()}, where both strides may be negative.
+ *
+ * <p>Unlike {@link com.google.zxing.PlanarYUVLuminanceSource}, {@link #getRow(int, byte[])} and
+ * {@link #getMatrix()} reuse their output arrays, and the matrix is only valid until the next call.
+ */
+public class FrameLuminanceSource extends LuminanceSource {
+
+    // The layout of the frames and the region read, as given to the constructor.
+    private final int dataWidth;
+    private final int dataHeight;
+    private final int dataRowStride;
+    private final int dataPixelStride;
+    private final int left;
+    private final int top;
+    private final boolean mirror;
+
+    // Index of the luminance of (0, 0), and distances to the next row and column.
+    private int offset;
+    private final int rowStride;
+    private final int pixelStride;
+
+    // The source a region returned by region() moves within, null for other sources.
+    private final FrameLuminanceSource regionOf;
+    // The source a view returned by rotatedView() follows, null for other sources.
+    private final FrameLuminanceSource rotationOf;
+
+    private ByteBuffer data;
+
+    // Reused by getMatrix() and getRow() when the caller doesn't provide a row.
+    private byte[] matrix;
+    private byte[] row;
+
+    public FrameLuminanceSource(FrameMetadata metadata) {
+        this(
+                metadata.getWidth(),
+                metadata.getHeight(),
+                metadata.getRowStride(),
+                metadata.getPixelStride(),
+                metadata.getCropLeft(),
+                metadata.getCropTop(),
+                metadata.getCropWidth(),
+                metadata.getCropHeight(),
+                metadata.isFrontFacing());
+    }
+
+    /**
+     * @param dataWidth   width of the frames
+     * @param dataHeight  height of the frames
+     * @param rowStride   distance between the start of two rows of the frames
+     * @param pixelStride distance between two pixels of a row of the frames
+     * @param left        left edge of the region to read
+     * @param top         top edge of the region to read
+     * @param width       width of the region to read
+     * @param height      height of the region to read
+     * @param mirror      whether to read the region mirrored horizontally
+     */
+    public FrameLuminanceSource(
+            int dataWidth, int dataHeight, int rowStride, int pixelStride, int left, int top,
+            int width, int height, boolean mirror) {
+        super(width, height);
+        this.dataWidth = dataWidth;
+        this.dataHeight = dataHeight;
+        this.dataRowStride = rowStride;
+        this.dataPixelStride = pixelStride;
+        this.left = left;
+        this.top = top;
+        this.mirror = mirror;
+        if (left + getWidth() > dataWidth || top + getHeight() > dataHeight) {
+            throw new IllegalArgumentException("Crop rectangle does not fit within image data.");
+        }
+        if (pixelStride < 1 || rowStride < (dataWidth - 1) * pixelStride + 1) {
+            throw new IllegalArgumentException("Invalid strides for the image width.");
+        }
+        int start = top * rowStride + left * pixelStride;
+        if (mirror) {
+            this.offset = start + (width - 1) * pixelStride;
+            this.pixelStride = -pixelStride;
+        } else {
+            this.offset = start;
+            this.pixelStride = pixelStride;
+        }
+        this.rowStride = rowStride;
+        regionOf = null;
+        rotationOf = null;
+    }
+
+    /**
+     * A view of the frames of {@code source}, starting at {@code offset}.
+     */
+    private FrameLuminanceSource(
+            FrameLuminanceSource source, int width, int height, int offset, int rowStride,
+            int pixelStride) {
+        this(source, width, height, offset, rowStride, pixelStride, null, null);
+    }
+
+    private FrameLuminanceSource(
+            FrameLuminanceSource source, int width, int height, int offset, int rowStride,
+            int pixelStride, FrameLuminanceSource regionOf, FrameLuminanceSource rotationOf) {
+        super(width, height);
+        dataWidth = source.dataWidth;
+        dataHeight = source.dataHeight;
+        dataRowStride = source.dataRowStride;
+        dataPixelStride = source.dataPixelStride;
+        left = source.left;
+        top = source.top;
+        mirror = source.mirror;
+        this.offset = offset;
+        this.rowStride = rowStride;
+        this.pixelStride = pixelStride;
+        this.regionOf = regionOf;
+        this.rotationOf = rotationOf;
+        data = source.data;
+    }
+
+    /**
+     * Whether frames of {@code metadata} can be read through this source.
+     */
+    public boolean matches(FrameMetadata metadata) {
+        return metadata.getWidth() == dataWidth
+                && metadata.getHeight() == dataHeight
+                && metadata.getRowStride() == dataRowStride
+                && metadata.getPixelStride() == dataPixelStride
+                && metadata.getCropLeft() == left
+                && metadata.getCropTop() == top
+                && metadata.getCropWidth() == getWidth()
+                && metadata.getCropHeight() == getHeight()
+                && metadata.isFrontFacing() == mirror;
+    }
+
+    /**
+     * Points this source at a new frame.
+     */
+    public void setFrame(ByteBuffer data) {
+        this.data = data;
+    }
+
+    /**
+     * The frame buffer. Luminance of (x, y) is at {@code getOffset() + y * getRowStride() + x *
+     * getPixelStride()}.
+     */
+    public ByteBuffer getData() {
+        return data;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Distance between the luminance of (x, y) and (x, y + 1). May be negative.
+     */
+    public int getRowStride() {
+        return rowStride;
+    }
+
+    /**
+     * Distance between the luminance of (x, y) and (x + 1, y). May be negative.
+     */
+    public int getPixelStride() {
+        return pixelStride;
+    }
+
+    @Override
+    public byte[] getRow(int y, byte[] row) {
+        if (y < 0 || y >= getHeight()) {
+            throw new IllegalArgumentException("Requested row is outside the image: " + y);
+        }
+        int width = getWidth();
+        if (row == null || row.length < width) {
+            if (this.row == null || this.row.length < width) {
+                this.row = new byte[width];
+            }
+            row = this.row;
+        }
+        copy(offset + y * rowStride, row, 0, width);
+        return row;
+    }
+
+    @Override
+    public byte[] getMatrix() {
+        int width = getWidth();
+        int height = getHeight();
+        int area = width * height;
+        if (matrix == null || matrix.length != area) {
+            matrix = new byte[area];
+        }
+        int inputOffset = offset;
+        for (int y = 0; y < height; y++) {
+            copy(inputOffset, matrix, y * width, width);
+            inputOffset += rowStride;
+        }
+        return matrix;
+    }
+
+    /**
+     * Copies {@code length} pixels of a row, starting at {@code index}.
+     */
+    private void copy(int index, byte[] destination, int start, int length) {
+        if (pixelStride == 1 && data.hasArray()) {
+            System.arraycopy(data.array(), data.arrayOffset() + index, destination, start, length);
+        } else if (data.hasArray()) {
+            byte[] array = data.array();
+            for (int i = 0, from = data.arrayOffset() + index; i < length; i++, from += pixelStride) {
+                destination[start + i] = array[from];
+            }
+        } else {
+            for (int i = 0, from = index; i < length; i++, from += pixelStride) {
+                destination[start + i] = data.get(from);
+            }
+        }
+    }
+
+    @Override
+    public boolean isCropSupported() {
+        return true;
+    }
+
+    /**
+     * Returns a source over a part of the current frame as this source reads it, i.e. mirrored
+     * and rotated alike. Used when searching a frame for several codes.
+     */
+    @Override
+    public LuminanceSource crop(int left, int top, int width, int height) {
+        if (left < 0 || top < 0 || left + width > getWidth() || top + height > getHeight()) {
+            throw new IllegalArgumentException("Crop rectangle does not fit within image data.");
+        }
+        return new FrameLuminanceSource(
+                this, width, height, offset + top * rowStride + left * pixelStride, rowStride, pixelStride);
+    }
+
+    /**
+     * Returns a view of a {@code width} x {@code height} region of the frames as this source reads
+     * them, which can be moved over the frame with {@link #moveRegion(int, int)} and pointed at
+     * new frames like this source. Its position is initially the top left corner.
+     */
+    public FrameLuminanceSource region(int width, int height) {
+        if (width > getWidth() || height > getHeight()) {
+            throw new IllegalArgumentException("Crop rectangle does not fit within image data.");
+        }
+        return new FrameLuminanceSource(this, width, height, offset, rowStride, pixelStride, this, null);
+    }
+
+    /**
+     * Moves a view returned by {@link #region(int, int)} to ({@code left}, {@code top}) of the
+     * source it was returned by.
+     */
+    public void moveRegion(int left, int top) {
+        if (regionOf == null) {
+            throw new IllegalStateException("Not a region of a frame.");
+        }
+        if (left < 0 || top < 0
+                || left + getWidth() > regionOf.getWidth() || top + getHeight() > regionOf.getHeight()) {
+            throw new IllegalArgumentException("Crop rectangle does not fit within image data.");
+        }
+        offset = regionOf.offset + top * rowStride + left * pixelStride;
+    }
+
+    /**
+     * Returns a view of the frames as this source reads them, rotated like {@link
+     * #rotateCounterClockwise()}, which can be kept from one frame to the next: {@link
+     * #followRotation()} points it at the current frame and position of this source.
+     */
+    public FrameLuminanceSource rotatedView() {
+        return new FrameLuminanceSource(
+                this, getHeight(), getWidth(), rotatedOffset(), -pixelStride, rowStride, null, this);
+    }
+
+    /**
+     * Points a view returned by {@link #rotatedView()} at the current frame and position of the
+     * source it was returned by.
+     */
+    public void followRotation() {
+        if (rotationOf == null) {
+            throw new IllegalStateException("Not a rotated view of a frame.");
+        }
+        data = rotationOf.data;
+        offset = rotationOf.rotatedOffset();
+    }
+
+    private int rotatedOffset() {
+        return offset + (getWidth() - 1) * pixelStride;
+    }
+
+    @Override
+    public boolean isRotateSupported() {
+        return true;
+    }
+
+    /**
+     * Returns a source over the current frame rotated by 90 degrees counterclockwise: its rows are
+     * the columns of this source, from the right.
+     */
+    @Override
+    public LuminanceSource rotateCounterClockwise() {
+        return new FrameLuminanceSource(
+                this, getHeight(), getWidth(), rotatedOffset(), -pixelStride, rowStride);
+    }
+}
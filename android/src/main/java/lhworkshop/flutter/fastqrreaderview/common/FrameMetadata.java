@@ -18,8 +18,14 @@ public class FrameMetadata {
 
   private final int width;
   private final int height;
+  private final int rowStride;
+  private final int pixelStride;
   private final int rotation;
   private final int cameraFacing;
+  private final int cropLeft;
+  private final int cropTop;
+  private final int cropWidth;
+  private final int cropHeight;
 
   public int getWidth() {
     return width;
@@ -29,6 +35,16 @@ public class FrameMetadata {
     return height;
   }
 
+  /** Distance in bytes between the start of two rows of luminance. At least the width. */
+  public int getRowStride() {
+    return rowStride;
+  }
+
+  /** Distance in bytes between two pixels of a row of luminance. 1 unless pixels are interleaved. */
+  public int getPixelStride() {
+    return pixelStride;
+  }
+
   public int getRotation() {
     return rotation;
   }
@@ -37,11 +53,53 @@ public class FrameMetadata {
     return cameraFacing;
   }
 
-  private FrameMetadata(int width, int height, int rotation, int facing) {
+  /**
+   * Whether the frame comes from a front facing camera, i.e. is mirrored. Compares with the value
+   * of {@code CameraInfo.CAMERA_FACING_FRONT}, so frames can be decoded without the camera API.
+   */
+  public boolean isFrontFacing() {
+    return cameraFacing == 1;
+  }
+
+  /** Left edge of the region of the frame to decode. */
+  public int getCropLeft() {
+    return cropLeft;
+  }
+
+  /** Top edge of the region of the frame to decode. */
+  public int getCropTop() {
+    return cropTop;
+  }
+
+  public int getCropWidth() {
+    return cropWidth;
+  }
+
+  public int getCropHeight() {
+    return cropHeight;
+  }
+
+  private FrameMetadata(
+      int width,
+      int height,
+      int rowStride,
+      int pixelStride,
+      int rotation,
+      int facing,
+      int cropLeft,
+      int cropTop,
+      int cropWidth,
+      int cropHeight) {
     this.width = width;
     this.height = height;
+    this.rowStride = rowStride;
+    this.pixelStride = pixelStride;
     this.rotation = rotation;
     cameraFacing = facing;
+    this.cropLeft = cropLeft;
+    this.cropTop = cropTop;
+    this.cropWidth = cropWidth;
+    this.cropHeight = cropHeight;
   }
 
   /** Builder of {@link FrameMetadata}. */
@@ -49,8 +107,30 @@ public class FrameMetadata {
 
     private int width;
     private int height;
+    private int rowStride;
+    private int pixelStride = 1;
     private int rotation;
     private int cameraFacing;
+    private int cropLeft;
+    private int cropTop;
+    private int cropWidth;
+    private int cropHeight;
+
+    public Builder() {}
+
+    /** Starts from the values of {@code metadata}. */
+    public Builder(FrameMetadata metadata) {
+      width = metadata.width;
+      height = metadata.height;
+      rowStride = metadata.rowStride;
+      pixelStride = metadata.pixelStride;
+      rotation = metadata.rotation;
+      cameraFacing = metadata.cameraFacing;
+      cropLeft = metadata.cropLeft;
+      cropTop = metadata.cropTop;
+      cropWidth = metadata.cropWidth;
+      cropHeight = metadata.cropHeight;
+    }
 
     public Builder setWidth(int width) {
       this.width = width;
@@ -62,6 +142,18 @@ public class FrameMetadata {
       return this;
     }
 
+    /** Sets the row stride of the luminance, for padded frames. Defaults to the smallest one. */
+    public Builder setRowStride(int rowStride) {
+      this.rowStride = rowStride;
+      return this;
+    }
+
+    /** Sets the pixel stride of the luminance, for interleaved frames. Defaults to 1. */
+    public Builder setPixelStride(int pixelStride) {
+      this.pixelStride = pixelStride;
+      return this;
+    }
+
     public Builder setRotation(int rotation) {
       this.rotation = rotation;
       return this;
@@ -72,8 +164,32 @@ public class FrameMetadata {
       return this;
     }
 
+    /** Sets the region of the frame to decode. Defaults to the whole frame. */
+    public Builder setCrop(int left, int top, int width, int height) {
+      cropLeft = left;
+      cropTop = top;
+      cropWidth = width;
+      cropHeight = height;
+      return this;
+    }
+
     public FrameMetadata build() {
-      return new FrameMetadata(width, height, rotation, cameraFacing);
+      int stride = Math.max(rowStride, (width - 1) * pixelStride + 1);
+      if (cropWidth <= 0 || cropHeight <= 0) {
+        return new FrameMetadata(
+            width, height, stride, pixelStride, rotation, cameraFacing, 0, 0, width, height);
+      }
+      return new FrameMetadata(
+          width,
+          height,
+          stride,
+          pixelStride,
+          rotation,
+          cameraFacing,
+          cropLeft,
+          cropTop,
+          cropWidth,
+          cropHeight);
     }
   }
 }
@@ -0,0 +1,154 @@
+package lhworkshop.flutter.fastqrreaderview.common;
+
+/**
+ * Adapts the frame rate to the time the decode workers take per frame, so that a fresh frame is
+ * pending whenever a worker becomes idle, without the camera producing frames that are only
+ * dropped.
+ *
+ * <p>Every second, the target rate is set a little above what the workers can decode, from a
+ * moving average of the decode time, and the camera is asked for it through the {@link Listener}.
+ * As the camera may not go as low as the target, e.g. when it only supports fixed ranges, the
+ * governor also measures the rate frames actually arrive at, and decodes only every Nth frame when
+ * they arrive faster than the workers can decode them.
+ *
+ * <p>Frames are counted on the thread handing them over, decode times are recorded by the
+ * workers.
+ */
+public class FrameRateGovernor {
+
+    /**
+     * Applies the target rate to the camera.
+     */
+    public interface Listener {
+        /**
+         * Called on the thread handing frames over when the target rate changes.
+         */
+        void onFrameRateChanged(float fps);
+    }
+
+    // Frames requested per frame the workers can decode, so that frames are pending a bit more
+    // often than not.
+    private static final float HEADROOM = 1.25f;
+    // Relative change of the target rate below which the camera isn't asked for a new rate, as
+    // reconfiguring it may cost a few frames.
+    private static final float HYSTERESIS = 0.2f;
+    private static final long WINDOW_NANOS = 1000000000L;
+    // A new decode time weighs 1/8 in the moving average.
+    private static final int AVERAGE_SHIFT = 3;
+
+    private final int workerCount;
+    private final float minFps;
+    private final float maxFps;
+    private final Listener listener;
+
+    // Moving average of the decode time, 0 until a frame is decoded.
+    private long averageDecodeNanos;
+
+    private float targetFps;
+    private float measuredFps;
+    private int decodeInterval = 1;
+    private long frameCount;
+
+    // Frames handed over since the start of the current measurement window.
+    private long windowStart;
+    private int windowFrames;
+
+    /**
+     * @param workerCount number of frames decoded concurrently
+     * @param initialFps  the rate the camera starts at
+     * @param minFps      lowest rate to ask the camera for
+     * @param maxFps      highest rate to ask the camera for
+     */
+    public FrameRateGovernor(
+            int workerCount, float initialFps, float minFps, float maxFps, Listener listener) {
+        if (minFps <= 0 || maxFps < minFps) {
+            throw new IllegalArgumentException("Invalid frame rate range: " + minFps + "-" + maxFps);
+        }
+        this.workerCount = workerCount;
+        this.minFps = minFps;
+        this.maxFps = maxFps;
+        this.listener = listener;
+        targetFps = initialFps;
+    }
+
+    /**
+     * Counts a frame handed over at {@code nanos}, and returns whether to decode it.
+     */
+    public boolean onFrame(long nanos) {
+        float changedFps = 0;
+        boolean decode;
+        synchronized (this) {
+            if (windowStart == 0) {
+                windowStart = nanos;
+            } else {
+                windowFrames++;
+                long elapsed = nanos - windowStart;
+                if (elapsed >= WINDOW_NANOS) {
+                    measuredFps = windowFrames * 1e9f / elapsed;
+                    windowStart = nanos;
+                    windowFrames = 0;
+                    if (updateTarget()) {
+                        changedFps = targetFps;
+                    }
+                    // Frames the camera delivers beyond what the workers can decode would only
+                    // replace each other.
+                    decodeInterval = Math.max(1, (int) (measuredFps * HEADROOM / targetFps));
+                }
+            }
+            decode = frameCount++ % decodeInterval == 0;
+        }
+        if (changedFps > 0) {
+            listener.onFrameRateChanged(changedFps);
+        }
+        return decode;
+    }
+
+    /**
+     * Records the time a worker took to decode a frame.
+     */
+    public synchronized void onFrameDecoded(long nanos) {
+        if (averageDecodeNanos == 0) {
+            averageDecodeNanos = nanos;
+        } else {
+            averageDecodeNanos += (nanos - averageDecodeNanos) >> AVERAGE_SHIFT;
+        }
+    }
+
+    /**
+     * Returns whether the target rate changed.
+     */
+    private boolean updateTarget() {
+        if (averageDecodeNanos <= 0) {
+            // Nothing decoded yet, e.g. while not scanning.
+            return false;
+        }
+        float capacity = workerCount * 1e9f / averageDecodeNanos;
+        float target = Math.max(minFps, Math.min(maxFps, capacity * HEADROOM));
+        if (Math.abs(target - targetFps) <= targetFps * HYSTERESIS) {
+            return false;
+        }
+        targetFps = target;
+        return true;
+    }
+
+    /**
+     * The rate the camera was last asked for.
+     */
+    public synchronized float getTargetFps() {
+        return targetFps;
+    }
+
+    /**
+     * The rate frames arrived at during the last second, 0 until then.
+     */
+    public synchronized float getMeasuredFps() {
+        return measuredFps;
+    }
+
+    /**
+     * One frame out of this many is decoded.
+     */
+    public synchronized int getDecodeInterval() {
+        return decodeInterval;
+    }
+}
@@ -0,0 +1,40 @@
+package lhworkshop.flutter.fastqrreaderview.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where a started {@link FrameSource} hands its frames: the {@link DecodeEngine}, or a fake in
+ * tests, as this doesn't depend on Android.
+ */
+public interface FrameSink {
+
+    /**
+     * Number of frames decoded at the same time.
+     */
+    int getWorkerCount();
+
+    /**
+     * Number of frames that can be pending, waiting for a worker.
+     */
+    int getFrameQueueCapacity();
+
+    /**
+     * Sets the layout of the luminance of the frames, or zero to keep that of the frame metadata.
+     */
+    void setFrameStrides(int rowStride, int pixelStride);
+
+    /**
+     * Counts a frame the source couldn't deliver, as all of its buffers were in use.
+     */
+    void recordPoolExhausted();
+
+    /**
+     * Hands a frame over, which comes back through {@link FrameSource#recycle(ByteBuffer)}.
+     */
+    void setNextFrame(ByteBuffer frame);
+
+    /**
+     * Waits until the next frame doesn't replace a pending one.
+     */
+    void awaitPendingFrameTaken() throws InterruptedException;
+}
@@ -0,0 +1,43 @@
+package lhworkshop.flutter.fastqrreaderview.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Produces the frames decoded by a {@link DecodeEngine}: the NV21 camera preview, the Y planes of
+ * camera2 images, or a recording replayed by {@link ReplayFrameSource}.
+ *
+ * <p>A started source hands its frames to {@link FrameSink#setNextFrame(ByteBuffer)} and gets them
+ * back through {@link #recycle(ByteBuffer)} once the engine is done with them. The frame buffers
+ * may be direct, e.g. the planes of camera images.
+ */
+public interface FrameSource {
+
+    /**
+     * Width of the frames, or 0 if not known until the source is started.
+     */
+    int getFrameWidth();
+
+    /**
+     * Height of the frames, or 0 if not known until the source is started.
+     */
+    int getFrameHeight();
+
+    /**
+     * Starts handing frames to {@code engine}, which must be started already.
+     *
+     * @throws IOException if the frames cannot be read
+     */
+    void start(FrameSink engine) throws IOException;
+
+    /**
+     * Takes back a frame the engine is done with.
+     */
+    void recycle(ByteBuffer frame);
+
+    /**
+     * Stops handing frames to the engine. Called after the engine is stopped, so no frame is in use
+     * anymore.
+     */
+    void stop();
+}
@@ -0,0 +1,186 @@
+package lhworkshop.flutter.fastqrreaderview.common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Frames of a camera2 {@code ImageReader}, whose Y planes are decoded in place: the buffer of the
+ * plane is handed to the decode engine as is, without copying it into a {@code byte[]}, and the
+ * image is only closed once the engine is done with it.
+ *
+ * <p>Only the latest image is acquired when images become available, older ones being closed right
+ * away, so a slow decode drops frames rather than falling behind the camera. The reader should
+ * allow {@link #maxImagesFor(int, int)} images, i.e. one per decode worker, one per pending frame,
+ * and one to acquire the next image with. With fewer, images are missed while all are in use,
+ * which is counted as the pool being exhausted.
+ *
+ * <p>The reader is reached through {@link ImageSource} and {@link LumaImage}, and the engine
+ * through {@link FrameSink}, so that this class doesn't depend on Android and can be driven by a
+ * fake source.
+ */
+public class ImageReaderFrameSource implements FrameSource {
+
+    /**
+     * The images of a reader.
+     */
+    public interface ImageSource {
+
+        /**
+         * Sets the listener called when images become available, or null to stop listening.
+         */
+        void setListener(Listener listener);
+
+        /**
+         * Acquires the latest image, closing the older ones, or returns null if there is none.
+         *
+         * @throws IllegalStateException if the maximum number of images are already acquired
+         */
+        LumaImage acquireLatestImage();
+
+        interface Listener {
+            void onImageAvailable();
+        }
+    }
+
+    /**
+     * An image whose luminance plane can be decoded.
+     */
+    public interface LumaImage {
+
+        /**
+         * The luminance plane, e.g. the Y plane of {@code YUV_420_888} images.
+         */
+        ByteBuffer getLuminance();
+
+        int getRowStride();
+
+        int getPixelStride();
+
+        void close();
+    }
+
+    private final ImageSource images;
+    private final int width;
+    private final int height;
+
+    // Images handed to the engine, by the buffer of their luminance plane.
+    private final Map<ByteBuffer, LumaImage> acquired = new IdentityHashMap<>();
+
+    private volatile FrameSink engine;
+    private int rowStride;
+    private int pixelStride;
+    private long imagesUnavailable;
+
+    public ImageReaderFrameSource(ImageSource images, int width, int height) {
+        this.images = images;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * The number of images the reader should allow for {@code workerCount} decode workers and a
+     * frame queue of {@code queueCapacity} frames.
+     */
+    public static int maxImagesFor(int workerCount, int queueCapacity) {
+        return workerCount + queueCapacity + 1;
+    }
+
+    @Override
+    public int getFrameWidth() {
+        return width;
+    }
+
+    @Override
+    public int getFrameHeight() {
+        return height;
+    }
+
+    @Override
+    public void start(FrameSink engine) {
+        this.engine = engine;
+        rowStride = 0;
+        pixelStride = 0;
+        images.setListener(new ImageSource.Listener() {
+            @Override
+            public void onImageAvailable() {
+                onImagesAvailable();
+            }
+        });
+    }
+
+    @Override
+    public void stop() {
+        images.setListener(null);
+        FrameSink engine = this.engine;
+        if (engine != null) {
+            engine.setFrameStrides(0, 0);
+            this.engine = null;
+        }
+        // The engine hands back every frame before it stops, so this only closes the images of
+        // frames handed over after that.
+        List<LumaImage> remaining;
+        synchronized (acquired) {
+            remaining = new ArrayList<>(acquired.values());
+            acquired.clear();
+        }
+        for (LumaImage image : remaining) {
+            image.close();
+        }
+    }
+
+    /**
+     * Closes the image of a frame the decode engine is done with, so the reader can reuse it.
+     */
+    @Override
+    public void recycle(ByteBuffer frame) {
+        LumaImage image;
+        synchronized (acquired) {
+            image = acquired.remove(frame);
+        }
+        if (image != null) {
+            image.close();
+        }
+    }
+
+    /**
+     * Number of times images were available but couldn't be acquired, as all the images the
+     * reader allows were in use.
+     */
+    public synchronized long getImagesUnavailable() {
+        return imagesUnavailable;
+    }
+
+    private synchronized void onImagesAvailable() {
+        FrameSink engine = this.engine;
+        if (engine == null) {
+            return;
+        }
+        LumaImage image;
+        try {
+            image = images.acquireLatestImage();
+        } catch (IllegalStateException e) {
+            // The reader keeps the image, which the next notification picks up.
+            imagesUnavailable++;
+            engine.recordPoolExhausted();
+            return;
+        }
+        if (image == null) {
+            return;
+        }
+        int imageRowStride = image.getRowStride();
+        int imagePixelStride = image.getPixelStride();
+        if (imageRowStride != rowStride || imagePixelStride != pixelStride) {
+            rowStride = imageRowStride;
+            pixelStride = imagePixelStride;
+            engine.setFrameStrides(imageRowStride, imagePixelStride);
+        }
+        ByteBuffer luminance = image.getLuminance();
+        synchronized (acquired) {
+            acquired.put(luminance, image);
+        }
+        engine.setNextFrame(luminance);
+    }
+}
@@ -0,0 +1,205 @@
+package lhworkshop.flutter.fastqrreaderview.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import lhworkshop.flutter.fastqrreaderview.java.barcodescanning.BarcodeScanningProcessor;
+
+/**
+ * Replays a recording of NV21 frames, e.g. to run the decode pipeline without a camera or to
+ * decode field captures of hard-to-read labels again.
+ *
+ * <p>The recording is a raw sequence of NV21 frames of the given size, without any header, as
+ * written by {@code ffmpeg -f rawvideo -pix_fmt nv21}. It is memory-mapped, and each frame is copied
+ * from the mapping into a pooled frame buffer on the replay thread. The engine could decode slices
+ * of the mapping in place, but the copy keeps reading the recording from storage out of the decode
+ * times, and the pool reproduces the legacy camera's array-backed preview buffers, so that a replay
+ * measures the same path, pool exhaustion included.
+ *
+ * <p>When replaying as fast as possible, the source waits for a worker to be done with a frame
+ * before reading the next one, so most frames are decoded rather than replaced by the next one.
+ */
+public class ReplayFrameSource implements FrameSource {
+
+    // Frame buffers in addition to the ones being decoded and the pending ones, as for the camera:
+    // the one being read, and a spare so that reading doesn't wait for a frame being handed back.
+    private static final int EXTRA_BUFFERS = 2;
+
+    private final File file;
+    private final int width;
+    private final int height;
+    private final int frameSize;
+    private final long frameIntervalNanos;
+    private final boolean loop;
+
+    private final BlockingQueue<ByteBuffer> freeBuffers =
+            new ArrayBlockingQueue<>(
+                    BarcodeScanningProcessor.MAX_FRAMES_IN_FLIGHT + DecodeEngine.MAX_QUEUED_FRAMES + EXTRA_BUFFERS);
+
+    private Thread replayThread;
+    private volatile boolean running;
+    private volatile long framesReplayed;
+
+    /**
+     * @param file   the recording
+     * @param width  width of the recorded frames
+     * @param height height of the recorded frames
+     * @param fps    replay rate, or 0 to replay as fast as the frames are decoded
+     * @param loop   whether to start over at the end of the recording
+     */
+    public ReplayFrameSource(File file, int width, int height, float fps, boolean loop) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid frame size: " + width + "x" + height);
+        }
+        if (fps < 0) {
+            throw new IllegalArgumentException("Invalid replay rate: " + fps);
+        }
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.frameSize = width * height * 3 / 2;
+        this.frameIntervalNanos = fps > 0 ? (long) (1e9 / fps) : 0;
+        this.loop = loop;
+    }
+
+    @Override
+    public int getFrameWidth() {
+        return width;
+    }
+
+    @Override
+    public int getFrameHeight() {
+        return height;
+    }
+
+    /**
+     * Number of frames handed to the engine since the source was created.
+     */
+    public long getFramesReplayed() {
+        return framesReplayed;
+    }
+
+    @Override
+    public synchronized void start(FrameSink engine) throws IOException {
+        if (replayThread != null) {
+            return;
+        }
+        MappedByteBuffer[] segments = map();
+        freeBuffers.clear();
+        // Enough for every frame of a FIFO queue to be pending, as with the camera.
+        int bufferCount = engine.getWorkerCount() + engine.getFrameQueueCapacity() + EXTRA_BUFFERS;
+        for (int i = 0; i < bufferCount; i++) {
+            freeBuffers.add(ByteBuffer.wrap(new byte[frameSize]));
+        }
+        running = true;
+        replayThread = new Thread(new Replay(engine, segments), "ReplayFrameSource");
+        replayThread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (replayThread == null) {
+            return;
+        }
+        running = false;
+        replayThread.interrupt();
+        try {
+            replayThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        replayThread = null;
+    }
+
+    @Override
+    public void recycle(ByteBuffer frame) {
+        freeBuffers.offer(frame);
+    }
+
+    /**
+     * Maps the recording in segments of whole frames, as a single mapping is limited to 2 GB.
+     */
+    private MappedByteBuffer[] map() throws IOException {
+        RandomAccessFile recording = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = recording.getChannel();
+            long frameCount = channel.size() / frameSize;
+            if (frameCount == 0) {
+                throw new IOException("No " + width + "x" + height + " frame in " + file);
+            }
+            long framesPerSegment = Integer.MAX_VALUE / frameSize;
+            int segmentCount = (int) ((frameCount + framesPerSegment - 1) / framesPerSegment);
+            MappedByteBuffer[] segments = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                long frames = Math.min(framesPerSegment, frameCount - i * framesPerSegment);
+                segments[i] = channel.map(
+                        FileChannel.MapMode.READ_ONLY, i * framesPerSegment * frameSize, frames * frameSize);
+            }
+            // The mappings stay valid once the file is closed.
+            return segments;
+        } finally {
+            recording.close();
+        }
+    }
+
+    private class Replay implements Runnable {
+
+        private final FrameSink engine;
+        private final MappedByteBuffer[] segments;
+
+        Replay(FrameSink engine, MappedByteBuffer[] segments) {
+            this.engine = engine;
+            this.segments = segments;
+        }
+
+        @Override
+        public void run() {
+            long nextFrameNanos = System.nanoTime();
+            int segment = 0;
+            int offset = 0;
+            try {
+                while (running) {
+                    if (frameIntervalNanos > 0) {
+                        long delayNanos = nextFrameNanos - System.nanoTime();
+                        if (delayNanos > 0) {
+                            TimeUnit.NANOSECONDS.sleep(delayNanos);
+                        }
+                        nextFrameNanos += frameIntervalNanos;
+                    }
+                    ByteBuffer frame = freeBuffers.take();
+
+                    // Read through a duplicate, leaving the position of the mapping alone.
+                    ByteBuffer source = segments[segment].duplicate();
+                    source.position(offset);
+                    source.get(frame.array(), 0, frameSize);
+                    if (frameIntervalNanos == 0) {
+                        engine.awaitPendingFrameTaken();
+                    }
+                    engine.setNextFrame(frame);
+                    framesReplayed++;
+
+                    offset += frameSize;
+                    if (offset + frameSize > segments[segment].capacity()) {
+                        offset = 0;
+                        segment++;
+                        if (segment == segments.length) {
+                            if (!loop) {
+                                return;
+                            }
+                            segment = 0;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Stopped.
+            }
+        }
+    }
+}
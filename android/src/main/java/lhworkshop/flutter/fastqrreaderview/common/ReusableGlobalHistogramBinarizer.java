@@ -0,0 +1,137 @@
+package lhworkshop.flutter.fastqrreaderview.common;
+
+import com.google.zxing.Binarizer;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.common.GlobalHistogramBinarizer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ZXing's {@link GlobalHistogramBinarizer}, reading luminance straight from a {@link
+ * FrameLuminanceSource} and reusing its output matrix from one frame to the next. A single black
+ * point is estimated from a histogram of a few rows, which is much cheaper than local thresholding
+ * and good enough for evenly lit codes. Rows for 1D readers are binarized by the superclass.
+ *
+ * <p>The returned {@link BitMatrix} is overwritten by the next call, so a binarizer must only be
+ * used by one thread, one frame at a time.
+ */
+public class ReusableGlobalHistogramBinarizer extends GlobalHistogramBinarizer {
+
+    private static final int LUMINANCE_BITS = 5;
+    private static final int LUMINANCE_SHIFT = 8 - LUMINANCE_BITS;
+    private static final int LUMINANCE_BUCKETS = 1 << LUMINANCE_BITS;
+
+    private final FrameLuminanceSource frameSource;
+    private final int[] buckets = new int[LUMINANCE_BUCKETS];
+    private BitMatrix matrix;
+
+    public ReusableGlobalHistogramBinarizer(FrameLuminanceSource source) {
+        super(source);
+        frameSource = source;
+    }
+
+    @Override
+    public BitMatrix getBlackMatrix() throws NotFoundException {
+        int width = frameSource.getWidth();
+        int height = frameSource.getHeight();
+        ByteBuffer luminances = frameSource.getData();
+        int offset = frameSource.getOffset();
+        int stride = frameSource.getRowStride();
+        int step = frameSource.getPixelStride();
+
+        // Quickly calculates the histogram by sampling four rows from the image. This proved to be
+        // more robust on the blackbox tests than sampling a diagonal as we used to do.
+        for (int x = 0; x < LUMINANCE_BUCKETS; x++) {
+            buckets[x] = 0;
+        }
+        for (int y = 1; y < 5; y++) {
+            int rowStart = offset + (height * y / 5) * stride;
+            int right = (width * 4) / 5;
+            for (int x = width / 5; x < right; x++) {
+                int pixel = luminances.get(rowStart + x * step) & 0xff;
+                buckets[pixel >> LUMINANCE_SHIFT]++;
+            }
+        }
+        int blackPoint = estimateBlackPoint(buckets);
+
+        if (matrix == null) {
+            matrix = new BitMatrix(width, height);
+        } else {
+            matrix.clear();
+        }
+        for (int y = 0; y < height; y++) {
+            int rowStart = offset + y * stride;
+            for (int x = 0; x < width; x++) {
+                int pixel = luminances.get(rowStart + x * step) & 0xff;
+                if (pixel < blackPoint) {
+                    matrix.set(x, y);
+                }
+            }
+        }
+        return matrix;
+    }
+
+    @Override
+    public Binarizer createBinarizer(LuminanceSource source) {
+        return new ReusableGlobalHistogramBinarizer((FrameLuminanceSource) source);
+    }
+
+    private static int estimateBlackPoint(int[] buckets) throws NotFoundException {
+        // Find the tallest peak in the histogram.
+        int numBuckets = buckets.length;
+        int maxBucketCount = 0;
+        int firstPeak = 0;
+        int firstPeakSize = 0;
+        for (int x = 0; x < numBuckets; x++) {
+            if (buckets[x] > firstPeakSize) {
+                firstPeak = x;
+                firstPeakSize = buckets[x];
+            }
+            if (buckets[x] > maxBucketCount) {
+                maxBucketCount = buckets[x];
+            }
+        }
+
+        // Find the second-tallest peak which is somewhat far from the tallest peak.
+        int secondPeak = 0;
+        int secondPeakScore = 0;
+        for (int x = 0; x < numBuckets; x++) {
+            int distanceToBiggest = x - firstPeak;
+            // Encourage more distant second peaks by multiplying by square of distance.
+            int score = buckets[x] * distanceToBiggest * distanceToBiggest;
+            if (score > secondPeakScore) {
+                secondPeak = x;
+                secondPeakScore = score;
+            }
+        }
+
+        // Make sure firstPeak corresponds to the black peak.
+        if (firstPeak > secondPeak) {
+            int temp = firstPeak;
+            firstPeak = secondPeak;
+            secondPeak = temp;
+        }
+
+        // If there is too little contrast in the image to pick a meaningful black point, throw rather
+        // than waste time trying to decode the image, and risk false positives.
+        if (secondPeak - firstPeak <= numBuckets / 16) {
+            throw NotFoundException.getNotFoundInstance();
+        }
+
+        // Find a valley between them that is low and closer to the white peak.
+        int bestValley = secondPeak - 1;
+        int bestValleyScore = -1;
+        for (int x = secondPeak - 1; x > firstPeak; x--) {
+            int fromFirst = x - firstPeak;
+            int score = fromFirst * fromFirst * (secondPeak - x) * (maxBucketCount - buckets[x]);
+            if (score > bestValleyScore) {
+                bestValley = x;
+                bestValleyScore = score;
+            }
+        }
+
+        return bestValley << LUMINANCE_SHIFT;
+    }
+}
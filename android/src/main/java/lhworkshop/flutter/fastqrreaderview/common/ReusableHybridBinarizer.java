@@ -0,0 +1,299 @@
+package lhworkshop.flutter.fastqrreaderview.common;
+
+import com.google.zxing.Binarizer;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.common.GlobalHistogramBinarizer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The local thresholding algorithm of ZXing's {@link com.google.zxing.common.HybridBinarizer},
+ * reading luminance straight from a {@link FrameLuminanceSource} and reusing its output matrix and
+ * block thresholds from one frame to the next.
+ *
+ * <p>The returned {@link BitMatrix} is overwritten by the next call, so a binarizer must only be
+ * used by one thread, one frame at a time.
+ */
+public class ReusableHybridBinarizer extends GlobalHistogramBinarizer {
+
+    // This class uses 5x5 blocks to compute local luminance, where each block is 8x8 pixels.
+    // So this is the smallest dimension in each axis we can accept.
+    private static final int BLOCK_SIZE_POWER = 3;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SIZE_POWER; // ...0100...00
+    private static final int BLOCK_SIZE_MASK = BLOCK_SIZE - 1;   // ...0011...11
+    private static final int MINIMUM_DIMENSION = BLOCK_SIZE * 5;
+    private static final int MIN_DYNAMIC_RANGE = 24;
+
+    private final FrameLuminanceSource frameSource;
+    private BitMatrix matrix;
+    private int[][] blackPoints;
+
+    public ReusableHybridBinarizer(FrameLuminanceSource source) {
+        super(source);
+        frameSource = source;
+    }
+
+    @Override
+    public BitMatrix getBlackMatrix() throws NotFoundException {
+        int width = frameSource.getWidth();
+        int height = frameSource.getHeight();
+        if (width < MINIMUM_DIMENSION || height < MINIMUM_DIMENSION) {
+            return super.getBlackMatrix();
+        }
+        int subWidth = width >> BLOCK_SIZE_POWER;
+        if ((width & BLOCK_SIZE_MASK) != 0) {
+            subWidth++;
+        }
+        int subHeight = height >> BLOCK_SIZE_POWER;
+        if ((height & BLOCK_SIZE_MASK) != 0) {
+            subHeight++;
+        }
+        if (matrix == null) {
+            matrix = new BitMatrix(width, height);
+            blackPoints = new int[subHeight][subWidth];
+        } else {
+            matrix.clear();
+        }
+        ByteBuffer luminances = frameSource.getData();
+        int offset = frameSource.getOffset();
+        int stride = frameSource.getRowStride();
+        int step = frameSource.getPixelStride();
+        // Heap frames are read from their array, which is faster than indexing the buffer, with a
+        // constant step when pixels are contiguous so that the compiler can unroll the block loops.
+        byte[] array = null;
+        if (luminances.hasArray()) {
+            array = luminances.array();
+            offset += luminances.arrayOffset();
+        }
+        calculateBlackPoints(array, luminances, offset, stride, step, subWidth, subHeight, width, height, blackPoints);
+        calculateThresholdForBlock(array, luminances, offset, stride, step, subWidth, subHeight, width, height, blackPoints, matrix);
+        return matrix;
+    }
+
+    @Override
+    public Binarizer createBinarizer(LuminanceSource source) {
+        return new ReusableHybridBinarizer((FrameLuminanceSource) source);
+    }
+
+    /**
+     * For each block in the image, calculate the average black point using a 5x5 grid
+     * of the blocks around it. Also handles the corner cases (fractional blocks are computed based
+     * on the last pixels in the row/column which are also used in the previous block).
+     */
+    private static void calculateThresholdForBlock(byte[] array,
+                                                   ByteBuffer luminances,
+                                                   int offset,
+                                                   int stride,
+                                                   int step,
+                                                   int subWidth,
+                                                   int subHeight,
+                                                   int width,
+                                                   int height,
+                                                   int[][] blackPoints,
+                                                   BitMatrix matrix) {
+        int maxYOffset = height - BLOCK_SIZE;
+        int maxXOffset = width - BLOCK_SIZE;
+        for (int y = 0; y < subHeight; y++) {
+            int yoffset = y << BLOCK_SIZE_POWER;
+            if (yoffset > maxYOffset) {
+                yoffset = maxYOffset;
+            }
+            int top = cap(y, 2, subHeight - 3);
+            for (int x = 0; x < subWidth; x++) {
+                int xoffset = x << BLOCK_SIZE_POWER;
+                if (xoffset > maxXOffset) {
+                    xoffset = maxXOffset;
+                }
+                int left = cap(x, 2, subWidth - 3);
+                int sum = 0;
+                for (int z = -2; z <= 2; z++) {
+                    int[] blackRow = blackPoints[top + z];
+                    sum += blackRow[left - 2] + blackRow[left - 1] + blackRow[left] + blackRow[left + 1] + blackRow[left + 2];
+                }
+                int average = sum / 25;
+                int index = offset + yoffset * stride + xoffset * step;
+                if (array == null) {
+                    thresholdBlock(luminances, index, stride, step, xoffset, yoffset, average, matrix);
+                } else if (step == 1) {
+                    thresholdBlock(array, index, stride, 1, xoffset, yoffset, average, matrix);
+                } else {
+                    thresholdBlock(array, index, stride, step, xoffset, yoffset, average, matrix);
+                }
+            }
+        }
+    }
+
+    private static int cap(int value, int min, int max) {
+        return value < min ? min : value > max ? max : value;
+    }
+
+    /**
+     * Applies a single threshold to a block of pixels, starting at {@code index}.
+     */
+    private static void thresholdBlock(byte[] luminances,
+                                       int index,
+                                       int stride,
+                                       int step,
+                                       int xoffset,
+                                       int yoffset,
+                                       int threshold,
+                                       BitMatrix matrix) {
+        for (int y = 0; y < BLOCK_SIZE; y++, index += stride) {
+            for (int x = 0, i = index; x < BLOCK_SIZE; x++, i += step) {
+                // Comparison needs to be <= so that black == 0 pixels are black even if the threshold is 0.
+                if ((luminances[i] & 0xFF) <= threshold) {
+                    matrix.set(xoffset + x, yoffset + y);
+                }
+            }
+        }
+    }
+
+    private static void thresholdBlock(ByteBuffer luminances,
+                                       int index,
+                                       int stride,
+                                       int step,
+                                       int xoffset,
+                                       int yoffset,
+                                       int threshold,
+                                       BitMatrix matrix) {
+        for (int y = 0; y < BLOCK_SIZE; y++, index += stride) {
+            for (int x = 0, i = index; x < BLOCK_SIZE; x++, i += step) {
+                if ((luminances.get(i) & 0xFF) <= threshold) {
+                    matrix.set(xoffset + x, yoffset + y);
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates a single black point for each block of pixels and saves it away.
+     * See the following thread for a discussion of this algorithm:
+     * http://groups.google.com/group/zxing/browse_thread/thread/d06efa2c35a7ddc0
+     */
+    private static void calculateBlackPoints(byte[] array,
+                                             ByteBuffer luminances,
+                                             int offset,
+                                             int stride,
+                                             int step,
+                                             int subWidth,
+                                             int subHeight,
+                                             int width,
+                                             int height,
+                                             int[][] blackPoints) {
+        int maxYOffset = height - BLOCK_SIZE;
+        int maxXOffset = width - BLOCK_SIZE;
+        for (int y = 0; y < subHeight; y++) {
+            int yoffset = y << BLOCK_SIZE_POWER;
+            if (yoffset > maxYOffset) {
+                yoffset = maxYOffset;
+            }
+            for (int x = 0; x < subWidth; x++) {
+                int xoffset = x << BLOCK_SIZE_POWER;
+                if (xoffset > maxXOffset) {
+                    xoffset = maxXOffset;
+                }
+                int index = offset + yoffset * stride + xoffset * step;
+                int statistics;
+                if (array == null) {
+                    statistics = blockStatistics(luminances, index, stride, step);
+                } else if (step == 1) {
+                    statistics = blockStatistics(array, index, stride, 1);
+                } else {
+                    statistics = blockStatistics(array, index, stride, step);
+                }
+                int sum = statistics >>> 16;
+                int max = (statistics >> 8) & 0xFF;
+                int min = statistics & 0xFF;
+
+                // The default estimate is the average of the values in the block.
+                int average = sum >> (BLOCK_SIZE_POWER * 2);
+                if (max - min <= MIN_DYNAMIC_RANGE) {
+                    // If variation within the block is low, assume this is a block with only light or only
+                    // dark pixels. In that case we do not want to use the average, as it would divide this
+                    // low contrast area into black and white pixels, essentially creating data out of noise.
+                    //
+                    // The default assumption is that the block is light/background. Since no estimate for
+                    // the level of dark pixels exists locally, use half the min for the block.
+                    average = min / 2;
+
+                    if (y > 0 && x > 0) {
+                        // Correct the "white background" assumption for blocks that have neighbors by comparing
+                        // the pixels in this block to the previously calculated black points. This is based on
+                        // the fact that dark barcode symbology is always surrounded by some amount of light
+                        // background for which reasonable black point estimates were made. The bp estimated at
+                        // the boundaries is used for the interior.
+
+                        // The (min < bp) is arbitrary but works better than other heuristics that were tried.
+                        int averageNeighborBlackPoint =
+                                (blackPoints[y - 1][x] + (2 * blackPoints[y][x - 1]) + blackPoints[y - 1][x - 1]) / 4;
+                        if (min < averageNeighborBlackPoint) {
+                            average = averageNeighborBlackPoint;
+                        }
+                    }
+                }
+                blackPoints[y][x] = average;
+            }
+        }
+    }
+
+    /**
+     * Returns the sum, the maximum and the minimum of the pixels of the block starting at {@code
+     * index}, packed as {@code sum << 16 | max << 8 | min}.
+     */
+    private static int blockStatistics(byte[] luminances, int index, int stride, int step) {
+        int sum = 0;
+        int min = 0xFF;
+        int max = 0;
+        for (int yy = 0; yy < BLOCK_SIZE; yy++, index += stride) {
+            for (int xx = 0, i = index; xx < BLOCK_SIZE; xx++, i += step) {
+                int pixel = luminances[i] & 0xFF;
+                sum += pixel;
+                // still looking for good contrast
+                if (pixel < min) {
+                    min = pixel;
+                }
+                if (pixel > max) {
+                    max = pixel;
+                }
+            }
+            // short-circuit min/max tests once dynamic range is met
+            if (max - min > MIN_DYNAMIC_RANGE) {
+                // finish the rest of the rows quickly
+                for (yy++, index += stride; yy < BLOCK_SIZE; yy++, index += stride) {
+                    for (int xx = 0, i = index; xx < BLOCK_SIZE; xx++, i += step) {
+                        sum += luminances[i] & 0xFF;
+                    }
+                }
+            }
+        }
+        return sum << 16 | max << 8 | min;
+    }
+
+    private static int blockStatistics(ByteBuffer luminances, int index, int stride, int step) {
+        int sum = 0;
+        int min = 0xFF;
+        int max = 0;
+        for (int yy = 0; yy < BLOCK_SIZE; yy++, index += stride) {
+            for (int xx = 0, i = index; xx < BLOCK_SIZE; xx++, i += step) {
+                int pixel = luminances.get(i) & 0xFF;
+                sum += pixel;
+                if (pixel < min) {
+                    min = pixel;
+                }
+                if (pixel > max) {
+                    max = pixel;
+                }
+            }
+            if (max - min > MIN_DYNAMIC_RANGE) {
+                for (yy++, index += stride; yy < BLOCK_SIZE; yy++, index += stride) {
+                    for (int xx = 0, i = index; xx < BLOCK_SIZE; xx++, i += step) {
+                        sum += luminances.get(i) & 0xFF;
+                    }
+                }
+            }
+        }
+        return sum << 16 | max << 8 | min;
+    }
+}
@@ -14,22 +14,48 @@
 package lhworkshop.flutter.fastqrreaderview.java.barcodescanning;
 
 import com.google.zxing.BarcodeFormat;
-import com.google.zxing.BinaryBitmap;
-import com.google.zxing.DecodeHintType;
-import com.google.zxing.MultiFormatReader;
 import com.google.zxing.Result;
 import com.google.zxing.ResultPointCallback;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Holds the scanning configuration shared by all decode workers and delivers their results.
+ *
+ * <p>The ZXing readers are not thread-safe, so each worker thread decodes with its own
+ * {@link FrameDecoder} obtained from {@link #createDecoder()}. Every frame handed to a decoder must
+ * first be numbered with {@link #nextSequence()} so results can be delivered according to the
+ * selected {@link Delivery} mode.
+ */
 public class BarcodeScanningProcessor {
 
     private static final String TAG = "BarcodeScanProc";
 
-    private final MultiFormatReader detector;
-    private final HashMap<DecodeHintType, Object> hints;
+    /**
+     * Upper bound of frames that may be in flight at the same time, i.e. the maximum number of
+     * decode workers.
+     */
+    public static final int MAX_FRAMES_IN_FLIGHT = 32;
+
+    /**
+     * How results of concurrently decoded frames are delivered to {@link #callback}.
+     */
+    public enum Delivery {
+        /**
+         * A result is delivered as soon as any worker finds it.
+         */
+        FIRST_HIT,
+        /**
+         * Results are delivered in the order the frames were captured. A hit on a frame waits for
+         * all older frames still being decoded.
+         */
+        IN_ORDER
+    }
+
+    final List<BarcodeFormat> formats;
 
     public OnCodeScanned callback;
     public ResultPointCallback resultPointCallback;
@@ -38,35 +64,284 @@ public class BarcodeScanningProcessor {
     // the model can handle.
     public final AtomicBoolean shouldThrottle = new AtomicBoolean(true);
 
+    private final Delivery delivery;
+
+    // Reader hit statistics of the session, shared by the decoders.
+    final FormatStatistics formatStatistics;
+    volatile int formatCostBudget;
+
+    volatile BinarizerStrategy binarizerStrategy = BinarizerStrategy.HYBRID;
+    // Share of recent hits the global histogram binarizer found first, for the adaptive strategy.
+    // Racy updates between workers are harmless.
+    volatile float globalBinarizerScore = 0.5f;
+
+    volatile boolean multipleResults;
+
+    // Rows read by the 1D readers per frame, 0 for their own scan.
+    volatile int scanRows;
+
+    volatile int pyramidLevels;
+    volatile int pyramidEscalateAfter = 3;
+    // Sets pyramidLevels from the codes found, in the auto resolution mode.
+    private volatile ResolutionTuner resolutionTuner;
+
+    // Restricts decoding to the region of the last codes found, when tracking them.
+    volatile RegionTracker regionTracker;
+
+    public final ScanStats stats = new ScanStats();
+
+    private final Object deliveryLock = new Object();
+    // @GuardedBy("deliveryLock")
+    private long issuedSequence;
+    // @GuardedBy("deliveryLock")
+    private long deliveredSequence;
+    // Results of frames that completed out of order, indexed by sequence modulo the array length.
+    // @GuardedBy("deliveryLock")
+    private final Result[][] reorderResults = new Result[MAX_FRAMES_IN_FLIGHT * 2][];
+    // @GuardedBy("deliveryLock")
+    private final boolean[] reorderCompleted = new boolean[MAX_FRAMES_IN_FLIGHT * 2];
+    // @GuardedBy("deliveryLock")
+    private ResultCache resultCache = new ResultCache(1, 0);
+    // @GuardedBy("deliveryLock")
+    private long minResultIntervalNanos;
+    // @GuardedBy("deliveryLock")
+    private long lastDeliveryNanos;
+
     public BarcodeScanningProcessor(ArrayList<BarcodeFormat> reqFormats) {
-        detector = new MultiFormatReader();
-        hints = new HashMap<>();
-        hints.put(DecodeHintType.POSSIBLE_FORMATS, reqFormats);
-        detector.setHints(hints);
+        this(reqFormats, Delivery.FIRST_HIT);
+    }
+
+    public BarcodeScanningProcessor(ArrayList<BarcodeFormat> reqFormats, Delivery delivery) {
+        this.formats = Collections.unmodifiableList(new ArrayList<>(reqFormats));
+        this.delivery = delivery;
+        formatStatistics = new FormatStatistics(FormatDispatcher.groupCount(formats));
+    }
+
+    /**
+     * Limits the relative cost of the readers tried on each frame. Readers are tried by decreasing
+     * success in this session, so formats that are rarely seen are only probed every few frames.
+     *
+     * @param budget the budget, in units of a 1D reader attempt, or 0 to try every requested
+     *               format on every frame
+     */
+    public void setFormatCostBudget(int budget) {
+        formatCostBudget = budget;
+    }
+
+    /**
+     * Enables finding all the codes of a frame. They are delivered together through {@link
+     * OnCodeScanned#onCodesScanned(Result[])} instead of {@link OnCodeScanned#onCodeScanned(Result)}.
+     */
+    public void setMultipleResults(boolean multipleResults) {
+        this.multipleResults = multipleResults;
+    }
+
+    /**
+     * Filters the results before they are delivered, so a code held in view is reported once and
+     * occasional misreads are not reported at all. The cache is kept across {@link #stop()}, so a
+     * code is not reported again right after scanning is restarted.
+     *
+     * @param confirmations  number of consistent reads of a code before it is reported; 1 reports
+     *                       it on the first read
+     * @param cooldownMillis how long a reported code must be out of view before it is reported
+     *                       again; 0 reports it on every confirmed read
+     */
+    public void setResultCache(int confirmations, long cooldownMillis) {
+        synchronized (deliveryLock) {
+            resultCache = new ResultCache(confirmations, cooldownMillis);
+        }
+    }
+
+    /**
+     * Limits the rate of delivered results when scanning continuously. Results found less than
+     * {@code intervalMillis} after the previous delivery are dropped.
+     *
+     * @param intervalMillis the minimum interval, or 0 to deliver every result
+     */
+    public void setMinResultInterval(long intervalMillis) {
+        synchronized (deliveryLock) {
+            minResultIntervalNanos = intervalMillis * 1000000L;
+        }
+    }
+
+    /**
+     * Reads 1D codes from {@code rows} rows per frame, across the codes as they are most likely
+     * held given the rotation of the display, at offsets spread over successive frames, instead of
+     * the fixed rows along the sensor that ZXing reads.
+     *
+     * @param rows number of rows per frame, or 0 for ZXing's own scan
+     */
+    public void setScanRows(int rows) {
+        scanRows = rows;
+    }
+
+    public void setBinarizerStrategy(BinarizerStrategy strategy) {
+        binarizerStrategy = strategy;
+    }
+
+    /**
+     * Enables decoding at a lower resolution first. Frames are decoded at full resolution only when
+     * the low resolution pass saw finder patterns but didn't decode, or after several low
+     * resolution misses in a row.
+     *
+     * @param levels        how many times the frame is halved for the first pass, or 0 to always
+     *                      decode at full resolution
+     * @param escalateAfter number of consecutive low resolution misses after which a frame is
+     *                      decoded at full resolution anyway
+     */
+    public void setPyramid(int levels, int escalateAfter) {
+        pyramidLevels = levels;
+        pyramidEscalateAfter = escalateAfter;
+    }
+
+    public int getPyramidLevels() {
+        return pyramidLevels;
     }
 
+    /**
+     * Whether to choose the pyramid level frames are decoded at from the size of the modules of
+     * the codes found, starting at the level set by {@link #setPyramid(int, int)}: large codes are
+     * then decoded at a lower resolution, and the resolution is raised again as soon as codes get
+     * denser or further away.
+     */
+    public void setAutoResolution(boolean auto) {
+        if (!auto) {
+            resolutionTuner = null;
+            return;
+        }
+        ResolutionTuner tuner = new ResolutionTuner(ScanStats.PYRAMID_LEVELS - 1, pyramidLevels);
+        resolutionTuner = tuner;
+        stats.setResolution(tuner.getLevel(), tuner.getModuleSize());
+    }
+
+    /**
+     * Updates the pyramid level with the codes found in a frame, in the auto resolution mode.
+     */
+    void tuneResolution(Result[] results) {
+        ResolutionTuner tuner = resolutionTuner;
+        if (tuner == null) {
+            return;
+        }
+        pyramidLevels = tuner.onResults(results);
+        stats.setResolution(pyramidLevels, tuner.getModuleSize());
+    }
+
+    /**
+     * Whether to decode frames following a hit only around the codes found, for continuous
+     * scanning of codes held in view. The region follows the codes as they move, and the whole
+     * frame is still decoded every few frames so that codes entering elsewhere are found.
+     */
+    public void setTracking(boolean tracking) {
+        regionTracker = tracking ? new RegionTracker() : null;
+    }
+
+    /**
+     * Creates a decoder owning its own reader state. Each decode worker thread needs its own.
+     */
+    public FrameDecoder createDecoder() {
+        return new FrameDecoder(this);
+    }
+
+    /**
+     * Numbers the next frame to be decoded. Must be called in capture order.
+     */
+    public long nextSequence() {
+        synchronized (deliveryLock) {
+            return issuedSequence++;
+        }
+    }
+
+    /**
+     * Marks a numbered frame as done without decoding it.
+     */
+    public void skip(long sequence) {
+        complete(sequence, null);
+    }
+
+    /**
+     * Forgets the results of frames still in flight.
+     */
     public void stop() {
-        detector.reset();
+        RegionTracker tracker = regionTracker;
+        if (tracker != null) {
+            // The codes may be gone by the time scanning restarts.
+            tracker.reset();
+        }
+        synchronized (deliveryLock) {
+            deliveredSequence = issuedSequence;
+            for (int i = 0; i < reorderResults.length; i++) {
+                reorderResults[i] = null;
+                reorderCompleted[i] = false;
+            }
+        }
     }
 
+    /**
+     * Called by a decoder once it is done with the frame numbered {@code sequence}, whether a code
+     * was found or not.
+     */
+    void complete(long sequence, Result[] result) {
+        synchronized (deliveryLock) {
+            if (delivery == Delivery.FIRST_HIT) {
+                if (result != null) {
+                    deliverLocked(result);
+                }
+                return;
+            }
+            if (sequence < deliveredSequence) {
+                // Frame was in flight when the processor was stopped.
+                return;
+            }
+            int slot = (int) (sequence % reorderResults.length);
+            reorderResults[slot] = result;
+            reorderCompleted[slot] = true;
+            while (true) {
+                slot = (int) (deliveredSequence % reorderResults.length);
+                if (!reorderCompleted[slot]) {
+                    break;
+                }
+                Result[] next = reorderResults[slot];
+                reorderResults[slot] = null;
+                reorderCompleted[slot] = false;
+                deliveredSequence++;
+                if (next != null) {
+                    deliverLocked(next);
+                }
+            }
+        }
+    }
 
-    public void detectInImage(BinaryBitmap image) {
+    // Results found after scanning was stopped, e.g. by the callback of an earlier hit, are dropped.
+    private void deliverLocked(Result[] results) {
         if (shouldThrottle.get()) {
             return;
         }
-        shouldThrottle.set(true);
-        try {
-            if (resultPointCallback != null) {
-                hints.put(DecodeHintType.NEED_RESULT_POINT_CALLBACK, resultPointCallback);
-            } else {
-                hints.remove(DecodeHintType.NEED_RESULT_POINT_CALLBACK);
+        if (callback == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (minResultIntervalNanos > 0) {
+            // The cache only records these reads, as filtering them would take a dropped code for
+            // reported, but a code held in view must not expire from it meanwhile.
+            if (lastDeliveryNanos != 0 && now - lastDeliveryNanos < minResultIntervalNanos) {
+                if (!resultCache.isPassThrough()) {
+                    resultCache.record(results, now);
+                }
+                stats.recordRateLimitedResult();
+                return;
             }
-            Result result = detector.decodeWithState(image);
-            shouldThrottle.set(false);
-            if (callback != null) callback.onCodeScanned(result);
-        } catch (Exception ignored) {
-            shouldThrottle.set(false);
+        }
+        if (!resultCache.isPassThrough()) {
+            results = resultCache.filter(results, now, stats);
+            if (results == null) {
+                return;
+            }
+        }
+        lastDeliveryNanos = now;
+        if (multipleResults) {
+            callback.onCodesScanned(results);
+        } else {
+            callback.onCodeScanned(results[0]);
         }
     }
 }
-
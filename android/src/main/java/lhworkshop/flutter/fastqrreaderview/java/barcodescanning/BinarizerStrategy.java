@@ -0,0 +1,37 @@
+package lhworkshop.flutter.fastqrreaderview.java.barcodescanning;
+
+/**
+ * How frames are binarized before decoding. 1D readers binarize rows on their own, the same way
+ * whichever binarizer is used, so a second binarizer is only tried with the 2D readers.
+ */
+public enum BinarizerStrategy {
+    /**
+     * Local thresholding only.
+     */
+    HYBRID,
+    /**
+     * A cheap global threshold first, then local thresholding if nothing was found.
+     */
+    GLOBAL_FIRST,
+    /**
+     * Local thresholding first, then a global threshold if nothing was found.
+     */
+    HYBRID_FIRST,
+    /**
+     * One binarizer per frame, alternating between global and local thresholding.
+     */
+    ALTERNATE,
+    /**
+     * Global or local thresholding first depending on which has been finding codes recently, then
+     * the other one if nothing was found.
+     */
+    ADAPTIVE;
+
+    /**
+     * The binarizers.
+     */
+    public enum Type {
+        HYBRID,
+        GLOBAL_HISTOGRAM
+    }
+}
@@ -0,0 +1,295 @@
+package lhworkshop.flutter.fastqrreaderview.java.barcodescanning;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.Reader;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.aztec.AztecReader;
+import com.google.zxing.datamatrix.DataMatrixReader;
+import com.google.zxing.oned.CodaBarReader;
+import com.google.zxing.oned.Code128Reader;
+import com.google.zxing.oned.Code39Reader;
+import com.google.zxing.oned.Code93Reader;
+import com.google.zxing.oned.ITFReader;
+import com.google.zxing.oned.MultiFormatUPCEANReader;
+import com.google.zxing.oned.OneDReader;
+import com.google.zxing.pdf417.PDF417Reader;
+import com.google.zxing.qrcode.QRCodeReader;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link Reader} that replaces {@link com.google.zxing.MultiFormatReader}'s fixed reader order.
+ * The requested formats are split into reader groups which are tried by decreasing hit score (see
+ * {@link FormatStatistics}), and the readers tried on one frame are limited by a cost budget. Groups
+ * that haven't found anything recently are probed in turns: at least one of them is tried on every
+ * frame, on top of the budget. Groups decoding none of the formats of a {@code POSSIBLE_FORMATS}
+ * hint are skipped.
+ *
+ * <p>Not thread-safe: each decode worker owns its own dispatcher, while the statistics are shared.
+ */
+public class FormatDispatcher implements Reader {
+
+    /**
+     * Formats decoded by one reader, with the relative cost of a decode attempt on an empty frame.
+     * Row based (1D) readers binarize rows themselves and don't use the binarized matrix.
+     */
+    private static final class Group {
+        final EnumSet<BarcodeFormat> formats;
+        final int cost;
+        final boolean rowBased;
+
+        Group(EnumSet<BarcodeFormat> formats, int cost, boolean rowBased) {
+            this.formats = formats;
+            this.cost = cost;
+            this.rowBased = rowBased;
+        }
+    }
+
+    // UPC/EAN formats share a reader so UPC-A codes are still told apart from EAN-13.
+    private static final Group[] GROUPS = {
+            new Group(EnumSet.of(BarcodeFormat.QR_CODE), 3, false),
+            new Group(EnumSet.of(BarcodeFormat.DATA_MATRIX), 2, false),
+            new Group(EnumSet.of(BarcodeFormat.AZTEC), 2, false),
+            new Group(EnumSet.of(BarcodeFormat.PDF_417), 4, false),
+            new Group(EnumSet.of(BarcodeFormat.EAN_13, BarcodeFormat.EAN_8, BarcodeFormat.UPC_A, BarcodeFormat.UPC_E), 1, true),
+            new Group(EnumSet.of(BarcodeFormat.CODE_39), 1, true),
+            new Group(EnumSet.of(BarcodeFormat.CODE_93), 1, true),
+            new Group(EnumSet.of(BarcodeFormat.CODE_128), 1, true),
+            new Group(EnumSet.of(BarcodeFormat.ITF), 1, true),
+            new Group(EnumSet.of(BarcodeFormat.CODABAR), 1, true),
+    };
+
+    private final Reader[] readers;
+    private final int[] costs;
+    private final boolean[] rowBased;
+    // Formats requested from each reader, for the per format counters.
+    private final BarcodeFormat[][] readerFormats;
+    private final boolean hasMatrixReaders;
+    private final FormatStatistics statistics;
+    private final ScanStats stats;
+    private int costBudget;
+    private boolean matrixReadersOnly;
+    // Rows read by the row based readers, when not left to their own scan.
+    private final RowSampler rowSampler = new RowSampler();
+
+    // Rotates the cold groups probed on successive frames.
+    private int coldOffset;
+    // Set from another thread to give up the current decode.
+    private volatile boolean cancelled;
+
+    FormatDispatcher(List<BarcodeFormat> formats, FormatStatistics statistics, ScanStats stats) {
+        List<Group> groups = new ArrayList<>();
+        List<EnumSet<BarcodeFormat>> groupFormats = new ArrayList<>();
+        selectGroups(formats, groups, groupFormats);
+        readers = new Reader[groups.size()];
+        costs = new int[groups.size()];
+        rowBased = new boolean[groups.size()];
+        readerFormats = new BarcodeFormat[groups.size()][];
+        boolean matrixReaders = false;
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = createReader(groupFormats.get(i));
+            costs[i] = groups.get(i).cost;
+            rowBased[i] = groups.get(i).rowBased;
+            readerFormats[i] = groupFormats.get(i).toArray(new BarcodeFormat[0]);
+            matrixReaders |= !rowBased[i];
+        }
+        hasMatrixReaders = matrixReaders;
+        this.statistics = statistics;
+        this.stats = stats;
+    }
+
+    /**
+     * Number of reader groups a dispatcher for {@code formats} uses.
+     */
+    static int groupCount(List<BarcodeFormat> formats) {
+        List<Group> groups = new ArrayList<>();
+        selectGroups(formats, groups, new ArrayList<EnumSet<BarcodeFormat>>());
+        return groups.size();
+    }
+
+    // Collects the groups decoding any of the formats, along with the formats requested from each.
+    private static void selectGroups(
+            List<BarcodeFormat> formats, List<Group> groups, List<EnumSet<BarcodeFormat>> groupFormats) {
+        for (Group group : GROUPS) {
+            EnumSet<BarcodeFormat> requested = EnumSet.copyOf(group.formats);
+            requested.retainAll(formats);
+            if (!requested.isEmpty()) {
+                groups.add(group);
+                groupFormats.add(requested);
+            }
+        }
+    }
+
+    private static Reader createReader(EnumSet<BarcodeFormat> formats) {
+        switch (formats.iterator().next()) {
+            case QR_CODE:
+                return new QRCodeReader();
+            case DATA_MATRIX:
+                return new DataMatrixReader();
+            case AZTEC:
+                return new AztecReader();
+            case PDF_417:
+                return new PDF417Reader();
+            case CODE_39:
+                return new Code39Reader();
+            case CODE_93:
+                return new Code93Reader();
+            case CODE_128:
+                return new Code128Reader();
+            case ITF:
+                return new ITFReader();
+            case CODABAR:
+                return new CodaBarReader();
+            default:
+                Map<DecodeHintType, Object> hints = new HashMap<>();
+                hints.put(DecodeHintType.POSSIBLE_FORMATS, formats);
+                return new MultiFormatUPCEANReader(hints);
+        }
+    }
+
+    /**
+     * Whether any of the readers decodes the binarized matrix of the image, rather than rows only.
+     */
+    boolean hasMatrixReaders() {
+        return hasMatrixReaders;
+    }
+
+    /**
+     * Limits the summed cost of the readers tried on a frame. The best ranked group and one cold group
+     * are always tried.
+     *
+     * @param costBudget the budget, or 0 to try every group on every frame
+     */
+    void setCostBudget(int costBudget) {
+        this.costBudget = costBudget;
+    }
+
+    /**
+     * Skips the row based (1D) readers, e.g. when decoding the same frame again with another
+     * binarizer, which only changes the outcome of the matrix based readers.
+     */
+    void setMatrixReadersOnly(boolean matrixReadersOnly) {
+        this.matrixReadersOnly = matrixReadersOnly;
+    }
+
+    /**
+     * Sets the frame the next images come from, for the row based readers to read {@code rows}
+     * rows of each image across the codes as they are most likely held, or 0 to leave the scan to
+     * them. See {@link RowSampler}.
+     *
+     * @param rotation rotation of the frame to display it, in quarter turns
+     */
+    void setRowSampling(int rows, long sequence, int rotation) {
+        rowSampler.setFrame(rows, sequence, rotation);
+    }
+
+    /**
+     * Sets the pyramid level {@code image} is, so that the row based readers read its columns from
+     * the rotated level the pyramid keeps, rather than rotating the image. Images other than
+     * {@code image}, e.g. parts of it searched for more codes, are rotated as usual.
+     */
+    void setLevel(ImagePyramid pyramid, int level, BinarizerStrategy.Type binarizer, BinaryBitmap image) {
+        rowSampler.setLevel(pyramid, level, binarizer, image);
+    }
+
+    /**
+     * Makes the current and later decodes give up before the next reader, as if nothing was found.
+     * May be called from any thread.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Lets decodes run again after {@link #cancel()}.
+     */
+    void resume() {
+        cancelled = false;
+    }
+
+    @Override
+    public Result decode(BinaryBitmap image) throws NotFoundException {
+        return decode(image, null);
+    }
+
+    @Override
+    public Result decode(BinaryBitmap image, Map<DecodeHintType, ?> hints) throws NotFoundException {
+        FormatStatistics.Ranking ranking = statistics.ranking();
+        int[] order = ranking.order;
+        int coldCount = order.length - ranking.hotCount;
+        Collection<?> possibleFormats =
+                hints == null ? null : (Collection<?>) hints.get(DecodeHintType.POSSIBLE_FORMATS);
+        int spent = 0;
+        for (int i = 0; i < order.length; i++) {
+            if (cancelled) {
+                throw NotFoundException.getNotFoundInstance();
+            }
+            // At least one cold group is probed on every frame, so formats that haven't been seen
+            // yet are still found eventually.
+            boolean probe = i == ranking.hotCount;
+            if (costBudget > 0 && spent >= costBudget && !probe) {
+                if (i < ranking.hotCount) {
+                    i = ranking.hotCount - 1;
+                    continue;
+                }
+                break;
+            }
+            int group;
+            if (i < ranking.hotCount) {
+                group = order[i];
+            } else {
+                group = order[ranking.hotCount + (i - ranking.hotCount + coldOffset) % coldCount];
+            }
+            if ((matrixReadersOnly && rowBased[group]) || !isPossible(group, possibleFormats)) {
+                continue;
+            }
+            spent += costs[group];
+            stats.recordFormatAttempt(readerFormats[group]);
+            try {
+                Result result = rowBased[group] && rowSampler.isEnabled()
+                        ? rowSampler.decode((OneDReader) readers[group], image, hints)
+                        : readers[group].decode(image, hints);
+                statistics.recordHit(group);
+                stats.recordFormatHit(result.getBarcodeFormat());
+                return result;
+            } catch (ReaderException ignored) {
+                // Try the next group.
+            }
+        }
+        if (coldCount > 0) {
+            coldOffset = (coldOffset + 1) % coldCount;
+        }
+        throw NotFoundException.getNotFoundInstance();
+    }
+
+    /**
+     * Whether a group decodes any of the formats of the {@code POSSIBLE_FORMATS} hint, if given.
+     */
+    private boolean isPossible(int group, Collection<?> possibleFormats) {
+        if (possibleFormats == null) {
+            return true;
+        }
+        for (BarcodeFormat format : readerFormats[group]) {
+            if (possibleFormats.contains(format)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void reset() {
+        for (Reader reader : readers) {
+            reader.reset();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package lhworkshop.flutter.fastqrreaderview.java.barcodescanning;
+
+/**
+ * Hit statistics of the reader groups of a {@link FormatDispatcher}, shared by all decode workers
+ * of a scanning session.
+ *
+ * <p>Every hit decays the score of all groups and adds one to the group that found the code, so
+ * groups that found codes recently and often rank first. Groups whose score has decayed away are
+ * "cold" and are only probed in turns.
+ */
+class FormatStatistics {
+
+    private static final double DECAY = 0.9;
+    private static final double COLD_SCORE = 0.05;
+
+    /**
+     * Immutable ranking of the groups: the hot groups by decreasing score, followed by the cold
+     * groups.
+     */
+    static final class Ranking {
+        final int[] order;
+        final int hotCount;
+
+        Ranking(int[] order, int hotCount) {
+            this.order = order;
+            this.hotCount = hotCount;
+        }
+    }
+
+    // @GuardedBy("this")
+    private final double[] scores;
+    // @GuardedBy("this")
+    private final long[] hits;
+
+    private volatile Ranking ranking;
+
+    FormatStatistics(int groupCount) {
+        scores = new double[groupCount];
+        hits = new long[groupCount];
+        int[] order = new int[groupCount];
+        for (int i = 0; i < groupCount; i++) {
+            order[i] = i;
+        }
+        ranking = new Ranking(order, 0);
+    }
+
+    Ranking ranking() {
+        return ranking;
+    }
+
+    synchronized void recordHit(int group) {
+        hits[group]++;
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] *= DECAY;
+        }
+        scores[group] += 1;
+
+        // Readers may still hold the previous ranking, so the order is sorted into a new array. An
+        // insertion sort on the indices, stable like the ranking it replaces, as there are few groups.
+        int[] order = new int[scores.length];
+        int hotCount = 0;
+        for (int i = 0; i < order.length; i++) {
+            double score = scores[i];
+            int j = i;
+            while (j > 0 && scores[order[j - 1]] < score) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = i;
+            if (score >= COLD_SCORE) {
+                hotCount++;
+            }
+        }
+        ranking = new Ranking(order, hotCount);
+    }
+
+    synchronized long hits(int group) {
+        return hits[group];
+    }
+}
@@ -0,0 +1,405 @@
+package lhworkshop.flutter.fastqrreaderview.java.barcodescanning;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+import com.google.zxing.ResultPointCallback;
+import com.google.zxing.multi.GenericMultipleBarcodeReader;
+import com.google.zxing.multi.qrcode.QRCodeMultiReader;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Decodes frames for a single worker thread. Not thread-safe: the readers and hints are owned by
+ * the worker, while reader statistics and results go through the shared {@link
+ * BarcodeScanningProcessor}.
+ */
+public class FrameDecoder {
+
+    private final BarcodeScanningProcessor processor;
+    private final FormatDispatcher detector;
+    private final HashMap<DecodeHintType, Object> hints;
+
+    // Readers finding all the codes of a frame, for the multiple results mode.
+    private final GenericMultipleBarcodeReader multipleDetector;
+    private final QRCodeMultiReader multipleQrDetector;
+    // The formats left to the generic reader once the QR reader ran, or null if there are none.
+    private final List<BarcodeFormat> nonQrFormats;
+
+    // Scale of the level being decoded, and whether a reader reported points on it.
+    private int levelScale = 1;
+    private boolean sawResultPoints;
+    // Region of the frame being decoded, as left, top, width and height in full resolution pixels,
+    // when tracking codes.
+    private final int[] region = new int[4];
+    private int regionLeft;
+    private int regionTop;
+    private final ResultPointCallback pointTracker = new ResultPointCallback() {
+        @Override
+        public void foundPossibleResultPoint(ResultPoint point) {
+            sawResultPoints = true;
+            ResultPointCallback callback = processor.resultPointCallback;
+            if (callback != null) {
+                callback.foundPossibleResultPoint(levelScale == 1 && regionLeft == 0 && regionTop == 0
+                        ? point
+                        : new ResultPoint(
+                                regionLeft + point.getX() * levelScale, regionTop + point.getY() * levelScale));
+            }
+        }
+    };
+
+    // Consecutive frames missed at low resolution without escalating.
+    private int lowResolutionMisses;
+
+    // Frames seen by this decoder, to alternate binarizers and to explore with the adaptive one.
+    private int frameCount;
+
+    // Set from another thread to give up the current decode.
+    private volatile boolean cancelled;
+
+    FrameDecoder(BarcodeScanningProcessor processor) {
+        this.processor = processor;
+        detector = new FormatDispatcher(processor.formats, processor.formatStatistics, processor.stats);
+        hints = new HashMap<>();
+        multipleDetector = new GenericMultipleBarcodeReader(detector);
+        multipleQrDetector = processor.formats.contains(BarcodeFormat.QR_CODE) ? new QRCodeMultiReader() : null;
+        List<BarcodeFormat> others = new ArrayList<>(processor.formats);
+        others.remove(BarcodeFormat.QR_CODE);
+        nonQrFormats = others.isEmpty() ? null : others;
+    }
+
+    public BarcodeScanningProcessor getProcessor() {
+        return processor;
+    }
+
+    public void stop() {
+        detector.reset();
+    }
+
+    /**
+     * Gives up the current decode and the later ones, between two levels, binarizer passes or
+     * readers, so that the thread decoding can be joined without waiting for a full decode. The
+     * frame completes without results. May be called from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+        detector.cancel();
+    }
+
+    /**
+     * Lets decodes run again after {@link #cancel()}, e.g. when the camera starts again, so that the
+     * decoder and its readers are kept rather than created anew.
+     */
+    public void resume() {
+        cancelled = false;
+        detector.resume();
+    }
+
+    /**
+     * Decodes the frame numbered {@code sequence} by {@link BarcodeScanningProcessor#nextSequence()}.
+     */
+    public boolean detectInImage(long sequence, BinaryBitmap image) {
+        return detectInImage(sequence, new SingleLevel(image));
+    }
+
+    /**
+     * Decodes the frame numbered {@code sequence} by {@link BarcodeScanningProcessor#nextSequence()},
+     * starting at the coarsest enabled level of the pyramid. Returns whether a code was found.
+     */
+    public boolean detectInImage(long sequence, ImagePyramid pyramid) {
+        Result[] result = null;
+        RegionTracker tracker = null;
+        boolean tracked = false;
+        boolean decoding = false;
+        try {
+            if (processor.shouldThrottle.get()) {
+                processor.stats.recordThrottledFrame();
+                return false;
+            }
+            decoding = true;
+            detector.setCostBudget(processor.formatCostBudget);
+            detector.setRowSampling(processor.scanRows, sequence, pyramid.getRotation());
+            frameCount++;
+
+            tracker = processor.regionTracker;
+            tracked = tracker != null
+                    && tracker.nextRegion(pyramid.getWidth(), pyramid.getHeight(), sequence, region)
+                    && pyramid.setRegion(region[0], region[1], region[2], region[3]);
+            regionLeft = tracked ? region[0] : 0;
+            regionTop = tracked ? region[1] : 0;
+            if (tracked) {
+                processor.stats.recordTrackedFrame();
+            }
+
+            int coarsest = Math.min(processor.pyramidLevels, pyramid.getLevelCount() - 1);
+            if (coarsest <= 0) {
+                result = decodeLevel(pyramid, 0);
+            } else {
+                result = decodeLevel(pyramid, coarsest);
+                if (result != null) {
+                    lowResolutionMisses = 0;
+                } else if (!cancelled) {
+                    lowResolutionMisses++;
+                    if (sawResultPoints || lowResolutionMisses >= processor.pyramidEscalateAfter) {
+                        lowResolutionMisses = 0;
+                        processor.stats.recordEscalation();
+                        result = decodeLevel(pyramid, 0);
+                    }
+                }
+            }
+        } catch (Exception ignored) {
+            result = null;
+        } finally {
+            if (decoding && cancelled) {
+                // What a cancelled decode found isn't reported, and its misses don't count.
+                processor.stats.recordCancelledDecode();
+                result = null;
+                tracker = null;
+            }
+            if (result != null) {
+                processor.tuneResolution(result);
+            }
+            if (tracker != null) {
+                tracker.onResults(result, sequence);
+                if (tracked && result != null) {
+                    processor.stats.recordTrackedHit();
+                }
+            }
+            processor.complete(sequence, result);
+        }
+        return result != null;
+    }
+
+    /**
+     * Returns the codes found at the given level, with their points in full resolution coordinates
+     * of the whole frame, or null.
+     */
+    private Result[] decodeLevel(ImagePyramid pyramid, int level) {
+        levelScale = 1 << level;
+        sawResultPoints = false;
+        if (level > 0 || processor.resultPointCallback != null) {
+            hints.put(DecodeHintType.NEED_RESULT_POINT_CALLBACK, pointTracker);
+        } else {
+            hints.remove(DecodeHintType.NEED_RESULT_POINT_CALLBACK);
+        }
+        Result[] results = decodeWithBinarizers(pyramid, level);
+        processor.stats.recordLevelAttempt(level, results != null);
+        if (results == null || (level == 0 && regionLeft == 0 && regionTop == 0)) {
+            return results;
+        }
+        for (int i = 0; i < results.length; i++) {
+            results[i] = transform(results[i], levelScale, regionLeft, regionTop);
+        }
+        return results;
+    }
+
+    /**
+     * Returns a copy of a result with its points scaled by {@code factor}, then moved by ({@code
+     * left}, {@code top}).
+     */
+    private static Result transform(Result result, int factor, int left, int top) {
+        ResultPoint[] points = result.getResultPoints();
+        ResultPoint[] scaled = null;
+        if (points != null) {
+            scaled = new ResultPoint[points.length];
+            for (int i = 0; i < points.length; i++) {
+                scaled[i] = points[i] == null
+                        ? null
+                        : new ResultPoint(left + points[i].getX() * factor, top + points[i].getY() * factor);
+            }
+        }
+        Result scaledResult = new Result(
+                result.getText(),
+                result.getRawBytes(),
+                result.getNumBits(),
+                scaled,
+                result.getBarcodeFormat(),
+                result.getTimestamp());
+        scaledResult.putAllMetadata(result.getResultMetadata());
+        return scaledResult;
+    }
+
+    /**
+     * Decodes a level according to the binarizer strategy. Returns the codes found, or null.
+     */
+    private Result[] decodeWithBinarizers(ImagePyramid pyramid, int level) {
+        BinarizerStrategy strategy = processor.binarizerStrategy;
+        BinarizerStrategy.Type first;
+        BinarizerStrategy.Type second;
+        switch (strategy) {
+            case GLOBAL_FIRST:
+                first = BinarizerStrategy.Type.GLOBAL_HISTOGRAM;
+                second = BinarizerStrategy.Type.HYBRID;
+                break;
+            case HYBRID_FIRST:
+                first = BinarizerStrategy.Type.HYBRID;
+                second = BinarizerStrategy.Type.GLOBAL_HISTOGRAM;
+                break;
+            case ALTERNATE:
+                first = frameCount % 2 == 0
+                        ? BinarizerStrategy.Type.GLOBAL_HISTOGRAM
+                        : BinarizerStrategy.Type.HYBRID;
+                second = null;
+                break;
+            case ADAPTIVE:
+                // Every few frames the binarizer currently losing goes first, to notice when it
+                // would do.
+                boolean preferGlobal = processor.globalBinarizerScore >= 0.5f;
+                if (frameCount % 8 == 0) {
+                    preferGlobal = !preferGlobal;
+                }
+                first = preferGlobal ? BinarizerStrategy.Type.GLOBAL_HISTOGRAM : BinarizerStrategy.Type.HYBRID;
+                second = preferGlobal ? BinarizerStrategy.Type.HYBRID : BinarizerStrategy.Type.GLOBAL_HISTOGRAM;
+                break;
+            default:
+                first = BinarizerStrategy.Type.HYBRID;
+                second = null;
+                break;
+        }
+
+        BinarizerStrategy.Type hitBinarizer = first;
+        Result[] result = decodePass(pyramid, level, first, false);
+        if (result == null && second != null && !cancelled) {
+            hitBinarizer = second;
+            result = decodePass(pyramid, level, second, true);
+        }
+        if (result != null && strategy == BinarizerStrategy.ADAPTIVE) {
+            boolean globalHit = hitBinarizer == BinarizerStrategy.Type.GLOBAL_HISTOGRAM;
+            processor.globalBinarizerScore = processor.globalBinarizerScore * 0.8f + (globalHit ? 0.2f : 0f);
+        }
+        return result;
+    }
+
+    private Result[] decodePass(
+            ImagePyramid pyramid, int level, BinarizerStrategy.Type binarizer, boolean matrixReadersOnly) {
+        long start = System.nanoTime();
+        Result[] results = null;
+        detector.setMatrixReadersOnly(matrixReadersOnly);
+        try {
+            BinaryBitmap image = pyramid.getLevel(level, binarizer);
+            detector.setLevel(pyramid, level, binarizer, image);
+            long decodeStart = start;
+            if (detector.hasMatrixReaders()) {
+                // Binarized ahead of the readers, which would otherwise do it on first use, so it
+                // can be timed on its own.
+                image.getBlackMatrix();
+                decodeStart = System.nanoTime();
+                processor.stats.binarization.recordNanos(decodeStart - start);
+            }
+            try {
+                results = decode(image);
+            } finally {
+                processor.stats.decode.recordNanos(System.nanoTime() - decodeStart);
+            }
+            return results;
+        } catch (NotFoundException e) {
+            return null;
+        } finally {
+            processor.stats.recordBinarizerPass(binarizer, results != null, System.nanoTime() - start);
+        }
+    }
+
+    private Result[] decode(BinaryBitmap image) throws NotFoundException {
+        if (processor.multipleResults) {
+            return decodeMultiple(image);
+        }
+        return new Result[]{detector.decode(image, hints)};
+    }
+
+    /**
+     * Finds all the codes of the image, QR codes with the dedicated reader as it finds them all at
+     * once, and the other formats by searching the image piecewise. The piecewise search leaves QR
+     * codes out, so they aren't searched for twice.
+     */
+    private Result[] decodeMultiple(BinaryBitmap image) throws NotFoundException {
+        List<Result> results = new ArrayList<>();
+        if (multipleQrDetector != null) {
+            try {
+                for (Result result : multipleQrDetector.decodeMultiple(image, hints)) {
+                    results.add(result);
+                }
+            } catch (NotFoundException ignored) {
+            }
+        }
+        if (multipleQrDetector == null || nonQrFormats != null) {
+            if (multipleQrDetector != null) {
+                hints.put(DecodeHintType.POSSIBLE_FORMATS, nonQrFormats);
+            }
+            try {
+                for (Result result : multipleDetector.decodeMultiple(image, hints)) {
+                    if (!contains(results, result)) {
+                        results.add(result);
+                    }
+                }
+            } catch (NotFoundException ignored) {
+            } finally {
+                hints.remove(DecodeHintType.POSSIBLE_FORMATS);
+            }
+        }
+        if (results.isEmpty()) {
+            throw NotFoundException.getNotFoundInstance();
+        }
+        return results.toArray(new Result[0]);
+    }
+
+    private static boolean contains(List<Result> results, Result result) {
+        for (Result other : results) {
+            if (other.getBarcodeFormat() == result.getBarcodeFormat()
+                    && other.getText().equals(result.getText())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A pyramid made of a single full resolution image.
+     */
+    private static final class SingleLevel implements ImagePyramid {
+        private final BinaryBitmap image;
+
+        SingleLevel(BinaryBitmap image) {
+            this.image = image;
+        }
+
+        @Override
+        public int getWidth() {
+            return image.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return image.getHeight();
+        }
+
+        @Override
+        public int getRotation() {
+            return 0;
+        }
+
+        @Override
+        public boolean setRegion(int left, int top, int width, int height) {
+            return false;
+        }
+
+        @Override
+        public int getLevelCount() {
+            return 1;
+        }
+
+        @Override
+        public BinaryBitmap getLevel(int level, BinarizerStrategy.Type binarizer) {
+            return image;
+        }
+
+        @Override
+        public BinaryBitmap getRotatedLevel(int level, BinarizerStrategy.Type binarizer) {
+            return image.rotateCounterClockwise();
+        }
+    }
+}
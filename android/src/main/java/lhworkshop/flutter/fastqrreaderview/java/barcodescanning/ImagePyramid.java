@@ -0,0 +1,52 @@
+package lhworkshop.flutter.fastqrreaderview.java.barcodescanning;
+
+import com.google.zxing.BinaryBitmap;
+
+/**
+ * A frame available at several resolutions. Level 0 is the full resolution, and each further level
+ * halves the width and height of the previous one.
+ */
+public interface ImagePyramid {
+
+    /**
+     * Width of the full resolution frame.
+     */
+    int getWidth();
+
+    /**
+     * Height of the full resolution frame.
+     */
+    int getHeight();
+
+    /**
+     * Rotation of the frame to display it, in quarter turns, as in {@link
+     * lhworkshop.flutter.fastqrreaderview.common.FrameMetadata#getRotation()}.
+     */
+    int getRotation();
+
+    /**
+     * Restricts the levels to a region of the current frame, in full resolution coordinates, until
+     * the next frame. Returns false if the pyramid can't, in which case the levels keep covering the
+     * whole frame.
+     */
+    boolean setRegion(int left, int top, int width, int height);
+
+    /**
+     * Number of levels available for the current frame, at least 1.
+     */
+    int getLevelCount();
+
+    /**
+     * The current frame at the given level, binarized with the given binarizer. Lower resolution
+     * levels may be computed on demand.
+     */
+    BinaryBitmap getLevel(int level, BinarizerStrategy.Type binarizer);
+
+    /**
+     * The current frame at the given level rotated by a quarter turn counterclockwise, as {@link
+     * BinaryBitmap#rotateCounterClockwise()} would, binarized with the given binarizer.
+     *
+     * @throws UnsupportedOperationException if the level can't be rotated
+     */
+    BinaryBitmap getRotatedLevel(int level, BinarizerStrategy.Type binarizer);
+}
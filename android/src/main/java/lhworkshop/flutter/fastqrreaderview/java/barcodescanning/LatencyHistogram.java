@@ -0,0 +1,123 @@
+package lhworkshop.flutter.fastqrreaderview.java.barcodescanning;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies with a bounded relative error, in the manner of
+ * HdrHistogram: values are counted in buckets whose width doubles with every power of two, each
+ * power of two being split in {@code 2^SUB_BUCKET_BITS} linear sub-buckets. Recording a value is a
+ * few atomic increments, so decode workers and the camera thread can record concurrently.
+ *
+ * <p>Values are recorded in nanoseconds, so that stages taking less than a microsecond, e.g. handing
+ * a frame over, don't all count as 0. Quantiles are accurate to within 1/16 of the value.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // Values up to 2^46 nanoseconds, i.e. 19 hours; longer ones are counted in the last bucket.
+    private static final int MAX_EXPONENT = 46;
+    private static final int BUCKET_COUNT =
+            SUB_BUCKET_COUNT + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    // Count of each bucket, then the total count, the sum and the maximum of the values.
+    private static final int COUNT = BUCKET_COUNT;
+    private static final int SUM = BUCKET_COUNT + 1;
+    private static final int MAX = BUCKET_COUNT + 2;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT + 3);
+
+    /**
+     * Records a latency, in nanoseconds.
+     */
+    public void recordNanos(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucketIndex(nanos));
+        counts.incrementAndGet(COUNT);
+        counts.addAndGet(SUM, nanos);
+        long max;
+        do {
+            max = counts.get(MAX);
+        } while (nanos > max && !counts.compareAndSet(MAX, max, nanos));
+    }
+
+    /**
+     * Clears the histogram. Values recorded concurrently may be partly kept.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    public long getCount() {
+        return counts.get(COUNT);
+    }
+
+    /**
+     * Returns the value below which {@code quantile} of the values fall, in nanoseconds.
+     */
+    public long getValueAtQuantile(double quantile) {
+        long count = counts.get(COUNT);
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), counts.get(MAX));
+            }
+        }
+        return counts.get(MAX);
+    }
+
+    /**
+     * Returns a summary of the histogram, in fractional microseconds, in a form that can be sent
+     * over a platform channel.
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new HashMap<>();
+        long count = counts.get(COUNT);
+        map.put("count", count);
+        map.put("meanMicros", count == 0 ? 0.0 : toMicros(counts.get(SUM)) / count);
+        map.put("p50Micros", toMicros(getValueAtQuantile(0.5)));
+        map.put("p90Micros", toMicros(getValueAtQuantile(0.9)));
+        map.put("p99Micros", toMicros(getValueAtQuantile(0.99)));
+        map.put("p999Micros", toMicros(getValueAtQuantile(0.999)));
+        map.put("maxMicros", toMicros(counts.get(MAX)));
+        return map;
+    }
+
+    private static double toMicros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+        return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+        int subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        long lowest = (long) (SUB_BUCKET_COUNT + subBucket) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
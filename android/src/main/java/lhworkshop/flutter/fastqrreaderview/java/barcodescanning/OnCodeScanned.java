@@ -4,4 +4,9 @@ import com.google.zxing.Result;
 
 public interface OnCodeScanned {
     void onCodeScanned(Result barcode);
+
+    /**
+     * Receives all the codes found in one frame, when multiple results are enabled.
+     */
+    void onCodesScanned(Result[] barcodes);
 }
@@ -0,0 +1,152 @@
+package lhworkshop.flutter.fastqrreaderview.java.barcodescanning;
+
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+
+/**
+ * Predicts where the codes found will be in the next frames, for continuous scanning: once a
+ * frame had a hit, the next frames are only decoded in a region around the codes, moved along
+ * with them from the last hits.
+ *
+ * <p>Codes may also enter the frame elsewhere, so every few frames the whole frame is decoded
+ * anyway, and the region is given up after a few frames in a row without a hit.
+ *
+ * <p>Shared by the decode workers, which may complete frames out of order.
+ */
+class RegionTracker {
+
+    // Size of the region relative to the bounding box of the last hit, and pixels added on each
+    // side so that small or 1D codes, whose points span a line, still fit with their quiet zone.
+    private static final float EXPANSION = 2f;
+    private static final int MARGIN = 32;
+    // Region sizes are rounded up to multiples of this, so that the region keeps the same size,
+    // and its levels, while the code moves a little closer or further.
+    private static final int ALIGNMENT = 32;
+    // Regions covering more of the frame than this aren't worth it.
+    private static final float MAX_AREA_RATIO = 0.75f;
+    // One frame out of this many is decoded whole while tracking.
+    private static final int FULL_FRAME_INTERVAL = 8;
+    // Frames in a row without a hit after which the codes are considered gone.
+    private static final int MAX_MISSES = 6;
+    // Hits further apart than this many frames aren't used to estimate the motion, nor to predict
+    // it.
+    private static final long MAX_MOTION_FRAMES = 15;
+    // Weight of the motion between the last two hits in the smoothed velocity.
+    private static final float VELOCITY_WEIGHT = 0.5f;
+
+    private boolean tracking;
+    // Center and size of the bounding box of the codes of the last hit, in full resolution pixels.
+    private float centerX;
+    private float centerY;
+    private float boxWidth;
+    private float boxHeight;
+    private long hitSequence;
+    // Smoothed motion of the codes, in pixels per frame. Frames are counted rather than timed, as
+    // the camera delivers them at a steady rate while their decode times vary.
+    private float velocityX;
+    private float velocityY;
+    private int misses;
+    private int framesSinceFullFrame;
+
+    /**
+     * Returns whether to decode the {@code frameWidth} x {@code frameHeight} frame numbered {@code
+     * sequence} in a region only, and if so sets {@code region} to its left, top, width and height.
+     */
+    synchronized boolean nextRegion(int frameWidth, int frameHeight, long sequence, int[] region) {
+        if (!tracking) {
+            return false;
+        }
+        if (++framesSinceFullFrame >= FULL_FRAME_INTERVAL) {
+            framesSinceFullFrame = 0;
+            return false;
+        }
+        int width = Math.min(frameWidth, align(boxWidth * EXPANSION + 2 * MARGIN));
+        int height = Math.min(frameHeight, align(boxHeight * EXPANSION + 2 * MARGIN));
+        if ((float) width * height > MAX_AREA_RATIO * frameWidth * frameHeight) {
+            return false;
+        }
+        // The codes are predicted to move no further than a quarter of their size, so that they are
+        // still in the region where they were last seen if the prediction is off.
+        long elapsed = Math.max(0, Math.min(MAX_MOTION_FRAMES, sequence - hitSequence));
+        float x = centerX + clamp(velocityX * elapsed, boxWidth / 4);
+        float y = centerY + clamp(velocityY * elapsed, boxHeight / 4);
+        region[0] = clamp(Math.round(x - width / 2f), frameWidth - width);
+        region[1] = clamp(Math.round(y - height / 2f), frameHeight - height);
+        region[2] = width;
+        region[3] = height;
+        return true;
+    }
+
+    /**
+     * Records the codes found in the frame numbered {@code sequence}, with their points in full
+     * resolution coordinates, or null if none were.
+     */
+    synchronized void onResults(Result[] results, long sequence) {
+        if (results == null) {
+            if (tracking && ++misses >= MAX_MISSES) {
+                reset();
+            }
+            return;
+        }
+        float minX = Float.POSITIVE_INFINITY;
+        float minY = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY;
+        float maxY = Float.NEGATIVE_INFINITY;
+        for (Result result : results) {
+            ResultPoint[] points = result.getResultPoints();
+            if (points == null) {
+                continue;
+            }
+            for (ResultPoint point : points) {
+                if (point != null) {
+                    minX = Math.min(minX, point.getX());
+                    minY = Math.min(minY, point.getY());
+                    maxX = Math.max(maxX, point.getX());
+                    maxY = Math.max(maxY, point.getY());
+                }
+            }
+        }
+        if (minX > maxX) {
+            // Nowhere to track.
+            return;
+        }
+        float x = (minX + maxX) / 2;
+        float y = (minY + maxY) / 2;
+        long elapsed = sequence - hitSequence;
+        if (!tracking || elapsed > MAX_MOTION_FRAMES) {
+            velocityX = 0;
+            velocityY = 0;
+        } else if (elapsed > 0) {
+            velocityX += ((x - centerX) / elapsed - velocityX) * VELOCITY_WEIGHT;
+            velocityY += ((y - centerY) / elapsed - velocityY) * VELOCITY_WEIGHT;
+        } else {
+            // A frame older than the last hit, completed late.
+            return;
+        }
+        centerX = x;
+        centerY = y;
+        boxWidth = maxX - minX;
+        boxHeight = maxY - minY;
+        hitSequence = sequence;
+        misses = 0;
+        tracking = true;
+    }
+
+    synchronized void reset() {
+        tracking = false;
+        misses = 0;
+        framesSinceFullFrame = 0;
+    }
+
+    private static int align(float size) {
+        return ((int) Math.ceil(size) + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private static int clamp(int value, int max) {
+        return value < 0 ? 0 : value > max ? max : value;
+    }
+
+    private static float clamp(float value, float limit) {
+        return value < -limit ? -limit : value > limit ? limit : value;
+    }
+}
@@ -0,0 +1,157 @@
+package lhworkshop.flutter.fastqrreaderview.java.barcodescanning;
+
+import com.google.zxing.Result;
+import com.google.zxing.ResultMetadataType;
+import com.google.zxing.ResultPoint;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.decoder.Version;
+
+/**
+ * Picks the pyramid level frames are decoded at from the size of the modules of the codes found,
+ * for the auto resolution mode: large codes are decoded at a lower resolution, dense or distant
+ * ones at a higher one.
+ *
+ * <p>The module size is derived from the result points of codes whose size in modules is known:
+ * QR codes, from their version, and EAN/UPC codes. Codes of other formats leave the level as is.
+ */
+class ResolutionTuner {
+
+    // Fewest pixels per module for a level to be chosen.
+    static final float MIN_MODULE_PIXELS = 3f;
+    // Modules must be this much larger than the minimum for a coarser level to be chosen, so that
+    // the level doesn't flip between frames.
+    private static final float HYSTERESIS = 1.5f;
+    // Weight of a larger module size in the smoothed one. Smaller ones are taken right away.
+    private static final float GROWTH_WEIGHT = 0.25f;
+
+    private final int maxLevel;
+
+    // Smoothed size of the smallest modules of recent frames, in full resolution pixels.
+    private float moduleSize = Float.NaN;
+    private int level;
+
+    /**
+     * @param maxLevel     coarsest level to choose
+     * @param initialLevel level until codes are found
+     */
+    ResolutionTuner(int maxLevel, int initialLevel) {
+        this.maxLevel = maxLevel;
+        level = Math.min(initialLevel, maxLevel);
+    }
+
+    /**
+     * Updates the level with the codes found in a frame, and returns it.
+     */
+    synchronized int onResults(Result[] results) {
+        float smallest = Float.NaN;
+        for (Result result : results) {
+            float size = estimateModuleSize(result);
+            if (!Float.isNaN(size) && !(size >= smallest)) {
+                smallest = size;
+            }
+        }
+        if (Float.isNaN(smallest)) {
+            return level;
+        }
+        if (Float.isNaN(moduleSize) || smallest < moduleSize) {
+            moduleSize = smallest;
+        } else {
+            moduleSize += (smallest - moduleSize) * GROWTH_WEIGHT;
+        }
+
+        // Finer as soon as modules get too small at the current level, coarser once they are
+        // comfortably large enough at the next one.
+        while (level > 0 && moduleSize / (1 << level) < MIN_MODULE_PIXELS) {
+            level--;
+        }
+        while (level < maxLevel && moduleSize / (1 << (level + 1)) >= MIN_MODULE_PIXELS * HYSTERESIS) {
+            level++;
+        }
+        return level;
+    }
+
+    synchronized int getLevel() {
+        return level;
+    }
+
+    synchronized float getModuleSize() {
+        return moduleSize;
+    }
+
+    /**
+     * Returns the size of the modules of a code in pixels, or NaN if it can't be told from the
+     * result.
+     */
+    static float estimateModuleSize(Result result) {
+        ResultPoint[] points = result.getResultPoints();
+        if (points == null) {
+            return Float.NaN;
+        }
+        switch (result.getBarcodeFormat()) {
+            case QR_CODE:
+                return qrModuleSize(result, points);
+            // The points are the centers of the start and end guards.
+            case EAN_13:
+            case UPC_A:
+                return linearModuleSize(points, 92);
+            case EAN_8:
+                return linearModuleSize(points, 64);
+            case UPC_E:
+                return linearModuleSize(points, 46.5f);
+            default:
+                return Float.NaN;
+        }
+    }
+
+    private static float linearModuleSize(ResultPoint[] points, float modules) {
+        if (points.length < 2 || points[0] == null || points[1] == null) {
+            return Float.NaN;
+        }
+        return ResultPoint.distance(points[0], points[1]) / modules;
+    }
+
+    /**
+     * The points of a QR code are the centers of its bottom left, top left and top right finder
+     * patterns, 7 modules less than the dimension of the code apart.
+     */
+    private static float qrModuleSize(Result result, ResultPoint[] points) {
+        if (points.length < 3 || points[0] == null || points[1] == null || points[2] == null) {
+            return Float.NaN;
+        }
+        int dimension = qrDimension(result);
+        if (dimension == 0) {
+            return Float.NaN;
+        }
+        float side = (ResultPoint.distance(points[1], points[0]) + ResultPoint.distance(points[1], points[2])) / 2;
+        return side / (dimension - 7);
+    }
+
+    /**
+     * The dimension of a QR code, from the number of data codewords of its version at its error
+     * correction level, or 0 if unknown.
+     */
+    private static int qrDimension(Result result) {
+        Object level = result.getResultMetadata() == null
+                ? null
+                : result.getResultMetadata().get(ResultMetadataType.ERROR_CORRECTION_LEVEL);
+        byte[] rawBytes = result.getRawBytes();
+        if (level == null || rawBytes == null) {
+            return 0;
+        }
+        ErrorCorrectionLevel ecLevel;
+        try {
+            ecLevel = ErrorCorrectionLevel.valueOf(level.toString());
+        } catch (IllegalArgumentException e) {
+            return 0;
+        }
+        for (int number = 1; number <= 40; number++) {
+            Version version = Version.getVersionForNumber(number);
+            int dataCodewords =
+                    version.getTotalCodewords() - version.getECBlocksForLevel(ecLevel).getTotalECCodewords();
+            if (dataCodewords == rawBytes.length) {
+                return version.getDimensionForVersion();
+            }
+        }
+        return 0;
+    }
+}
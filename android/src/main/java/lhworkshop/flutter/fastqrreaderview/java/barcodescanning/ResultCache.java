@@ -0,0 +1,145 @@
+package lhworkshop.flutter.fastqrreaderview.java.barcodescanning;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Result;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the codes recently read, keyed on format and text, to report each code held in view
+ * once, and only after it has been read consistently.
+ *
+ * <p>A code is reported once it has been read {@code confirmations} times, each read less than
+ * {@code cooldown} (or half a second, whichever is longer) after the previous one. It is not
+ * reported again until it hasn't been read for {@code cooldown}. A single misread of a 1D code is
+ * thus never reported when confirmations are required.
+ *
+ * <p>Not thread-safe; the processor only uses it while delivering results.
+ */
+class ResultCache {
+
+    // Expired entries are only purged once the cache holds this many, so purging is rare.
+    private static final int PURGE_THRESHOLD = 32;
+
+    // Longest gap between consistent reads of a code not reported yet, unless the cooldown is
+    // longer.
+    private static final long CONFIRMATION_WINDOW_NANOS = 500 * 1000000L;
+
+    private static final class Key {
+        final BarcodeFormat format;
+        final String text;
+
+        Key(BarcodeFormat format, String text) {
+            this.format = format;
+            this.text = text;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return format == other.format && text.equals(other.text);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * format.hashCode() + text.hashCode();
+        }
+    }
+
+    private static final class Entry {
+        int reads;
+        long lastReadNanos;
+        boolean reported;
+    }
+
+    private final int confirmations;
+    private final long cooldownNanos;
+    private final long confirmationWindowNanos;
+    private final Map<Key, Entry> entries = new HashMap<>();
+
+    /**
+     * @param confirmations  reads needed before a code is reported, at least 1
+     * @param cooldownMillis how long a code must be out of view before it is reported again
+     */
+    ResultCache(int confirmations, long cooldownMillis) {
+        this.confirmations = confirmations;
+        this.cooldownNanos = cooldownMillis * 1000000L;
+        this.confirmationWindowNanos = Math.max(cooldownNanos, CONFIRMATION_WINDOW_NANOS);
+    }
+
+    /**
+     * Whether the cache lets every result through.
+     */
+    boolean isPassThrough() {
+        return confirmations <= 1 && cooldownNanos <= 0;
+    }
+
+    /**
+     * Records the codes read in a frame and returns the ones to report, or null if none.
+     */
+    Result[] filter(Result[] results, long nowNanos, ScanStats stats) {
+        List<Result> reported = null;
+        for (Result result : results) {
+            Entry entry = read(result, nowNanos);
+            if (entry.reported) {
+                stats.recordSuppressedDuplicate();
+            } else if (entry.reads < confirmations) {
+                stats.recordUnconfirmedRead();
+            } else {
+                entry.reported = true;
+                if (reported == null) {
+                    reported = new ArrayList<>(results.length);
+                }
+                reported.add(result);
+            }
+        }
+        return reported == null ? null : reported.toArray(new Result[0]);
+    }
+
+    /**
+     * Records the codes read in a frame whose results are dropped anyway, e.g. by the minimum
+     * result interval, so that codes held in view don't expire meanwhile. Codes are counted as read
+     * towards their confirmations, and reported by the next {@link #filter} call that reads them.
+     */
+    void record(Result[] results, long nowNanos) {
+        for (Result result : results) {
+            read(result, nowNanos);
+        }
+    }
+
+    private Entry read(Result result, long nowNanos) {
+        if (entries.size() >= PURGE_THRESHOLD) {
+            purge(nowNanos);
+        }
+        Key key = new Key(result.getBarcodeFormat(), result.getText());
+        Entry entry = entries.get(key);
+        if (entry == null || isExpired(entry, nowNanos)) {
+            entry = new Entry();
+            entries.put(key, entry);
+        }
+        entry.reads++;
+        entry.lastReadNanos = nowNanos;
+        return entry;
+    }
+
+    private boolean isExpired(Entry entry, long nowNanos) {
+        long gap = nowNanos - entry.lastReadNanos;
+        return gap > (entry.reported ? cooldownNanos : confirmationWindowNanos);
+    }
+
+    private void purge(long nowNanos) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (isExpired(iterator.next(), nowNanos)) {
+                iterator.remove();
+            }
+        }
+    }
+}
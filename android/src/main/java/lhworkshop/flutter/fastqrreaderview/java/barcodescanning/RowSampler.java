@@ -0,0 +1,240 @@
+package lhworkshop.flutter.fastqrreaderview.java.barcodescanning;
+
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.ResultMetadataType;
+import com.google.zxing.ResultPoint;
+import com.google.zxing.ResultPointCallback;
+import com.google.zxing.common.BitArray;
+import com.google.zxing.oned.OneDReader;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes 1D codes from a few rows of a frame, in place of the scan of ZXing's {@link OneDReader},
+ * which reads up to 15 rows around the middle of every frame along the rows of the sensor,
+ * whatever the orientation of the device.
+ *
+ * <p>Codes are usually held level with the display, so frames that are displayed rotated by a
+ * quarter turn, i.e. in portrait on most phones, are read along their columns, through a rotated
+ * view of the luminance. The view is the rotated level the {@link ImagePyramid} keeps, with its
+ * binarizers, when the image is a level of it, so that reading columns doesn't allocate per
+ * frame. Every few frames the other direction is read, for codes held the other way.
+ *
+ * <p>The rows are evenly spaced, at an offset that changes from one frame to the next so that over
+ * a few frames they cover the whole frame, and are read from the middle outwards. Each row is
+ * binarized once per image, when first needed, and shared by the 1D readers tried on the image.
+ *
+ * <p>Not thread-safe: each dispatcher owns its own.
+ */
+class RowSampler {
+
+    // One frame out of this many is read in the direction codes are less likely to be along.
+    private static final int CROSS_INTERVAL = 4;
+    // Offsets of successive frames are multiples of this fraction of the row spacing, modulo the
+    // spacing, which spreads them evenly whatever the number of frames.
+    private static final double OFFSET_STEP = 0.6180339887498949;
+
+    private int rowCount;
+    private long sequence;
+    private boolean vertical;
+
+    // The pyramid level the next images are, whose rotated level is read instead of rotating them.
+    private ImagePyramid pyramid;
+    private int level;
+    private BinarizerStrategy.Type binarizer;
+    private BinaryBitmap levelImage;
+
+    // The image the rows are read from, and the image actually scanned, which is rotated when
+    // reading columns.
+    private BinaryBitmap image;
+    private BinaryBitmap scanned;
+    private boolean rotated;
+    private int rowWidth;
+    private int[] rowNumbers = new int[0];
+    private BitArray[] rows = new BitArray[0];
+    private BitArray[] reversedRows = new BitArray[0];
+    private boolean[] rowReady = new boolean[0];
+    private boolean[] reversedReady = new boolean[0];
+
+    // Hints of the image, with the result point callback mapping points back from the rotated
+    // image, and without the callback for reversed rows, like ZXing does.
+    private Map<DecodeHintType, ?> forwardHints;
+    private Map<DecodeHintType, ?> reversedHints;
+    private final HashMap<DecodeHintType, Object> rotatedHintMap = new HashMap<>();
+    private final HashMap<DecodeHintType, Object> reversedHintMap = new HashMap<>();
+    private ResultPointCallback callback;
+    private final ResultPointCallback rotatingCallback = new ResultPointCallback() {
+        @Override
+        public void foundPossibleResultPoint(ResultPoint point) {
+            callback.foundPossibleResultPoint(rotateBack(point, scanned.getHeight()));
+        }
+    };
+
+    /**
+     * Sets the frame the next images come from.
+     *
+     * @param rowCount number of rows to read per image, 0 to leave the scan to the readers
+     * @param sequence number of the frame, to vary the rows from one frame to the next
+     * @param rotation rotation of the frame to display it, in quarter turns
+     */
+    void setFrame(int rowCount, long sequence, int rotation) {
+        this.rowCount = rowCount;
+        this.sequence = sequence;
+        boolean crossFrame = sequence % CROSS_INTERVAL == CROSS_INTERVAL - 1;
+        vertical = ((rotation & 1) == 1) ^ crossFrame;
+        image = null;
+        pyramid = null;
+        levelImage = null;
+    }
+
+    /**
+     * Sets the pyramid level {@code image} is.
+     */
+    void setLevel(ImagePyramid pyramid, int level, BinarizerStrategy.Type binarizer, BinaryBitmap image) {
+        this.pyramid = pyramid;
+        this.level = level;
+        this.binarizer = binarizer;
+        levelImage = image;
+    }
+
+    boolean isEnabled() {
+        return rowCount > 0;
+    }
+
+    /**
+     * Decodes the sampled rows of an image with a 1D reader, trying each row forwards and then
+     * reversed. Points of the result are in the coordinates of the image.
+     */
+    Result decode(OneDReader reader, BinaryBitmap image, Map<DecodeHintType, ?> hints)
+            throws NotFoundException {
+        if (image != this.image) {
+            prepare(image, hints);
+        }
+        for (int i = 0; i < rowNumbers.length; i++) {
+            try {
+                return orient(reader.decodeRow(rowNumbers[i], row(i), forwardHints), false);
+            } catch (ReaderException ignored) {
+            }
+            try {
+                return orient(reader.decodeRow(rowNumbers[i], reversedRow(i), reversedHints), true);
+            } catch (ReaderException ignored) {
+            }
+        }
+        throw NotFoundException.getNotFoundInstance();
+    }
+
+    private void prepare(BinaryBitmap image, Map<DecodeHintType, ?> hints) {
+        this.image = image;
+        scanned = image;
+        rotated = false;
+        if (vertical && image.isRotateSupported()) {
+            scanned = image == levelImage
+                    ? pyramid.getRotatedLevel(level, binarizer)
+                    : image.rotateCounterClockwise();
+            rotated = true;
+        }
+
+        int height = scanned.getHeight();
+        int count = Math.min(rowCount, height);
+        // Rows are reused across images of the same width only, as reversing a longer row would
+        // shift it.
+        if (rowNumbers.length != count || scanned.getWidth() != rowWidth) {
+            rowWidth = scanned.getWidth();
+            rowNumbers = new int[count];
+            rows = new BitArray[count];
+            reversedRows = new BitArray[count];
+            rowReady = new boolean[count];
+            reversedReady = new boolean[count];
+        }
+        float spacing = (float) height / count;
+        float offset = (float) (spacing * ((sequence * OFFSET_STEP) % 1.0));
+        for (int k = 0; k < count; k++) {
+            // From the middle outwards: middle, above, below, two above...
+            int index = count / 2 + ((k & 1) == 0 ? k / 2 : -(k + 1) / 2);
+            rowNumbers[k] = Math.min(height - 1, (int) (offset + index * spacing));
+            rowReady[k] = false;
+            reversedReady[k] = false;
+        }
+
+        forwardHints = hints;
+        reversedHints = hints;
+        callback = hints == null ? null : (ResultPointCallback) hints.get(DecodeHintType.NEED_RESULT_POINT_CALLBACK);
+        if (callback != null) {
+            reversedHintMap.clear();
+            reversedHintMap.putAll(hints);
+            reversedHintMap.remove(DecodeHintType.NEED_RESULT_POINT_CALLBACK);
+            reversedHints = reversedHintMap;
+            if (rotated) {
+                rotatedHintMap.clear();
+                rotatedHintMap.putAll(hints);
+                rotatedHintMap.put(DecodeHintType.NEED_RESULT_POINT_CALLBACK, rotatingCallback);
+                forwardHints = rotatedHintMap;
+            }
+        }
+    }
+
+    private BitArray row(int i) throws NotFoundException {
+        if (!rowReady[i]) {
+            rows[i] = scanned.getBlackRow(rowNumbers[i], rows[i]);
+            rowReady[i] = true;
+        }
+        return rows[i];
+    }
+
+    private BitArray reversedRow(int i) throws NotFoundException {
+        if (!reversedReady[i]) {
+            reversedRows[i] = scanned.getBlackRow(rowNumbers[i], reversedRows[i]);
+            reversedRows[i].reverse();
+            reversedReady[i] = true;
+        }
+        return reversedRows[i];
+    }
+
+    /**
+     * Maps the points of a result found on a reversed or rotated row back to the image, and records
+     * its orientation, as ZXing's own scan does.
+     */
+    private Result orient(Result result, boolean reversed) {
+        ResultPoint[] points = result.getResultPoints();
+        int orientation = 0;
+        if (reversed) {
+            orientation = 180;
+            if (points != null) {
+                int width = scanned.getWidth();
+                for (int i = 0; i < points.length; i++) {
+                    if (points[i] != null) {
+                        points[i] = new ResultPoint(width - points[i].getX() - 1, points[i].getY());
+                    }
+                }
+            }
+        }
+        if (rotated) {
+            orientation = (orientation + 270) % 360;
+            if (points != null) {
+                int height = scanned.getHeight();
+                for (int i = 0; i < points.length; i++) {
+                    if (points[i] != null) {
+                        points[i] = rotateBack(points[i], height);
+                    }
+                }
+            }
+        }
+        if (orientation != 0) {
+            result.putMetadata(ResultMetadataType.ORIENTATION, orientation);
+        }
+        return result;
+    }
+
+    /**
+     * Maps a point of the image rotated counterclockwise, {@code height} pixels high, back to the
+     * image.
+     */
+    private static ResultPoint rotateBack(ResultPoint point, int height) {
+        return new ResultPoint(height - point.getY() - 1, point.getX());
+    }
+}
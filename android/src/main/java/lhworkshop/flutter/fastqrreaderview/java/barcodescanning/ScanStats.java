@@ -0,0 +1,321 @@
+package lhworkshop.flutter.fastqrreaderview.java.barcodescanning;
+
+import com.google.zxing.BarcodeFormat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of a scanning session, updated lock-free by the camera thread,
+ * the decode workers and the result delivery.
+ */
+public class ScanStats {
+
+    /**
+     * Number of resolution levels tracked, level 0 being the full resolution.
+     */
+    public static final int PYRAMID_LEVELS = 3;
+
+    // Frames handed to the decode engine, and pending frames replaced by a newer one before any
+    // worker took them.
+    private final AtomicLongArray framesReceived = new AtomicLongArray(1);
+    private final AtomicLongArray framesOverwritten = new AtomicLongArray(1);
+    // Frames after which the camera had no free buffer left to fill, so that it drops the next
+    // frames until one is handed back.
+    private final AtomicLongArray poolExhausted = new AtomicLongArray(1);
+    // Frames taken by a worker while scanning was stopped, and not decoded.
+    private final AtomicLongArray throttledFrames = new AtomicLongArray(1);
+    // Frames not handed to the workers as they arrived faster than the target frame rate.
+    private final AtomicLongArray framesSkipped = new AtomicLongArray(1);
+    // Decodes given up as the camera was stopping.
+    private final AtomicLongArray cancelledDecodes = new AtomicLongArray(1);
+
+    // Frames skipped by the frame gate before binarization: blurred ones, and ones that barely
+    // changed since a frame decoded without a hit.
+    private final AtomicLongArray blurredFrames = new AtomicLongArray(1);
+    private final AtomicLongArray unchangedFrames = new AtomicLongArray(1);
+    // Sharpness and change of the last frame checked by the frame gate, to tune its thresholds.
+    private volatile float lastSharpness;
+    private volatile float lastFrameChange;
+
+    // The frame rate the camera was asked for, the rate frames arrived at, and how many frames are
+    // received per frame decoded, as set by the frame rate governor. Current values rather than
+    // counters, so they aren't reset.
+    private volatile float targetFrameRate;
+    private volatile float measuredFrameRate;
+    private volatile int decodeInterval = 1;
+    // The pyramid level chosen in the auto resolution mode, -1 otherwise, and the module size it
+    // was chosen from.
+    private volatile int autoResolutionLevel = -1;
+    private volatile float moduleSize = Float.NaN;
+
+    // Reader attempts and hits per format, indexed by BarcodeFormat ordinal. An attempt of a reader
+    // decoding several formats counts for each of them.
+    private final AtomicLongArray formatAttempts = new AtomicLongArray(BarcodeFormat.values().length);
+    private final AtomicLongArray formatHits = new AtomicLongArray(BarcodeFormat.values().length);
+
+    // Time spent by the camera thread handing a frame over to the decode engine.
+    public final LatencyHistogram handoff = new LatencyHistogram();
+    // Time a frame waits to be taken by a worker.
+    public final LatencyHistogram queueWait = new LatencyHistogram();
+    // Time spent checking a frame with the frame gate.
+    public final LatencyHistogram gate = new LatencyHistogram();
+    // Time spent binarizing a frame for the matrix (2D) readers. 1D readers binarize the rows they
+    // sample themselves, which is accounted for in decode.
+    public final LatencyHistogram binarization = new LatencyHistogram();
+    // Time spent in the readers.
+    public final LatencyHistogram decode = new LatencyHistogram();
+    // Time from a result being found to it being sent to Dart.
+    public final LatencyHistogram delivery = new LatencyHistogram();
+
+    // Decode attempts and hits per pyramid level.
+    private final AtomicLongArray levelAttempts = new AtomicLongArray(PYRAMID_LEVELS);
+    private final AtomicLongArray levelHits = new AtomicLongArray(PYRAMID_LEVELS);
+    // Frames decoded again at full resolution after a miss at low resolution.
+    private final AtomicLongArray escalations = new AtomicLongArray(1);
+    // Frames decoded in the region of the codes being tracked only, and those with a hit.
+    private final AtomicLongArray trackedFrames = new AtomicLongArray(1);
+    private final AtomicLongArray trackedHits = new AtomicLongArray(1);
+
+    // Reads held back by the result cache: codes already reported, and codes not read enough times
+    // yet.
+    private final AtomicLongArray suppressedDuplicates = new AtomicLongArray(1);
+    private final AtomicLongArray unconfirmedReads = new AtomicLongArray(1);
+    // Results dropped by the minimum result interval.
+    private final AtomicLongArray rateLimitedResults = new AtomicLongArray(1);
+    // Frames of results that found the queue to Dart full: dropped, merged with the newest frame
+    // queued, or for which a decoder waited.
+    private final AtomicLongArray droppedResults = new AtomicLongArray(1);
+    private final AtomicLongArray coalescedResults = new AtomicLongArray(1);
+    private final AtomicLongArray blockedResults = new AtomicLongArray(1);
+
+    // Decode passes, hits and time spent per binarizer, indexed by BinarizerStrategy.Type ordinal.
+    private final AtomicLongArray binarizerAttempts =
+            new AtomicLongArray(BinarizerStrategy.Type.values().length);
+    private final AtomicLongArray binarizerHits =
+            new AtomicLongArray(BinarizerStrategy.Type.values().length);
+    private final AtomicLongArray binarizerNanos =
+            new AtomicLongArray(BinarizerStrategy.Type.values().length);
+
+    public void recordFrameReceived() {
+        framesReceived.incrementAndGet(0);
+    }
+
+    public void recordFrameOverwritten() {
+        framesOverwritten.incrementAndGet(0);
+    }
+
+    public void recordPoolExhausted() {
+        poolExhausted.incrementAndGet(0);
+    }
+
+    public void recordFrameSkipped() {
+        framesSkipped.incrementAndGet(0);
+    }
+
+    public void recordBlurredFrame() {
+        blurredFrames.incrementAndGet(0);
+    }
+
+    public void recordUnchangedFrame() {
+        unchangedFrames.incrementAndGet(0);
+    }
+
+    public void recordResultDropped() {
+        droppedResults.incrementAndGet(0);
+    }
+
+    public void recordResultCoalesced() {
+        coalescedResults.incrementAndGet(0);
+    }
+
+    public void recordResultBlocked() {
+        blockedResults.incrementAndGet(0);
+    }
+
+    public void setFrameGateMeasures(float sharpness, float change) {
+        lastSharpness = sharpness;
+        lastFrameChange = change;
+    }
+
+    public void setFrameRate(float targetFps, float measuredFps, int decodeInterval) {
+        targetFrameRate = targetFps;
+        measuredFrameRate = measuredFps;
+        this.decodeInterval = decodeInterval;
+    }
+
+    void setResolution(int level, float moduleSize) {
+        autoResolutionLevel = level;
+        this.moduleSize = moduleSize;
+    }
+
+    void recordThrottledFrame() {
+        throttledFrames.incrementAndGet(0);
+    }
+
+    void recordCancelledDecode() {
+        cancelledDecodes.incrementAndGet(0);
+    }
+
+    void recordFormatAttempt(BarcodeFormat[] formats) {
+        for (BarcodeFormat format : formats) {
+            formatAttempts.incrementAndGet(format.ordinal());
+        }
+    }
+
+    void recordFormatHit(BarcodeFormat format) {
+        formatHits.incrementAndGet(format.ordinal());
+    }
+
+    void recordLevelAttempt(int level, boolean hit) {
+        levelAttempts.incrementAndGet(level);
+        if (hit) {
+            levelHits.incrementAndGet(level);
+        }
+    }
+
+    void recordEscalation() {
+        escalations.incrementAndGet(0);
+    }
+
+    void recordTrackedFrame() {
+        trackedFrames.incrementAndGet(0);
+    }
+
+    void recordTrackedHit() {
+        trackedHits.incrementAndGet(0);
+    }
+
+    void recordSuppressedDuplicate() {
+        suppressedDuplicates.incrementAndGet(0);
+    }
+
+    void recordUnconfirmedRead() {
+        unconfirmedReads.incrementAndGet(0);
+    }
+
+    void recordRateLimitedResult() {
+        rateLimitedResults.incrementAndGet(0);
+    }
+
+    void recordBinarizerPass(BinarizerStrategy.Type binarizer, boolean hit, long nanos) {
+        int index = binarizer.ordinal();
+        binarizerAttempts.incrementAndGet(index);
+        if (hit) {
+            binarizerHits.incrementAndGet(index);
+        }
+        binarizerNanos.addAndGet(index, nanos);
+    }
+
+    /**
+     * Returns a snapshot of the counters, in a form that can be sent over a platform channel.
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("framesReceived", framesReceived.get(0));
+        map.put("framesOverwritten", framesOverwritten.get(0));
+        map.put("poolExhausted", poolExhausted.get(0));
+        map.put("throttledFrames", throttledFrames.get(0));
+        map.put("framesSkipped", framesSkipped.get(0));
+        map.put("cancelledDecodes", cancelledDecodes.get(0));
+        map.put("blurredFrames", blurredFrames.get(0));
+        map.put("unchangedFrames", unchangedFrames.get(0));
+        map.put("lastSharpness", (double) lastSharpness);
+        map.put("lastFrameChange", (double) lastFrameChange);
+        long received = framesReceived.get(0);
+        long lost = framesOverwritten.get(0) + framesSkipped.get(0);
+        map.put("dropRatio", received == 0 ? 0.0 : Math.min(1.0, (double) lost / received));
+        Map<String, Object> frameRate = new HashMap<>();
+        frameRate.put("target", (double) targetFrameRate);
+        frameRate.put("measured", (double) measuredFrameRate);
+        frameRate.put("decodeInterval", decodeInterval);
+        map.put("frameRate", frameRate);
+        if (autoResolutionLevel >= 0) {
+            Map<String, Object> resolution = new HashMap<>();
+            resolution.put("level", autoResolutionLevel);
+            float size = moduleSize;
+            resolution.put("moduleSize", Float.isNaN(size) ? null : (double) size);
+            map.put("autoResolution", resolution);
+        }
+
+        Map<String, Object> formats = new HashMap<>();
+        for (BarcodeFormat format : BarcodeFormat.values()) {
+            long attempts = formatAttempts.get(format.ordinal());
+            if (attempts == 0) {
+                continue;
+            }
+            long hits = formatHits.get(format.ordinal());
+            Map<String, Object> counters = new HashMap<>();
+            counters.put("hits", hits);
+            counters.put("misses", Math.max(0, attempts - hits));
+            formats.put(format.name(), counters);
+        }
+        map.put("formats", formats);
+
+        Map<String, Object> latency = new HashMap<>();
+        latency.put("handoff", handoff.toMap());
+        latency.put("queueWait", queueWait.toMap());
+        latency.put("gate", gate.toMap());
+        latency.put("binarization", binarization.toMap());
+        latency.put("decode", decode.toMap());
+        latency.put("delivery", delivery.toMap());
+        map.put("latency", latency);
+
+        map.put("pyramidAttempts", toList(levelAttempts));
+        map.put("pyramidHits", toList(levelHits));
+        map.put("pyramidEscalations", escalations.get(0));
+        map.put("trackedFrames", trackedFrames.get(0));
+        map.put("trackedHits", trackedHits.get(0));
+        map.put("suppressedDuplicates", suppressedDuplicates.get(0));
+        map.put("unconfirmedReads", unconfirmedReads.get(0));
+        map.put("rateLimitedResults", rateLimitedResults.get(0));
+        map.put("droppedResults", droppedResults.get(0));
+        map.put("coalescedResults", coalescedResults.get(0));
+        map.put("blockedResults", blockedResults.get(0));
+        for (BinarizerStrategy.Type binarizer : BinarizerStrategy.Type.values()) {
+            int index = binarizer.ordinal();
+            Map<String, Object> counters = new HashMap<>();
+            counters.put("attempts", binarizerAttempts.get(index));
+            counters.put("hits", binarizerHits.get(index));
+            counters.put("totalMicros", binarizerNanos.get(index) / 1000);
+            map.put(binarizer == BinarizerStrategy.Type.HYBRID ? "hybridBinarizer" : "globalBinarizer", counters);
+        }
+        return map;
+    }
+
+    /**
+     * Clears the counters and histograms. Updates made concurrently may be partly kept.
+     */
+    public void reset() {
+        clear(framesReceived, framesOverwritten, poolExhausted, throttledFrames, framesSkipped,
+                cancelledDecodes, blurredFrames, unchangedFrames, formatAttempts, formatHits, levelAttempts, levelHits, escalations,
+                trackedFrames, trackedHits, suppressedDuplicates, unconfirmedReads,
+                rateLimitedResults, droppedResults, coalescedResults, blockedResults,
+                binarizerAttempts, binarizerHits, binarizerNanos);
+        handoff.reset();
+        queueWait.reset();
+        gate.reset();
+        binarization.reset();
+        decode.reset();
+        delivery.reset();
+    }
+
+    private static void clear(AtomicLongArray... arrays) {
+        for (AtomicLongArray array : arrays) {
+            for (int i = 0; i < array.length(); i++) {
+                array.set(i, 0);
+            }
+        }
+    }
+
+    private static List<Long> toList(AtomicLongArray array) {
+        List<Long> list = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            list.add(array.get(i));
+        }
+        return list;
+    }
+}
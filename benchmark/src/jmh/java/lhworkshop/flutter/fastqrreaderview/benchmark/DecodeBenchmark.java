@@ -0,0 +1,91 @@
+package lhworkshop.flutter.fastqrreaderview.benchmark;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Result;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import lhworkshop.flutter.fastqrreaderview.common.FrameContext;
+import lhworkshop.flutter.fastqrreaderview.common.FrameMetadata;
+import lhworkshop.flutter.fastqrreaderview.java.barcodescanning.BarcodeScanningProcessor;
+import lhworkshop.flutter.fastqrreaderview.java.barcodescanning.BinarizerStrategy;
+import lhworkshop.flutter.fastqrreaderview.java.barcodescanning.FrameDecoder;
+import lhworkshop.flutter.fastqrreaderview.java.barcodescanning.OnCodeScanned;
+
+/**
+ * Decodes one preview frame per operation through the plugin's pipeline, as a decode worker does:
+ * {@link FrameContext} for the luminance and binarization, {@link FrameDecoder} for the readers.
+ */
+@State(Scope.Thread)
+public class DecodeBenchmark {
+
+    @Param({"QR_CODE", "DATA_MATRIX", "AZTEC", "PDF_417", "CODE_128", "EAN_13"})
+    public String format;
+
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String resolution;
+
+    @Param({"HYBRID", "GLOBAL_FIRST", "ADAPTIVE"})
+    public String binarizer;
+
+    @Param({"0"})
+    public int pyramidLevels;
+
+    private ByteBuffer[] frames;
+    private FrameMetadata metadata;
+    private final FrameContext frameContext = new FrameContext();
+    private BarcodeScanningProcessor processor;
+    private FrameDecoder decoder;
+    private int nextFrame;
+    private boolean hit;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BarcodeFormat barcodeFormat = BarcodeFormat.valueOf(format);
+        int[] size = FrameCorpus.parseResolution(resolution);
+        byte[][] rendered = FrameCorpus.render(barcodeFormat, size[0], size[1], 42);
+        frames = new ByteBuffer[rendered.length];
+        for (int i = 0; i < rendered.length; i++) {
+            frames[i] = ByteBuffer.wrap(rendered[i]);
+        }
+        metadata = new FrameMetadata.Builder().setWidth(size[0]).setHeight(size[1]).build();
+
+        ArrayList<BarcodeFormat> formats = new ArrayList<>();
+        formats.add(barcodeFormat);
+        processor = new BarcodeScanningProcessor(formats);
+        processor.setBinarizerStrategy(BinarizerStrategy.valueOf(binarizer));
+        processor.setPyramid(pyramidLevels, 3);
+        processor.callback = new OnCodeScanned() {
+            @Override
+            public void onCodeScanned(Result barcode) {
+                hit = true;
+            }
+
+            @Override
+            public void onCodesScanned(Result[] barcodes) {
+                hit = true;
+            }
+        };
+        processor.shouldThrottle.set(false);
+        decoder = processor.createDecoder();
+    }
+
+    @Benchmark
+    public boolean decode(DecodeCounters counters) {
+        ByteBuffer frame = frames[nextFrame];
+        nextFrame = (nextFrame + 1) % frames.length;
+        hit = false;
+        frameContext.setFrame(frame, metadata, processor.getPyramidLevels());
+        decoder.detectInImage(processor.nextSequence(), frameContext);
+        counters.record(hit);
+        return hit;
+    }
+}
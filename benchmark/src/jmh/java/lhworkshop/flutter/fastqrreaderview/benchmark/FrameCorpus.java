@@ -0,0 +1,171 @@
+package lhworkshop.flutter.fastqrreaderview.benchmark;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.MultiFormatWriter;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Synthetic NV21 preview frames showing a code rendered with the ZXing writers, degraded the way
+ * camera frames are: uneven lighting, rotation, blur and sensor noise.
+ *
+ * <p>Frames are generated from a fixed seed, so every run decodes the same corpus.
+ */
+final class FrameCorpus {
+
+    // Frames per corpus. Benchmarks cycle through them, so results average over the variations.
+    static final int FRAME_COUNT = 16;
+
+    private static final int DARK = 40;
+    private static final int LIGHT = 190;
+    // Above ~4, noise alone exceeds the contrast HybridBinarizer takes for a uniform block.
+    private static final double NOISE_SIGMA = 3;
+
+    private FrameCorpus() {
+    }
+
+    /**
+     * Parses a {@code "<width>x<height>"} resolution.
+     */
+    static int[] parseResolution(String resolution) {
+        String[] parts = resolution.split("x");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Invalid resolution: " + resolution);
+        }
+        return new int[]{Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+    }
+
+    /**
+     * Renders {@link #FRAME_COUNT} frames of a {@code width} x {@code height} preview, each showing
+     * a different code of {@code format}.
+     */
+    static byte[][] render(BarcodeFormat format, int width, int height, long seed) {
+        Random random = new Random(seed);
+        byte[][] frames = new byte[FRAME_COUNT][];
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            BitMatrix code = encode(format, contents(format, i));
+            boolean linear = code.getHeight() == 1;
+            // Row based readers only tolerate a slight skew.
+            double maxAngle = linear ? 5 : 15;
+            double angle = Math.toRadians((random.nextDouble() * 2 - 1) * maxAngle);
+            boolean blur = i % 2 == 1;
+            frames[i] = renderFrame(code, linear, width, height, angle, blur, random);
+        }
+        return frames;
+    }
+
+    private static String contents(BarcodeFormat format, int index) {
+        switch (format) {
+            case EAN_13:
+                return withEanChecksum(String.format("590123%06d", 4000 + index));
+            case EAN_8:
+                return withEanChecksum(String.format("9638%03d", index));
+            case UPC_A:
+                return withEanChecksum(String.format("03600%06d", 2000 + index));
+            case ITF:
+                return String.format("%014d", 30000000L + index);
+            case CODABAR:
+                return String.format("A%08dB", 1000 + index);
+            case CODE_39:
+            case CODE_93:
+            case CODE_128:
+                // Short enough for modules of a couple of pixels at 640 wide.
+                return "BENCH-" + index;
+            default:
+                return "https://example.com/bench/" + index;
+        }
+    }
+
+    private static String withEanChecksum(String digits) {
+        int sum = 0;
+        for (int i = digits.length() - 1, weight = 3; i >= 0; i--, weight = 4 - weight) {
+            sum += (digits.charAt(i) - '0') * weight;
+        }
+        return digits + (10 - sum % 10) % 10;
+    }
+
+    /**
+     * Encodes at the writer's natural size, one pixel per module and one row for 1D codes.
+     */
+    private static BitMatrix encode(BarcodeFormat format, String contents) {
+        Map<EncodeHintType, Object> hints = new EnumMap<>(EncodeHintType.class);
+        hints.put(EncodeHintType.MARGIN, 0);
+        try {
+            return new MultiFormatWriter().encode(contents, format, 0, 0, hints);
+        } catch (WriterException e) {
+            throw new IllegalArgumentException("Cannot encode " + format + ": " + contents, e);
+        }
+    }
+
+    private static byte[] renderFrame(
+            BitMatrix code, boolean linear, int width, int height, double angle, boolean blur,
+            Random random) {
+        // Pixels per module, horizontally and vertically.
+        double scaleX;
+        double scaleY;
+        if (linear) {
+            scaleX = width * 0.7 / code.getWidth();
+            scaleY = height * 0.25;
+        } else {
+            double fit = Math.min(width * 0.7 / code.getWidth(), height * 0.7 / code.getHeight());
+            scaleX = Math.min(fit, Math.min(width, height) * 0.45 / Math.max(code.getWidth(), code.getHeight()));
+            scaleY = scaleX;
+        }
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+        double centerX = width / 2.0;
+        double centerY = height / 2.0;
+
+        int[] luminance = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // Lighting falls off from the top left corner.
+                double light = LIGHT - 50.0 * (x + y) / (width + height);
+                double dx = x - centerX;
+                double dy = y - centerY;
+                int moduleX = (int) Math.floor((dx * cos + dy * sin) / scaleX + code.getWidth() / 2.0);
+                int moduleY = (int) Math.floor((-dx * sin + dy * cos) / scaleY + code.getHeight() / 2.0);
+                boolean dark = moduleX >= 0 && moduleX < code.getWidth()
+                        && moduleY >= 0 && moduleY < code.getHeight()
+                        && code.get(moduleX, moduleY);
+                luminance[y * width + x] = dark ? DARK : (int) light;
+            }
+        }
+        if (blur) {
+            luminance = boxBlur(luminance, width, height);
+        }
+
+        byte[] frame = new byte[width * height * 3 / 2];
+        for (int i = 0; i < luminance.length; i++) {
+            int value = (int) Math.round(luminance[i] + random.nextGaussian() * NOISE_SIGMA);
+            frame[i] = (byte) Math.max(0, Math.min(255, value));
+        }
+        // Neutral chroma.
+        Arrays.fill(frame, width * height, frame.length, (byte) 128);
+        return frame;
+    }
+
+    private static int[] boxBlur(int[] luminance, int width, int height) {
+        int[] blurred = new int[luminance.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int sum = 0;
+                int count = 0;
+                for (int yy = Math.max(0, y - 1); yy <= Math.min(height - 1, y + 1); yy++) {
+                    for (int xx = Math.max(0, x - 1); xx <= Math.min(width - 1, x + 1); xx++) {
+                        sum += luminance[yy * width + xx];
+                        count++;
+                    }
+                }
+                blurred[y * width + x] = sum / count;
+            }
+        }
+        return blurred;
+    }
+}
@@ -0,0 +1,100 @@
+package lhworkshop.flutter.fastqrreaderview.benchmark;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.common.HybridBinarizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+
+import lhworkshop.flutter.fastqrreaderview.common.FrameContext;
+import lhworkshop.flutter.fastqrreaderview.common.FrameMetadata;
+import lhworkshop.flutter.fastqrreaderview.java.barcodescanning.BinarizerStrategy;
+
+/**
+ * Binarizes the Y plane of camera2 images, held in a direct buffer with padded rows, the two ways
+ * it can be done: copied into a {@code byte[]} for a {@link PlanarYUVLuminanceSource}, which needs
+ * contiguous rows on the heap, or read in place through a {@link FrameContext}. The difference is
+ * the cost of the copy, in time and in allocated bytes per frame.
+ *
+ * <pre>
+ *   gradle jmh -Pjmh.includes=LuminanceBenchmark -Pjmh.resolutions=1280x720
+ * </pre>
+ */
+@State(Scope.Thread)
+public class LuminanceBenchmark {
+
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String resolution;
+
+    // Bytes of padding at the end of each row, as camera HALs align rows.
+    @Param({"0", "64"})
+    public int rowPadding;
+
+    private ByteBuffer[] planes;
+    private int width;
+    private int height;
+    private int rowStride;
+    private FrameMetadata metadata;
+    private final FrameContext frameContext = new FrameContext();
+    private int nextFrame;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int[] size = FrameCorpus.parseResolution(resolution);
+        width = size[0];
+        height = size[1];
+        rowStride = width + rowPadding;
+        byte[][] frames = FrameCorpus.render(BarcodeFormat.QR_CODE, width, height, 42);
+        planes = new ByteBuffer[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            // Like an Image plane, the last row isn't padded.
+            ByteBuffer plane = ByteBuffer.allocateDirect(rowStride * (height - 1) + width);
+            for (int y = 0; y < height; y++) {
+                plane.position(y * rowStride);
+                plane.put(frames[i], y * width, width);
+            }
+            plane.clear();
+            planes[i] = plane;
+        }
+        metadata = new FrameMetadata.Builder()
+                .setWidth(width)
+                .setHeight(height)
+                .setRowStride(rowStride)
+                .build();
+    }
+
+    @Benchmark
+    public BitMatrix copied() throws NotFoundException {
+        ByteBuffer plane = nextPlane();
+        byte[] luminance = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            plane.position(y * rowStride);
+            plane.get(luminance, y * width, width);
+        }
+        plane.clear();
+        PlanarYUVLuminanceSource source =
+                new PlanarYUVLuminanceSource(luminance, width, height, 0, 0, width, height, false);
+        return new HybridBinarizer(source).getBlackMatrix();
+    }
+
+    @Benchmark
+    public BitMatrix inPlace() throws NotFoundException {
+        frameContext.setFrame(nextPlane(), metadata, 0);
+        return frameContext.getLevel(0, BinarizerStrategy.Type.HYBRID).getBlackMatrix();
+    }
+
+    private ByteBuffer nextPlane() {
+        ByteBuffer plane = planes[nextFrame];
+        nextFrame = (nextFrame + 1) % planes.length;
+        return plane;
+    }
+}
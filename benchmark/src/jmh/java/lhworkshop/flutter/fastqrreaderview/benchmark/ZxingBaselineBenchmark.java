@@ -0,0 +1,73 @@
+package lhworkshop.flutter.fastqrreaderview.benchmark;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.common.HybridBinarizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Decodes the same frames as {@link DecodeBenchmark} with stock ZXing, allocating a {@link
+ * PlanarYUVLuminanceSource} and a {@link HybridBinarizer} per frame, as the plugin originally did.
+ * The reference the pipeline is measured against.
+ */
+@State(Scope.Thread)
+public class ZxingBaselineBenchmark {
+
+    @Param({"QR_CODE", "DATA_MATRIX", "AZTEC", "PDF_417", "CODE_128", "EAN_13"})
+    public String format;
+
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String resolution;
+
+    private byte[][] frames;
+    private int width;
+    private int height;
+    private final MultiFormatReader reader = new MultiFormatReader();
+    private int nextFrame;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BarcodeFormat barcodeFormat = BarcodeFormat.valueOf(format);
+        int[] size = FrameCorpus.parseResolution(resolution);
+        width = size[0];
+        height = size[1];
+        frames = FrameCorpus.render(barcodeFormat, width, height, 42);
+
+        Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
+        hints.put(DecodeHintType.POSSIBLE_FORMATS, Collections.singletonList(barcodeFormat));
+        reader.setHints(hints);
+    }
+
+    @Benchmark
+    public boolean decode(DecodeCounters counters) {
+        byte[] frame = frames[nextFrame];
+        nextFrame = (nextFrame + 1) % frames.length;
+        PlanarYUVLuminanceSource source =
+                new PlanarYUVLuminanceSource(frame, width, height, 0, 0, width, height, false);
+        boolean hit;
+        try {
+            reader.decodeWithState(new BinaryBitmap(new HybridBinarizer(source)));
+            hit = true;
+        } catch (NotFoundException e) {
+            hit = false;
+        } finally {
+            reader.reset();
+        }
+        counters.record(hit);
+        return hit;
+    }
+}
@@ -0,0 +1,293 @@
+package lhworkshop.flutter.fastqrreaderview.common;
+
+import com.google.zxing.Binarizer;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.common.BitArray;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.common.GlobalHistogramBinarizer;
+import com.google.zxing.common.HybridBinarizer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import lhworkshop.flutter.fastqrreaderview.java.barcodescanning.BinarizerStrategy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link FrameLuminanceSource} and the reusable binarizers reading from it against ZXing's
+ * {@link PlanarYUVLuminanceSource}, {@link HybridBinarizer} and {@link GlobalHistogramBinarizer},
+ * bit for bit, over random frame layouts: crops, mirroring, padded rows, interleaved pixels, and
+ * heap or direct buffers.
+ */
+public class FrameLuminanceSourceTest {
+
+    private static final int LAYOUTS = 200;
+
+    /**
+     * A random frame, and where its luminance lies in the buffer a camera would hand over.
+     */
+    private static class Frame {
+        final int width;
+        final int height;
+        final int rowStride;
+        final int pixelStride;
+        final int cropLeft;
+        final int cropTop;
+        final int cropWidth;
+        final int cropHeight;
+        final boolean mirror;
+        // The packed luminance, as ZXing reads it.
+        final byte[] luminance;
+        final ByteBuffer data;
+
+        /**
+         * A frame of a random layout.
+         */
+        static Frame random(Random random) {
+            int width = 40 + random.nextInt(300);
+            int height = 40 + random.nextInt(300);
+            int pixelStride = 1 + random.nextInt(2);
+            int rowStride = (width - 1) * pixelStride + 1 + random.nextInt(64);
+            int cropWidth = 40 + random.nextInt(width - 39);
+            int cropHeight = 40 + random.nextInt(height - 39);
+            int cropLeft = random.nextInt(width - cropWidth + 1);
+            int cropTop = random.nextInt(height - cropHeight + 1);
+            return new Frame(random, width, height, rowStride, pixelStride, cropLeft, cropTop, cropWidth,
+                    cropHeight, random.nextBoolean(), random.nextBoolean());
+        }
+
+        /**
+         * A new frame laid out like {@code frame}, in a buffer of the same kind.
+         */
+        Frame(Random random, Frame frame) {
+            this(random, frame.width, frame.height, frame.rowStride, frame.pixelStride, frame.cropLeft,
+                    frame.cropTop, frame.cropWidth, frame.cropHeight, frame.mirror, frame.data.isDirect());
+        }
+
+        private Frame(Random random, int width, int height, int rowStride, int pixelStride, int cropLeft,
+                      int cropTop, int cropWidth, int cropHeight, boolean mirror, boolean direct) {
+            this.width = width;
+            this.height = height;
+            this.rowStride = rowStride;
+            this.pixelStride = pixelStride;
+            this.cropLeft = cropLeft;
+            this.cropTop = cropTop;
+            this.cropWidth = cropWidth;
+            this.cropHeight = cropHeight;
+            this.mirror = mirror;
+
+            // Blocks of varying brightness, with noise, so that both binarizers have edges to find.
+            int shift = random.nextInt(64);
+            luminance = new byte[width * height];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    luminance[y * width + x] = (byte) (shift + x / 7 * 13 + y / 5 * 29 + random.nextInt(40));
+                }
+            }
+            int size = (height - 1) * rowStride + (width - 1) * pixelStride + 1;
+            data = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+            // The bytes between pixels and rows belong to other planes or padding.
+            for (int i = 0; i < size; i++) {
+                data.put(i, (byte) random.nextInt(256));
+            }
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    data.put(y * rowStride + x * pixelStride, luminance[y * width + x]);
+                }
+            }
+        }
+
+        PlanarYUVLuminanceSource reference() {
+            return new PlanarYUVLuminanceSource(
+                    luminance, width, height, cropLeft, cropTop, cropWidth, cropHeight, mirror);
+        }
+
+        FrameLuminanceSource source() {
+            FrameLuminanceSource source = new FrameLuminanceSource(
+                    width, height, rowStride, pixelStride, cropLeft, cropTop, cropWidth, cropHeight, mirror);
+            source.setFrame(data);
+            return source;
+        }
+
+        FrameMetadata metadata() {
+            return new FrameMetadata.Builder()
+                    .setWidth(width)
+                    .setHeight(height)
+                    .setRowStride(rowStride)
+                    .setPixelStride(pixelStride)
+                    .setCrop(cropLeft, cropTop, cropWidth, cropHeight)
+                    .setCameraFacing(mirror ? 1 : 0)
+                    .build();
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + " strides " + rowStride + "/" + pixelStride + " crop "
+                    + cropLeft + "," + cropTop + " " + cropWidth + "x" + cropHeight
+                    + (mirror ? " mirrored" : "") + (data.isDirect() ? " direct" : " heap");
+        }
+    }
+
+    @Test
+    public void luminanceMatchesPlanarYUV() {
+        Random random = new Random(1);
+        for (int i = 0; i < LAYOUTS; i++) {
+            Frame frame = Frame.random(random);
+            PlanarYUVLuminanceSource reference = frame.reference();
+            FrameLuminanceSource source = frame.source();
+
+            assertArrayEquals(frame.toString(), reference.getMatrix(), source.getMatrix());
+            for (int y = 0; y < frame.cropHeight; y++) {
+                assertArrayEquals(frame + " row " + y,
+                        reference.getRow(y, null),
+                        Arrays.copyOf(source.getRow(y, null), frame.cropWidth));
+            }
+
+            int width = frame.cropWidth / 2;
+            int height = frame.cropHeight / 2;
+            int left = random.nextInt(frame.cropWidth - width + 1);
+            int top = random.nextInt(frame.cropHeight - height + 1);
+            assertArrayEquals(frame + " crop",
+                    reference.crop(left, top, width, height).getMatrix(),
+                    source.crop(left, top, width, height).getMatrix());
+
+            FrameLuminanceSource region = source.region(width, height);
+            region.moveRegion(left, top);
+            assertArrayEquals(frame + " region",
+                    reference.crop(left, top, width, height).getMatrix(),
+                    region.getMatrix());
+        }
+    }
+
+    @Test
+    public void rotationMatchesRotatedLuminance() {
+        Random random = new Random(2);
+        for (int i = 0; i < LAYOUTS; i++) {
+            Frame frame = Frame.random(random);
+            byte[] matrix = frame.reference().getMatrix();
+            FrameLuminanceSource source = frame.source();
+
+            LuminanceSource rotated = source.rotateCounterClockwise();
+            assertEquals(frame.cropHeight, rotated.getWidth());
+            assertEquals(frame.cropWidth, rotated.getHeight());
+            assertArrayEquals(frame.toString(),
+                    rotateCounterClockwise(matrix, frame.cropWidth, frame.cropHeight),
+                    rotated.getMatrix());
+
+            LuminanceSource turned = rotated.rotateCounterClockwise().rotateCounterClockwise().rotateCounterClockwise();
+            assertArrayEquals(frame + " full turn", matrix, turned.getMatrix());
+        }
+    }
+
+    @Test
+    public void hybridBinarizerMatchesZXing() throws NotFoundException {
+        Random random = new Random(3);
+        for (int i = 0; i < LAYOUTS; i++) {
+            Frame frame = Frame.random(random);
+            PlanarYUVLuminanceSource reference = frame.reference();
+            FrameLuminanceSource source = frame.source();
+
+            assertEquals(frame.toString(),
+                    new HybridBinarizer(reference).getBlackMatrix(),
+                    new ReusableHybridBinarizer(source).getBlackMatrix());
+            assertBlackRowsEqual(frame.toString(), new HybridBinarizer(reference), new ReusableHybridBinarizer(source));
+
+            byte[] rotated = rotateCounterClockwise(reference.getMatrix(), frame.cropWidth, frame.cropHeight);
+            assertEquals(frame + " rotated",
+                    new HybridBinarizer(new PlanarYUVLuminanceSource(
+                            rotated, frame.cropHeight, frame.cropWidth, 0, 0, frame.cropHeight, frame.cropWidth,
+                            false)).getBlackMatrix(),
+                    new ReusableHybridBinarizer((FrameLuminanceSource) source.rotateCounterClockwise())
+                            .getBlackMatrix());
+        }
+    }
+
+    @Test
+    public void globalHistogramBinarizerMatchesZXing() {
+        Random random = new Random(4);
+        for (int i = 0; i < LAYOUTS; i++) {
+            Frame frame = Frame.random(random);
+            PlanarYUVLuminanceSource reference = frame.reference();
+            FrameLuminanceSource source = frame.source();
+
+            assertEquals(frame.toString(),
+                    blackMatrixOrNull(new GlobalHistogramBinarizer(reference)),
+                    blackMatrixOrNull(new ReusableGlobalHistogramBinarizer(source)));
+            assertBlackRowsEqual(
+                    frame.toString(), new GlobalHistogramBinarizer(reference), new ReusableGlobalHistogramBinarizer(source));
+        }
+    }
+
+    /**
+     * The binarizers of a frame context keep their matrices and thresholds from one frame to the
+     * next, which mustn't leak into the next frame.
+     */
+    @Test
+    public void reusedBinarizersMatchZXingFromFrameToFrame() throws NotFoundException {
+        Random random = new Random(5);
+        Frame first = Frame.random(random);
+        FrameMetadata metadata = first.metadata();
+        FrameContext context = new FrameContext();
+        for (int i = 0; i < 20; i++) {
+            Frame frame = i == 0 ? first : new Frame(random, first);
+            context.setFrame(frame.data, metadata, 0);
+            PlanarYUVLuminanceSource reference = frame.reference();
+
+            assertEquals("frame " + i,
+                    new HybridBinarizer(reference).getBlackMatrix(),
+                    context.getLevel(0, BinarizerStrategy.Type.HYBRID).getBlackMatrix());
+            assertEquals("frame " + i,
+                    blackMatrixOrNull(new GlobalHistogramBinarizer(reference)),
+                    blackMatrixOrNull(context.getLevel(0, BinarizerStrategy.Type.GLOBAL_HISTOGRAM)));
+        }
+    }
+
+    private static byte[] rotateCounterClockwise(byte[] matrix, int width, int height) {
+        byte[] rotated = new byte[width * height];
+        for (int y = 0; y < width; y++) {
+            for (int x = 0; x < height; x++) {
+                rotated[y * height + x] = matrix[x * width + (width - 1 - y)];
+            }
+        }
+        return rotated;
+    }
+
+    private static BitMatrix blackMatrixOrNull(BinaryBitmap bitmap) {
+        try {
+            return bitmap.getBlackMatrix();
+        } catch (NotFoundException e) {
+            return null;
+        }
+    }
+
+    private static BitMatrix blackMatrixOrNull(Binarizer binarizer) {
+        try {
+            return binarizer.getBlackMatrix();
+        } catch (NotFoundException e) {
+            return null;
+        }
+    }
+
+    private static void assertBlackRowsEqual(String message, Binarizer expected, Binarizer actual) {
+        int height = expected.getHeight();
+        for (int y = 0; y < height; y += 7) {
+            assertEquals(message + " row " + y, blackRowOrNull(expected, y), blackRowOrNull(actual, y));
+        }
+    }
+
+    private static BitArray blackRowOrNull(Binarizer binarizer, int y) {
+        try {
+            return binarizer.getBlackRow(y, null);
+        } catch (NotFoundException e) {
+            return null;
+        }
+    }
+}
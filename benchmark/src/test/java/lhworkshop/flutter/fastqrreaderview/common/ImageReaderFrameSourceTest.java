@@ -0,0 +1,249 @@
+package lhworkshop.flutter.fastqrreaderview.common;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives an {@link ImageReaderFrameSource} with a fake reader, checking that every image it
+ * acquires is closed once, and that a reader out of images counts as the pool being exhausted.
+ */
+public class ImageReaderFrameSourceTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int MAX_IMAGES = 2;
+
+    private FakeImageSource images;
+    private FakeSink sink;
+    private ImageReaderFrameSource source;
+
+    @Before
+    public void setUp() {
+        images = new FakeImageSource(MAX_IMAGES);
+        sink = new FakeSink();
+        source = new ImageReaderFrameSource(images, WIDTH, HEIGHT);
+        source.start(sink);
+    }
+
+    @Test
+    public void recycleClosesTheImage() {
+        FakeImage image = images.deliver(WIDTH, 1);
+        assertEquals(1, sink.frames.size());
+        assertSame(image.luminance, sink.frames.get(0));
+        assertFalse(image.closed);
+
+        source.recycle(image.luminance);
+        assertTrue(image.closed);
+        // Handing a frame back twice doesn't close the image again.
+        source.recycle(image.luminance);
+        assertEquals(1, image.closeCount);
+    }
+
+    @Test
+    public void stridesFollowTheImages() {
+        FakeImage first = images.deliver(WIDTH + 16, 1);
+        source.recycle(first.luminance);
+        FakeImage second = images.deliver(WIDTH + 16, 1);
+        source.recycle(second.luminance);
+        assertEquals(1, sink.strideChanges);
+        assertEquals(WIDTH + 16, sink.rowStride);
+        assertEquals(1, sink.pixelStride);
+
+        images.deliver(WIDTH * 2, 2);
+        assertEquals(2, sink.strideChanges);
+        assertEquals(WIDTH * 2, sink.rowStride);
+        assertEquals(2, sink.pixelStride);
+    }
+
+    @Test
+    public void stopClosesTheImagesStillAcquired() {
+        FakeImage recycled = images.deliver(WIDTH, 1);
+        FakeImage kept = images.deliver(WIDTH, 1);
+        source.recycle(recycled.luminance);
+
+        source.stop();
+        assertTrue(kept.closed);
+        assertEquals(1, recycled.closeCount);
+        assertNull(images.listener);
+        assertEquals(0, sink.rowStride);
+        assertEquals(0, sink.pixelStride);
+
+        // Frames handed back after stopping are no longer the source's.
+        source.recycle(kept.luminance);
+        assertEquals(1, kept.closeCount);
+    }
+
+    @Test
+    public void readerOutOfImagesCountsAsPoolExhausted() {
+        List<FakeImage> held = new ArrayList<>();
+        for (int i = 0; i < MAX_IMAGES; i++) {
+            held.add(images.deliver(WIDTH, 1));
+        }
+        FakeImage waiting = images.deliver(WIDTH, 1);
+        assertEquals(MAX_IMAGES, sink.frames.size());
+        assertEquals(1, source.getImagesUnavailable());
+        assertEquals(1, sink.poolExhausted);
+        assertFalse(waiting.closed);
+
+        // The reader keeps the image, and the next notification picks it up once one is free.
+        source.recycle(held.get(0).luminance);
+        images.notifyAvailable();
+        assertEquals(MAX_IMAGES + 1, sink.frames.size());
+        assertSame(waiting.luminance, sink.frames.get(MAX_IMAGES));
+        assertEquals(1, source.getImagesUnavailable());
+    }
+
+    @Test
+    public void imagesAfterStopAreLeftToTheReader() {
+        source.stop();
+        images.queued.add(new FakeImage(WIDTH, 1));
+        images.notifyAvailable();
+        assertTrue(sink.frames.isEmpty());
+    }
+
+    /**
+     * A reader allowing {@code maxImages} images to be acquired at once, which throws like {@code
+     * ImageReader} when more are.
+     */
+    private static class FakeImageSource implements ImageReaderFrameSource.ImageSource {
+        final int maxImages;
+        final Deque<FakeImage> queued = new ArrayDeque<>();
+        final List<FakeImage> acquired = new ArrayList<>();
+        Listener listener;
+
+        FakeImageSource(int maxImages) {
+            this.maxImages = maxImages;
+        }
+
+        @Override
+        public void setListener(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public ImageReaderFrameSource.LumaImage acquireLatestImage() {
+            if (queued.isEmpty()) {
+                return null;
+            }
+            int open = 0;
+            for (FakeImage image : acquired) {
+                if (!image.closed) {
+                    open++;
+                }
+            }
+            if (open >= maxImages) {
+                throw new IllegalStateException("maxImages (" + maxImages + ") has already been acquired");
+            }
+            while (queued.size() > 1) {
+                queued.removeFirst().close();
+            }
+            FakeImage image = queued.removeFirst();
+            acquired.add(image);
+            return image;
+        }
+
+        /**
+         * Queues a new image and notifies the listener, like the camera producing a frame.
+         */
+        FakeImage deliver(int rowStride, int pixelStride) {
+            FakeImage image = new FakeImage(rowStride, pixelStride);
+            queued.add(image);
+            notifyAvailable();
+            return image;
+        }
+
+        void notifyAvailable() {
+            if (listener != null) {
+                listener.onImageAvailable();
+            }
+        }
+    }
+
+    private static class FakeImage implements ImageReaderFrameSource.LumaImage {
+        final ByteBuffer luminance;
+        final int rowStride;
+        final int pixelStride;
+        boolean closed;
+        int closeCount;
+
+        FakeImage(int rowStride, int pixelStride) {
+            this.luminance = ByteBuffer.allocateDirect(rowStride * HEIGHT);
+            this.rowStride = rowStride;
+            this.pixelStride = pixelStride;
+        }
+
+        @Override
+        public ByteBuffer getLuminance() {
+            return luminance;
+        }
+
+        @Override
+        public int getRowStride() {
+            return rowStride;
+        }
+
+        @Override
+        public int getPixelStride() {
+            return pixelStride;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            closeCount++;
+        }
+    }
+
+    private static class FakeSink implements FrameSink {
+        final List<ByteBuffer> frames = new ArrayList<>();
+        int rowStride;
+        int pixelStride;
+        int strideChanges;
+        int poolExhausted;
+
+        @Override
+        public int getWorkerCount() {
+            return 1;
+        }
+
+        @Override
+        public int getFrameQueueCapacity() {
+            return 1;
+        }
+
+        @Override
+        public void setFrameStrides(int rowStride, int pixelStride) {
+            if (rowStride != 0 || pixelStride != 0) {
+                strideChanges++;
+            }
+            this.rowStride = rowStride;
+            this.pixelStride = pixelStride;
+        }
+
+        @Override
+        public void recordPoolExhausted() {
+            poolExhausted++;
+        }
+
+        @Override
+        public void setNextFrame(ByteBuffer frame) {
+            frames.add(frame);
+        }
+
+        @Override
+        public void awaitPendingFrameTaken() {
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package lhworkshop.flutter.fastqrreaderview.java.barcodescanning;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.MultiFormatWriter;
+import com.google.zxing.Result;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+import lhworkshop.flutter.fastqrreaderview.common.FrameContext;
+import lhworkshop.flutter.fastqrreaderview.common.FrameMetadata;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that the steady-state frame path doesn't allocate per frame: the bytes allocated while
+ * decoding a few hundred more frames stay within a small bound, far below the size of a luminance
+ * copy or a bit matrix of a frame.
+ */
+public class FrameAllocationTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int FRAME_COUNT = 8;
+    private static final int SHORT_RUN = 100;
+    private static final int LONG_RUN = 400;
+    private static final int SCAN_ROWS = 8;
+
+    // The BinaryBitmap wrapping the reused binarizer of a level, as ZXing's is final and caches its
+    // matrix, is the only allocation of the frame path left.
+    private static final long MAX_BINARIZE_BYTES_PER_FRAME = 64;
+    // ZXing's readers allocate a little on each attempt, e.g. the lists of candidate finder patterns
+    // and the counters of each row a 1D reader tries, which is out of the plugin's hands. A bit
+    // matrix of the frame alone would be 38 KB, and a luminance copy 300 KB.
+    private static final long MAX_DECODE_BYTES_PER_FRAME = 4096;
+    // Rows of rotated frames are as long as the columns of the frame, which changes what ZXing
+    // allocates a little. Rotating the bitmap for each frame would add a luminance source, its
+    // binarizer and their row buffers, i.e. more than 500 bytes.
+    private static final long MAX_ROTATION_BYTES_PER_FRAME = 256;
+
+    private com.sun.management.ThreadMXBean threads;
+    private ByteBuffer[] frames;
+    private FrameMetadata metadata;
+
+    @Before
+    public void setUp() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        // Frames without a code, as a hit allocates its result.
+        Random random = new Random(7);
+        frames = new ByteBuffer[FRAME_COUNT];
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            byte[] frame = new byte[WIDTH * HEIGHT * 3 / 2];
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    frame[y * WIDTH + x] = (byte) (60 + x / 8 + random.nextInt(24));
+                }
+            }
+            frames[i] = ByteBuffer.wrap(frame);
+        }
+        metadata = new FrameMetadata.Builder().setWidth(WIDTH).setHeight(HEIGHT).build();
+    }
+
+    @Test
+    public void binarizingAllocatesNothingPerFrame() {
+        FrameContext context = new FrameContext();
+        for (BinarizerStrategy.Type binarizer : BinarizerStrategy.Type.values()) {
+            binarize(context, binarizer, SHORT_RUN);
+            long shortRun = binarize(context, binarizer, SHORT_RUN);
+            long longRun = binarize(context, binarizer, LONG_RUN);
+            assertPerFrame(binarizer + " binarization", shortRun, longRun, MAX_BINARIZE_BYTES_PER_FRAME);
+        }
+    }
+
+    @Test
+    public void decodingAllocatesNothingPerFrame() {
+        decodingBytesPerFrame("decoding", metadata, 0);
+    }
+
+    /**
+     * Portrait frames, as on most phones, have their 1D rows read across the columns, from the
+     * rotated levels the frame context keeps. Reading them mustn't allocate more than reading the
+     * rows of landscape frames, which ZXing's readers alone allocate for.
+     */
+    @Test
+    public void decodingRotatedRowsAllocatesNothingPerFrame() {
+        long rows = decodingBytesPerFrame("decoding rows", metadata, SCAN_ROWS);
+        FrameMetadata portrait = new FrameMetadata.Builder(metadata).setRotation(1).build();
+        long rotatedRows = decodingBytesPerFrame("decoding rotated rows", portrait, SCAN_ROWS);
+        assertTrue("rotated rows allocated " + rotatedRows + " bytes per frame, rows " + rows,
+                rotatedRows - rows <= MAX_ROTATION_BYTES_PER_FRAME);
+    }
+
+    /**
+     * Decodes frames of {@code metadata} for QR codes and CODE_128, and returns the bytes
+     * allocated per frame, after checking that they stay within the bound.
+     */
+    private long decodingBytesPerFrame(String stage, FrameMetadata metadata, int scanRows) {
+        ArrayList<BarcodeFormat> formats = new ArrayList<>();
+        formats.add(BarcodeFormat.QR_CODE);
+        formats.add(BarcodeFormat.CODE_128);
+        BarcodeScanningProcessor processor = new BarcodeScanningProcessor(formats);
+        processor.setScanRows(scanRows);
+        processor.callback = new OnCodeScanned() {
+            @Override
+            public void onCodeScanned(Result barcode) {
+            }
+
+            @Override
+            public void onCodesScanned(Result[] barcodes) {
+            }
+        };
+        processor.shouldThrottle.set(false);
+        FrameDecoder decoder = processor.createDecoder();
+        FrameContext context = new FrameContext();
+
+        decode(processor, decoder, context, metadata, SHORT_RUN);
+        long shortRun = decode(processor, decoder, context, metadata, SHORT_RUN);
+        long longRun = decode(processor, decoder, context, metadata, LONG_RUN);
+        return assertPerFrame(stage, shortRun, longRun, MAX_DECODE_BYTES_PER_FRAME);
+    }
+
+    @Test
+    public void decodingFindsCodesWithReusedBuffers() throws WriterException {
+        // The allocation checks above only mean something if the reused buffers still decode.
+        byte[] frame = frames[0].array().clone();
+        BitMatrix code = new MultiFormatWriter().encode("reused", BarcodeFormat.QR_CODE, 240, 240);
+        for (int y = 0; y < code.getHeight(); y++) {
+            for (int x = 0; x < code.getWidth(); x++) {
+                frame[(y + 120) * WIDTH + x + 200] = (byte) (code.get(x, y) ? 30 : 200);
+            }
+        }
+        ArrayList<BarcodeFormat> formats = new ArrayList<>();
+        formats.add(BarcodeFormat.QR_CODE);
+        final int[] hits = new int[1];
+        BarcodeScanningProcessor processor = new BarcodeScanningProcessor(formats);
+        processor.callback = new OnCodeScanned() {
+            @Override
+            public void onCodeScanned(Result barcode) {
+                hits[0]++;
+            }
+
+            @Override
+            public void onCodesScanned(Result[] barcodes) {
+                hits[0]++;
+            }
+        };
+        processor.shouldThrottle.set(false);
+        FrameDecoder decoder = processor.createDecoder();
+        FrameContext context = new FrameContext();
+        ByteBuffer withCode = ByteBuffer.wrap(frame);
+        for (int i = 0; i < 4; i++) {
+            context.setFrame(frames[i], metadata, 0);
+            decoder.detectInImage(processor.nextSequence(), context);
+            context.setFrame(withCode, metadata, 0);
+            assertTrue(decoder.detectInImage(processor.nextSequence(), context));
+        }
+        assertTrue(hits[0] > 0);
+    }
+
+    @Test
+    public void decodingFindsRotatedCodesWithReusedViews() throws WriterException {
+        // A CODE_128 code held level with the display of a portrait frame runs down the columns.
+        byte[] frame = frames[0].array().clone();
+        BitMatrix code = new MultiFormatWriter().encode("rotated", BarcodeFormat.CODE_128, 360, 80);
+        for (int y = 0; y < code.getHeight(); y++) {
+            for (int x = 0; x < code.getWidth(); x++) {
+                frame[(x + 60) * WIDTH + y + 280] = (byte) (code.get(x, y) ? 30 : 200);
+            }
+        }
+        ArrayList<BarcodeFormat> formats = new ArrayList<>();
+        formats.add(BarcodeFormat.CODE_128);
+        final int[] hits = new int[1];
+        BarcodeScanningProcessor processor = new BarcodeScanningProcessor(formats);
+        processor.setScanRows(SCAN_ROWS);
+        processor.callback = new OnCodeScanned() {
+            @Override
+            public void onCodeScanned(Result barcode) {
+                hits[0]++;
+            }
+
+            @Override
+            public void onCodesScanned(Result[] barcodes) {
+                hits[0]++;
+            }
+        };
+        processor.shouldThrottle.set(false);
+        FrameDecoder decoder = processor.createDecoder();
+        FrameContext context = new FrameContext();
+        FrameMetadata portrait = new FrameMetadata.Builder(metadata).setRotation(1).build();
+        ByteBuffer withCode = ByteBuffer.wrap(frame);
+        int found = 0;
+        for (int i = 0; i < 8; i++) {
+            context.setFrame(frames[i], portrait, 0);
+            decoder.detectInImage(processor.nextSequence(), context);
+            context.setFrame(withCode, portrait, 0);
+            if (decoder.detectInImage(processor.nextSequence(), context)) {
+                found++;
+            }
+        }
+        // Every few frames the rows are read the other way, across the code.
+        assertTrue("found in " + found + " of 8 frames", found >= 4);
+        assertTrue(hits[0] > 0);
+    }
+
+    private long binarize(FrameContext context, BinarizerStrategy.Type binarizer, int count) {
+        long start = allocatedBytes();
+        for (int i = 0; i < count; i++) {
+            context.setFrame(frames[i % FRAME_COUNT], metadata, 0);
+            try {
+                context.getLevel(0, binarizer).getBlackMatrix();
+            } catch (com.google.zxing.NotFoundException e) {
+                throw new AssertionError(e);
+            }
+        }
+        return allocatedBytes() - start;
+    }
+
+    private long decode(
+            BarcodeScanningProcessor processor, FrameDecoder decoder, FrameContext context, FrameMetadata metadata,
+            int count) {
+        long start = allocatedBytes();
+        for (int i = 0; i < count; i++) {
+            context.setFrame(frames[i % FRAME_COUNT], metadata, 0);
+            decoder.detectInImage(processor.nextSequence(), context);
+        }
+        return allocatedBytes() - start;
+    }
+
+    private long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Fails if the frames of the long run beyond those of the short one allocated more than {@code
+     * maxBytesPerFrame} each, i.e. if allocation grows with the number of frames. Returns the
+     * bytes allocated per frame.
+     */
+    private static long assertPerFrame(String stage, long shortRun, long longRun, long maxBytesPerFrame) {
+        long perFrame = Math.max(0, longRun - shortRun) / (LONG_RUN - SHORT_RUN);
+        assertTrue(stage + " allocated " + perFrame + " bytes per frame (" + shortRun + " bytes for "
+                        + SHORT_RUN + " frames, " + longRun + " for " + LONG_RUN + ")",
+                perFrame <= maxBytesPerFrame);
+        return perFrame;
+    }
+}
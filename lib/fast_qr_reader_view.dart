@@ -1,4 +1,5 @@
 import 'dart:async';
+import 'dart:typed_data';
 
 import 'package:flutter/services.dart';
 import 'package:flutter/widgets.dart';
@@ -26,6 +27,88 @@ enum CodeFormat {
   qr
 }
 
+/// How results of frames decoded concurrently are reported.
+enum ResultDelivery {
+  /// A result is reported as soon as any decode worker finds it.
+  firstHit,
+
+  /// Results are reported in the order the frames were captured.
+  inOrder,
+}
+
+/// What happens to the codes of a frame when the queue of results waiting to
+/// be sent to Dart is full. See [QRReaderController.resultQueueSize].
+enum ResultOverflow {
+  /// The oldest frame waiting is dropped.
+  dropOldest,
+
+  /// The codes are added to the newest frame waiting, unless it already has
+  /// them.
+  coalesce,
+
+  /// The decoder waits for room, up to 200ms, and then drops the oldest frame.
+  block,
+}
+
+/// How frames are binarized before decoding.
+enum BinarizerStrategy {
+  /// Local thresholding only. The most robust and the most expensive.
+  hybrid,
+
+  /// A cheap global threshold first, then local thresholding if nothing was
+  /// found. Suited to evenly lit codes.
+  globalFirst,
+
+  /// Local thresholding first, then a global threshold if nothing was found.
+  hybridFirst,
+
+  /// One binarizer per frame, alternating between global and local.
+  alternate,
+
+  /// Whichever binarizer has been finding codes recently first, then the
+  /// other one.
+  adaptive,
+}
+
+/// The camera API used on Android.
+enum CameraBackend {
+  /// `android.hardware.Camera`. Preview frames are copied into buffers.
+  legacy,
+
+  /// `android.hardware.camera2`. Frames are decoded in place from the camera
+  /// images, without copying them.
+  camera2,
+}
+
+/// How camera frames wait for a decode worker.
+enum FrameQueue {
+  /// A single frame waits, replaced by each newer one, so that the most
+  /// recent frame is always decoded next.
+  latest,
+
+  /// Up to [QRReaderController.frameQueueSize] frames wait and are decoded in
+  /// the order they arrived. The oldest is replaced when the queue is full.
+  fifo,
+}
+
+/// A recording of NV21 frames decoded instead of the camera preview, which is
+/// still displayed. The file is a raw sequence of frames of [width] x [height],
+/// as written by `ffmpeg -f rawvideo -pix_fmt nv21`. Android only, for testing.
+class FrameReplay {
+  final String path;
+  final int width;
+  final int height;
+
+  /// Replay rate. 0 replays as fast as the frames are decoded.
+  final double fps;
+
+  /// Whether to start over at the end of the recording.
+  final bool loop;
+
+  const FrameReplay(this.path, this.width, this.height,
+      {this.fps = 0.0, this.loop = true});
+}
+
 enum Rotation {
   ROTATE_0,
   ROTATE_90,
@@ -33,6 +116,65 @@ enum Rotation {
   ROTATE_270,
 }
 
+/// A code read by the native decoder, as passed to
+/// [QRReaderController.onResultsRead].
+class QRCodeResult {
+  final CodeFormat format;
+  final String text;
+
+  /// The bytes encoded in the code, when the format has them, e.g. the data
+  /// codewords of QR codes. May be null.
+  final Uint8List rawBytes;
+
+  /// The result points of the code, e.g. the centers of the finder patterns
+  /// of QR codes or the ends of 1D codes, in pixels of the camera frame as
+  /// captured, before the preview rotation.
+  final List<Offset> points;
+
+  /// When the code was decoded.
+  final DateTime timestamp;
+
+  /// When the event carrying the code was sent to Dart.
+  final DateTime sentAt;
+
+  const QRCodeResult(this.format, this.text, this.rawBytes, this.points,
+      this.timestamp, this.sentAt);
+
+  @override
+  String toString() => '$runtimeType($format, $text)';
+}
+
+/// Parses the codes of a batch of a `results` event, sent as lists of format,
+/// text, raw bytes, point coordinates and timestamp.
+List<QRCodeResult> _parseResults(List<dynamic> batch, DateTime sentAt) {
+  return batch.map((dynamic code) {
+    final Float64List coordinates = code[3];
+    final List<Offset> points = <Offset>[];
+    if (coordinates != null) {
+      for (var i = 0; i + 1 < coordinates.length; i += 2) {
+        points.add(new Offset(coordinates[i], coordinates[i + 1]));
+      }
+    }
+    return new QRCodeResult(
+      _parseCodeFormat(code[0]),
+      code[1],
+      code[2],
+      points,
+      new DateTime.fromMillisecondsSinceEpoch(code[4]),
+      sentAt,
+    );
+  }).toList();
+}
+
+CodeFormat _parseCodeFormat(String string) {
+  for (var entry in _availableFormats.entries) {
+    if (entry.value == string) {
+      return entry.key;
+    }
+  }
+  return null;
+}
+
 var _availableFormats = {
   CodeFormat.codabar: 'codabar', // Android only
   CodeFormat.code39: 'code39',
@@ -62,6 +204,90 @@ String serializeResolutionPreset(ResolutionPreset resolutionPreset) {
   throw new ArgumentError('Unknown ResolutionPreset value');
 }
 
+/// Returns the normalized scan region as a map, or null for the whole preview.
+Map<String, double> serializeScanRegion(Rect scanRegion) {
+  if (scanRegion == null) {
+    return null;
+  }
+  return <String, double>{
+    'left': scanRegion.left,
+    'top': scanRegion.top,
+    'width': scanRegion.width,
+    'height': scanRegion.height,
+  };
+}
+
+Map<String, dynamic> serializeFrameReplay(FrameReplay replay) {
+  if (replay == null) {
+    return null;
+  }
+  return <String, dynamic>{
+    'path': replay.path,
+    'width': replay.width,
+    'height': replay.height,
+    'fps': replay.fps,
+    'loop': replay.loop,
+  };
+}
+
+String serializeResultDelivery(ResultDelivery resultDelivery) {
+  switch (resultDelivery) {
+    case ResultDelivery.firstHit:
+      return 'firstHit';
+    case ResultDelivery.inOrder:
+      return 'inOrder';
+  }
+  throw new ArgumentError('Unknown ResultDelivery value');
+}
+
+String serializeResultOverflow(ResultOverflow overflow) {
+  switch (overflow) {
+    case ResultOverflow.dropOldest:
+      return 'dropOldest';
+    case ResultOverflow.coalesce:
+      return 'coalesce';
+    case ResultOverflow.block:
+      return 'block';
+  }
+  throw new ArgumentError('Unknown ResultOverflow value');
+}
+
+String serializeBinarizerStrategy(BinarizerStrategy binarizer) {
+  switch (binarizer) {
+    case BinarizerStrategy.hybrid:
+      return 'hybrid';
+    case BinarizerStrategy.globalFirst:
+      return 'globalFirst';
+    case BinarizerStrategy.hybridFirst:
+      return 'hybridFirst';
+    case BinarizerStrategy.alternate:
+      return 'alternate';
+    case BinarizerStrategy.adaptive:
+      return 'adaptive';
+  }
+  throw new ArgumentError('Unknown BinarizerStrategy value');
+}
+
+String serializeCameraBackend(CameraBackend backend) {
+  switch (backend) {
+    case CameraBackend.legacy:
+      return 'legacy';
+    case CameraBackend.camera2:
+      return 'camera2';
+  }
+  throw new ArgumentError('Unknown CameraBackend value');
+}
+
+String serializeFrameQueue(FrameQueue queue) {
+  switch (queue) {
+    case FrameQueue.latest:
+      return 'latest';
+    case FrameQueue.fifo:
+      return 'fifo';
+  }
+  throw new ArgumentError('Unknown FrameQueue value');
+}
+
 List<String> serializeCodeFormatsList(List<CodeFormat> formats) {
   List<String> list = [];
 
@@ -232,13 +458,175 @@ class QRReaderController extends ValueNotifier<QRReaderValue> {
   final Function onCodeRead;
   final List<CodeFormat> codeFormats;
 
+  /// Region of the preview to decode, in normalized (0..1) coordinates of the
+  /// preview as displayed. Decodes the whole preview when null. A region that
+  /// is empty or not within the preview fails with the `invalidScanRegion`
+  /// error code. Android only.
+  Rect scanRegion;
+
+  /// Number of threads decoding frames concurrently. Defaults to one less
+  /// than the number of cores. Android only.
+  final int decodeWorkers;
+
+  /// How results of concurrently decoded frames are reported. Android only.
+  final ResultDelivery resultDelivery;
+
+  /// Limits the formats tried on each frame. Formats are tried by decreasing
+  /// success in the current session, and their relative cost adds up to at
+  /// most this budget (a 1D format costs 1, QR 3, PDF417 4). Formats that are
+  /// rarely seen are then only tried every few frames. 0 tries every format on
+  /// every frame. Android only.
+  final int formatCostBudget;
+
+  /// Decodes each frame first at a resolution halved this many times (0 to 2).
+  /// A frame is decoded again at full resolution when the low resolution pass
+  /// saw finder patterns, or after [pyramidEscalateAfter] low resolution
+  /// misses in a row. 0 always decodes at full resolution. Android only.
+  final int pyramidLevels;
+  final int pyramidEscalateAfter;
+
+  /// How frames are binarized. Per binarizer attempts, hits and time spent
+  /// are reported by [getStats]. Android only.
+  final BinarizerStrategy binarizer;
+
+  /// Reports every code found in a frame instead of the first one. The codes
+  /// of a frame are passed together to [onCodesRead], or to [onCodeRead] one
+  /// by one when it is not set. Android only.
+  final bool multipleResults;
+  final Function onCodesRead;
+
+  /// Called with the [QRCodeResult]s of each frame instead of [onCodeRead]
+  /// and [onCodesRead], with the format, raw bytes, points and timestamps of
+  /// the codes. The codes of several frames found within one UI frame reach
+  /// Dart in a single event. Android only.
+  final Function onResultsRead;
+
+  /// Number of frames whose codes may wait to be sent to Dart, e.g. while the
+  /// UI thread is busy. Android only.
+  final int resultQueueSize;
+
+  /// What happens to the codes of a frame found while [resultQueueSize]
+  /// frames are waiting. The frames dropped, coalesced and waited for are
+  /// reported by [getStats]. Android only.
+  final ResultOverflow resultOverflow;
+
+  /// Number of rows read per frame by the 1D readers, across the codes as
+  /// they are most likely held: along the columns of the camera frames when
+  /// the preview is rotated by a quarter turn (portrait on most phones), and
+  /// every 4th frame in the other direction. The rows move from one frame to
+  /// the next, so that the whole frame is covered over a few frames rather
+  /// than in each one. 0 keeps ZXing's scan of up to 15 rows around the
+  /// middle of the camera frame, which only reads codes along the sensor
+  /// rows. Android only.
+  final int scanRows;
+
+  /// Number of consistent reads of a code before it is reported. Filters out
+  /// occasional misreads, mostly of 1D codes. Android only.
+  final int confirmReads;
+
+  /// A reported code is not reported again until it has been out of view for
+  /// this long, even across [startScanning]. [Duration.zero] reports it
+  /// again on every read. Android only.
+  final Duration duplicateCooldown;
+
+  /// Starts scanning as soon as the camera is initialized and keeps scanning
+  /// after a code is read, until [stopScanning] is called. Best combined with
+  /// [duplicateCooldown] so a code held in view is read once. Android only.
+  final bool continuous;
+
+  /// Minimum time between two reported results in [continuous] mode. Results
+  /// found in between are dropped natively. Android only.
+  final Duration minResultInterval;
+
+  /// Decodes a recording instead of the camera preview. Android only.
+  final FrameReplay replay;
+
+  /// The camera API used. Android only.
+  final CameraBackend cameraBackend;
+
+  /// Adapts the camera frame rate to the time it takes to decode frames,
+  /// between 5 and 30 fps, and decodes only every few frames when the camera
+  /// can't go as low as needed. The current rate and the share of frames not
+  /// decoded are reported by [getStats]. Disabled, the camera runs at about
+  /// 20 fps. Android only.
+  final bool adaptiveFrameRate;
+
+  /// Picks the resolution frames are decoded at from the size of the modules
+  /// of the codes read, between the [resolutionPreset] and a quarter of it:
+  /// large codes are decoded at a lower resolution, and the resolution is
+  /// raised again as soon as codes get denser or further away. Sizes are
+  /// known for QR and EAN/UPC codes. Starts at [pyramidLevels]; the chosen
+  /// level is reported by [getStats]. Android only.
+  final bool autoResolution;
+
+  /// After a code is read, decodes the next frames only in a region around
+  /// it, moved along with the code, which is faster for codes held in view
+  /// while [continuous] scanning. The whole frame is still decoded every 8
+  /// frames, so that other codes are found, and after a few frames without
+  /// a hit. The frames decoded in a region and their hits are reported by
+  /// [getStats]. Android only.
+  final bool tracking;
+
+  /// Frames less sharp than this are skipped before being decoded, e.g.
+  /// while the device is moving. Sharpness is the mean square of the
+  /// strongest edges found on a sparse grid of the frame (0 to 65025); that
+  /// of the last frame is reported by [getStats] as `lastSharpness` to pick
+  /// a value. 0 decodes blurred frames. Android only.
+  final double minSharpness;
+
+  /// Frames whose pixels changed less than this on average (0 to 255) since
+  /// a frame decoded without finding a code are skipped. Reported by
+  /// [getStats] as `lastFrameChange`. 0 decodes unchanged frames. Android
+  /// only.
+  final double minFrameChange;
+
+  /// How camera frames wait for a decode worker, and how many wait with
+  /// [FrameQueue.fifo] (1 to 8). Frames replaced while waiting are reported
+  /// by [getStats] as `framesOverwritten`. Android only.
+  final FrameQueue frameQueue;
+  final int frameQueueSize;
+
+  /// Number of buffers the camera fills with preview frames (images of the
+  /// reader with [CameraBackend.camera2]), at least 2. Defaults to one per
+  /// decode worker and waiting frame, plus two for the camera. With fewer, the
+  /// camera misses frames while they are all in use, which is reported by
+  /// [getStats] as `poolExhausted`. Android only.
+  final int previewBuffers;
+
   int _textureId;
   bool _isDisposed = false;
   StreamSubscription<dynamic> _eventSubscription;
   Completer<Null> _creatingCompleter;
 
   QRReaderController(this.description, this.resolutionPreset, this.codeFormats,
-      this.onCodeRead)
+      this.onCodeRead,
+      {this.scanRegion,
+      this.decodeWorkers,
+      this.resultDelivery = ResultDelivery.firstHit,
+      this.formatCostBudget = 0,
+      this.pyramidLevels = 0,
+      this.pyramidEscalateAfter = 3,
+      this.binarizer = BinarizerStrategy.hybrid,
+      this.multipleResults = false,
+      this.onCodesRead,
+      this.onResultsRead,
+      this.resultQueueSize = 8,
+      this.resultOverflow = ResultOverflow.coalesce,
+      this.scanRows = 0,
+      this.confirmReads = 1,
+      this.duplicateCooldown = Duration.zero,
+      this.continuous = false,
+      this.minResultInterval = Duration.zero,
+      this.replay,
+      this.cameraBackend = CameraBackend.legacy,
+      this.adaptiveFrameRate = true,
+      this.autoResolution = false,
+      this.tracking = false,
+      this.minSharpness = 0.0,
+      this.minFrameChange = 0.0,
+      this.frameQueue = FrameQueue.latest,
+      this.frameQueueSize = 2,
+      this.previewBuffers})
       : super(const QRReaderValue.uninitialized());
 
   /// Initializes the camera on the device.
@@ -257,6 +645,31 @@ class QRReaderController extends ValueNotifier<QRReaderValue> {
           'cameraName': description.name,
           'resolutionPreset': serializeResolutionPreset(resolutionPreset),
           'codeFormats': serializeCodeFormatsList(codeFormats),
+          'scanRegion': serializeScanRegion(scanRegion),
+          'decodeWorkers': decodeWorkers,
+          'resultDelivery': serializeResultDelivery(resultDelivery),
+          'formatCostBudget': formatCostBudget,
+          'pyramidLevels': pyramidLevels,
+          'pyramidEscalateAfter': pyramidEscalateAfter,
+          'binarizer': serializeBinarizerStrategy(binarizer),
+          'multipleResults': multipleResults,
+          'resultQueueSize': resultQueueSize,
+          'resultOverflow': serializeResultOverflow(resultOverflow),
+          'scanRows': scanRows,
+          'confirmReads': confirmReads,
+          'duplicateCooldown': duplicateCooldown.inMilliseconds,
+          'continuous': continuous,
+          'minResultInterval': minResultInterval.inMilliseconds,
+          'replay': serializeFrameReplay(replay),
+          'cameraBackend': serializeCameraBackend(cameraBackend),
+          'adaptiveFrameRate': adaptiveFrameRate,
+          'autoResolution': autoResolution,
+          'tracking': tracking,
+          'minSharpness': minSharpness,
+          'minFrameChange': minFrameChange,
+          'frameQueue': serializeFrameQueue(frameQueue),
+          'frameQueueSize': frameQueueSize,
+          'previewBuffers': previewBuffers,
         },
       );
       _textureId = reply['textureId'];
@@ -273,6 +686,7 @@ class QRReaderController extends ValueNotifier<QRReaderValue> {
       }
       value = value.copyWith(
         isInitialized: true,
+        isScanning: continuous,
         previewSize: previewSize,
         previewRotation: previewRotation,
       );
@@ -303,6 +717,21 @@ class QRReaderController extends ValueNotifier<QRReaderValue> {
       case 'cameraClosing':
         value = value.copyWith(isScanning: false);
         break;
+      case 'results':
+        if (value.isScanning) {
+          final DateTime sentAt =
+              new DateTime.fromMillisecondsSinceEpoch(map['sentAt']);
+          for (final dynamic batch in map['batches']) {
+            _reportResults(_parseResults(batch, sentAt));
+            if (!continuous) {
+              // Only the first frame read is reported when not scanning
+              // continuously.
+              value = value.copyWith(isScanning: false);
+              break;
+            }
+          }
+        }
+        break;
     }
   }
 
@@ -319,6 +748,60 @@ class QRReaderController extends ValueNotifier<QRReaderValue> {
     }
   }
 
+  /// Restricts decoding to [region] of the preview, or the whole preview when
+  /// null. See [scanRegion]. Throws a [QRReaderException] with the code
+  /// `noCamera` if the platform has no camera for this controller, e.g. once
+  /// disposed. Android only.
+  Future<Null> setScanRegion(Rect region) async {
+    scanRegion = region;
+    if (!value.isInitialized || _isDisposed) {
+      return;
+    }
+    try {
+      await _channel.invokeMethod(
+        'setScanRegion',
+        <String, dynamic>{
+          'textureId': _textureId,
+          'scanRegion': serializeScanRegion(region),
+        },
+      );
+    } on PlatformException catch (e) {
+      throw new QRReaderException(e.code, e.message);
+    }
+  }
+
+  /// Returns the scanning counters of the native decoder: frames received,
+  /// overwritten while waiting for a worker, skipped, throttled, blurred and
+  /// unchanged, the times the camera ran out of preview buffers
+  /// (`poolExhausted`), the decodes cancelled by the camera stopping
+  /// (`cancelledDecodes`), the share of frames not decoded (`dropRatio`), the
+  /// current `frameRate` (`target`, `measured` and `decodeInterval`), the
+  /// level and module size of [autoResolution], hits and misses per format
+  /// and per resolution level, the frames decoded in the region of [tracking]
+  /// (`trackedFrames`, `trackedHits`), the frames of results dropped,
+  /// coalesced and waited for under [resultOverflow] (`droppedResults`,
+  /// `coalescedResults`, `blockedResults`), and under `latency` the
+  /// distribution (count, mean, p50, p90, p99, p999 and max, in fractional
+  /// microseconds) of the time spent in each stage: handoff to the decoder,
+  /// queue wait, frame gate, binarization, decode and delivery to Dart.
+  /// Android only.
+  Future<Map<dynamic, dynamic>> getStats() async {
+    try {
+      return await _channel.invokeMethod('getStats');
+    } on PlatformException catch (e) {
+      throw new QRReaderException(e.code, e.message);
+    }
+  }
+
+  /// Clears the counters returned by [getStats]. Android only.
+  Future<Null> resetStats() async {
+    try {
+      await _channel.invokeMethod('resetStats');
+    } on PlatformException catch (e) {
+      throw new QRReaderException(e.code, e.message);
+    }
+  }
+
   /// Start a QR scan.
   ///
   /// Throws a [QRReaderException] if the capture fails.
@@ -394,11 +877,27 @@ class QRReaderController extends ValueNotifier<QRReaderValue> {
 
   Future<dynamic> _handleMethod(MethodCall call) async {
     switch (call.method) {
+      // Only sent by the iOS plugin. Android sends "results" events instead.
       case "updateCode":
         if (value.isScanning) {
           onCodeRead(call.arguments);
-          value = value.copyWith(isScanning: false);
+          if (!continuous) {
+            value = value.copyWith(isScanning: false);
+          }
         }
+        break;
+    }
+  }
+
+  void _reportResults(List<QRCodeResult> results) {
+    if (onResultsRead != null) {
+      onResultsRead(results);
+    } else if (!multipleResults) {
+      onCodeRead(results.first.text);
+    } else if (onCodesRead != null) {
+      onCodesRead(results.map((result) => result.text).toList());
+    } else {
+      results.forEach((result) => onCodeRead(result.text));
     }
   }
 }